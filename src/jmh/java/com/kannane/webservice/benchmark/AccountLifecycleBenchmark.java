@@ -0,0 +1,137 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.StoreMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening and closing accounts. Every iteration starts from an empty store and each thread creates or deletes a batch
+ * of {@link #BATCH} accounts, so the store does not grow without bound over a timed run. Scores are the time a
+ * thread takes for its batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = AccountLifecycleBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = AccountLifecycleBenchmark.BATCH)
+@Fork(1)
+public class AccountLifecycleBenchmark {
+
+    static final int BATCH = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"INMEMORY", "CONCURRENT", "COLUMNAR", "SHARDED"})
+        public StoreMode storeMode;
+
+        AccountService service;
+
+        @Setup(Level.Iteration)
+        public void empty() {
+            service = storeMode.createService();
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            if (service instanceof Closeable) {
+                ((Closeable) service).close();
+            }
+        }
+    }
+
+    /**
+     * The accounts deleted during the iteration, created on one thread before it starts and split between the threads
+     */
+    @State(Scope.Benchmark)
+    public static class Created {
+        private long[] ids;
+
+        @Setup(Level.Iteration)
+        public void create(Store store, BenchmarkParams params) {
+            ids = new long[BATCH * params.getThreads()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = store.service.createAccount(newAccount()).getId();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Deletes {
+        private int next;
+        private int end;
+        private long[] ids;
+
+        @Setup(Level.Iteration)
+        public void claim(Created created, ThreadParams params) {
+            ids = created.ids;
+            next = params.getThreadIndex() * BATCH;
+            end = next + BATCH;
+        }
+
+        long next() {
+            if (next == end) {
+                throw new IllegalStateException("Thread ran past its batch");
+            }
+            return ids[next++];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Account createOneThread(Store store) {
+        return store.service.createAccount(newAccount());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Account createFourThreads(Store store) {
+        return store.service.createAccount(newAccount());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Account createAllCores(Store store) {
+        return store.service.createAccount(newAccount());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Account deleteOneThread(Store store, Deletes deletes) {
+        return store.service.deleteAccount(deletes.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Account deleteFourThreads(Store store, Deletes deletes) {
+        return store.service.deleteAccount(deletes.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Account deleteAllCores(Store store, Deletes deletes) {
+        return store.service.deleteAccount(deletes.next());
+    }
+
+    private static Account newAccount() {
+        return new Account(0L, "user", 100d);
+    }
+}
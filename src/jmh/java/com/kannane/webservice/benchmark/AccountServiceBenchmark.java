@@ -0,0 +1,138 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.StoreMode;
+import com.kannane.webservice.accounts.TransferStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and transfers against a populated store, on one thread, four threads and one thread per core
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountServiceBenchmark {
+
+    static final int ACCOUNTS = 100_000;
+    static final double TRANSFER_AMOUNT = 0.01;
+    static final long TRANSFER_MINOR_AMOUNT = 1;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"INMEMORY", "CONCURRENT", "COLUMNAR", "SHARDED"})
+        public StoreMode storeMode;
+
+        AccountService service;
+
+        @Setup(Level.Trial)
+        public void populate() {
+            service = storeMode.createService();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                service.createAccount(new Account(0L, "user" + i, 1_000_000_000d));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (service instanceof Closeable) {
+                ((Closeable) service).close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+        @Param({"UNIFORM", "HOT"})
+        public IdDistribution distribution;
+
+        private long[] ids;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            ids = distribution.generate(ACCOUNTS);
+        }
+
+        long next() {
+            return ids[next++ & (ids.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<Account> findOneThread(Store store, Ids ids) {
+        return store.service.findAccount(ids.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<Account> findFourThreads(Store store, Ids ids) {
+        return store.service.findAccount(ids.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Optional<Account> findAllCores(Store store, Ids ids) {
+        return store.service.findAccount(ids.next());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transferOneThread(Store store, Ids ids) {
+        transfer(store, ids);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void transferFourThreads(Store store, Ids ids) {
+        transfer(store, ids);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void transferAllCores(Store store, Ids ids) {
+        transfer(store, ids);
+    }
+
+    /**
+     * Ids and amount as primitives, gc.alloc.rate.norm shows what each store allocates per transfer
+     */
+    @Benchmark
+    @Threads(1)
+    public TransferStatus transferMinorOneThread(Store store, Ids ids) {
+        long from = ids.next(), to = ids.next();
+        if (from == to) {
+            to = from % ACCOUNTS + 1;
+        }
+        return store.service.tryTransferMinor(from, to, TRANSFER_MINOR_AMOUNT);
+    }
+
+    private static void transfer(Store store, Ids ids) {
+        long from = ids.next(), to = ids.next();
+        if (from == to) {
+            to = from % ACCOUNTS + 1;
+        }
+        store.service.transferMoney(from, to, TRANSFER_AMOUNT);
+    }
+}
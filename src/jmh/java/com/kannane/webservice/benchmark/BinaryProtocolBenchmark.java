@@ -0,0 +1,149 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.Server;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.InMemoryAccountService;
+import com.kannane.webservice.accounts.TransferStatus;
+import com.kannane.webservice.binary.BinaryClient;
+import com.kannane.webservice.binary.BinaryProtocol;
+import com.kannane.webservice.binary.BinaryServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Spark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers over REST against transfers over the binary protocol, one at a time and pipelined, all into the same
+ * in-memory store. The indexes are off so the store work per transfer is the same and small, and the difference is
+ * what each front end costs. Client and server share the machine, so the numbers are transfers per second for both
+ * sides together.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryProtocolBenchmark {
+
+    static final int ACCOUNTS = 10_000;
+    static final int PIPELINE = 64;
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+        AccountService service;
+        BinaryServer binary;
+        String restUrl;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            service = new InMemoryAccountService();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                service.createAccount(new Account(0L, "user" + i, 1_000_000_000d));
+            }
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            System.setProperty("accounts.index.balance", "false");
+            System.setProperty("accounts.index.name", "false");
+            Spark.port(port);
+            new Server(service).startRouting();
+            Spark.awaitInitialization();
+            restUrl = "http://localhost:" + port;
+            binary = new BinaryServer(service, 0, Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            binary.close();
+            Spark.stop();
+            Spark.awaitStop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        BinaryClient binary;
+        private final byte[] body = new byte[1024];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void connect(Servers servers) throws IOException {
+            binary = new BinaryClient(new InetSocketAddress("localhost", servers.binary.getPort()));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            binary.close();
+        }
+
+        long nextFrom() {
+            return 1 + (next++ % ACCOUNTS);
+        }
+
+        /**
+         * Reads the whole body so the connection goes back to the keep-alive pool
+         */
+        int drain(InputStream in) throws IOException {
+            int total = 0;
+            for (int read; (read = in.read(body)) > 0; ) {
+                total += read;
+            }
+            in.close();
+            return total;
+        }
+    }
+
+    @Benchmark
+    public int restTransfer(Servers servers, Client client) throws IOException {
+        long from = client.nextFrom();
+        HttpURLConnection connection = (HttpURLConnection) new URL(servers.restUrl + "/transfer/from/" + from
+                + "/to/" + (from % ACCOUNTS + 1) + "/amount/0.01").openConnection();
+        connection.setRequestMethod("POST");
+        if (connection.getResponseCode() != 200) {
+            throw new IllegalStateException("Transfer failed with " + connection.getResponseCode());
+        }
+        return client.drain(connection.getInputStream());
+    }
+
+    @Benchmark
+    public TransferStatus binaryTransfer(Client client) throws IOException {
+        long from = client.nextFrom();
+        return client.binary.transfer(from, from % ACCOUNTS + 1, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public int binaryTransferPipelined(Client client) throws IOException {
+        for (int i = 0; i < PIPELINE; i++) {
+            long from = client.nextFrom();
+            client.binary.sendTransfer(from, from % ACCOUNTS + 1, 1);
+        }
+        int ok = 0;
+        for (int i = 0; i < PIPELINE; i++) {
+            if (client.binary.read().getStatus() == BinaryProtocol.OK) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+}
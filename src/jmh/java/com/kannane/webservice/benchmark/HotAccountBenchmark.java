@@ -0,0 +1,88 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.InMemoryAccountService;
+import com.kannane.webservice.accounts.TransferStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every thread pays into the same merchant account from its own payer, the worst case for the per account lock.
+ * hot=false keeps the merchant on its lock (automatic promotion off), hot=true spreads its deposits over striped
+ * cells. Every hundredth operation is a refund out of the merchant, which still goes through its lock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HotAccountBenchmark {
+
+    private static final int REFUND_EVERY = 100;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"false", "true"})
+        public boolean hot;
+
+        InMemoryAccountService service;
+        long merchant;
+
+        @Setup(Level.Trial)
+        public void create() {
+            service = new InMemoryAccountService(0, InMemoryAccountService.DEFAULT_HOT_STRIPES);
+            merchant = service.createAccount(new Account(0L, "merchant", 1_000_000d)).getId();
+            service.setHotAccount(merchant, hot);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Payer {
+        long id;
+        int operations;
+
+        @Setup(Level.Trial)
+        public void create(Store store, ThreadParams params) {
+            id = store.service.createAccount(new Account(0L, "payer" + params.getThreadIndex(), 1e12)).getId();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public TransferStatus payOneThread(Store store, Payer payer) {
+        return pay(store, payer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public TransferStatus payFourThreads(Store store, Payer payer) {
+        return pay(store, payer);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public TransferStatus payAllCores(Store store, Payer payer) {
+        return pay(store, payer);
+    }
+
+    private static TransferStatus pay(Store store, Payer payer) {
+        if (++payer.operations % REFUND_EVERY == 0) {
+            return store.service.tryTransfer(store.merchant, payer.id, 0.01);
+        }
+        return store.service.tryTransfer(payer.id, store.merchant, 0.01);
+    }
+}
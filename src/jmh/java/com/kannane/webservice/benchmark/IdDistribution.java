@@ -0,0 +1,48 @@
+package com.kannane.webservice.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How benchmark operations pick account ids. Ids are drawn up front so the random number generator is not measured.
+ */
+public enum IdDistribution {
+    /**
+     * Every account is equally likely
+     */
+    UNIFORM {
+        @Override
+        long pick(ThreadLocalRandom random, int accounts) {
+            return 1 + random.nextInt(accounts);
+        }
+    },
+    /**
+     * Nine in ten operations go to the first {@link #HOT_ACCOUNTS} accounts, the way a few merchant or treasury
+     * accounts take most of the traffic
+     */
+    HOT {
+        @Override
+        long pick(ThreadLocalRandom random, int accounts) {
+            if (random.nextInt(10) < 9) {
+                return 1 + random.nextInt(Math.min(HOT_ACCOUNTS, accounts));
+            }
+            return 1 + random.nextInt(accounts);
+        }
+    };
+
+    static final int HOT_ACCOUNTS = 16;
+    private static final int IDS = 1 << 16;
+
+    abstract long pick(ThreadLocalRandom random, int accounts);
+
+    /**
+     * A power of two sized sequence of ids between 1 and accounts
+     */
+    long[] generate(int accounts) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] ids = new long[IDS];
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = pick(random, accounts);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,43 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.response.JsonTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the two most common response bodies, an account and the transfer response
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonTransformerBenchmark {
+
+    private final JsonTransformer transformer = new JsonTransformer();
+    private final Account account = new Account(123456L, "user123456", 1234.56);
+    private final Map<String, String> transferResponse = Collections.singletonMap("success", "true");
+
+    @Benchmark
+    public String renderAccount() {
+        return transformer.render(account);
+    }
+
+    @Benchmark
+    public String renderTransferResponse() {
+        return transformer.render(transferResponse);
+    }
+}
@@ -0,0 +1,88 @@
+package com.kannane.webservice.benchmark;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.ColumnarAccountService;
+import com.kannane.webservice.accounts.NameIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefix searches for ten accounts in a name index over a columnar store of up to ten million accounts with random
+ * eight letter names. The index footprint is printed once the store is populated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class NameIndexBenchmark {
+
+    private static final int PREFIXES = 1 << 12;
+
+    @Param({"1000000", "10000000"})
+    public int accounts;
+
+    @Param({"2", "4"})
+    public int prefixLength;
+
+    private NameIndex index;
+    private String[] prefixes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        ColumnarAccountService service = new ColumnarAccountService();
+        index = NameIndex.attach(service);
+        Random random = new Random(42);
+        List<Account> batch = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            batch.add(new Account(0L, name(random, 8), 1d));
+            if (batch.size() == 10_000) {
+                service.createAccounts(batch);
+                batch.clear();
+            }
+        }
+        service.createAccounts(batch);
+        prefixes = new String[PREFIXES];
+        for (int i = 0; i < PREFIXES; i++) {
+            prefixes[i] = name(random, prefixLength);
+        }
+        System.out.printf("%nName index of %d accounts holds about %d MB%n", index.size(), index.footprint() >> 20);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        index.close();
+    }
+
+    @Benchmark
+    public int search(Blackhole blackhole) {
+        return index.search(prefixes[next++ & (PREFIXES - 1)], 10, blackhole::consume);
+    }
+
+    private static String name(Random random, int length) {
+        char[] name = new char[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(name);
+    }
+}
@@ -1,12 +1,43 @@
 package com.kannane.webservice;
 
-import com.google.gson.Gson;
+import com.kannane.webservice.admission.AccountRateLimiter;
+import com.kannane.webservice.admission.AdaptiveLimit;
+import com.kannane.webservice.admission.AdmissionControl;
+import com.kannane.webservice.admission.StreamLimit;
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.AccountSnapshot;
+import com.kannane.webservice.accounts.AccountService;
 import com.kannane.webservice.accounts.AccountsController;
+import com.kannane.webservice.accounts.BalanceIndex;
+import com.kannane.webservice.accounts.ChangeFeed;
 import com.kannane.webservice.accounts.InMemoryAccountService;
+import com.kannane.webservice.accounts.Ledger;
+import com.kannane.webservice.accounts.NameIndex;
+import com.kannane.webservice.accounts.StoreMode;
+import com.kannane.webservice.binary.BinaryServer;
+import com.kannane.webservice.journal.FsyncPolicy;
+import com.kannane.webservice.journal.Journal;
+import com.kannane.webservice.journal.JournalingAccountService;
+import com.kannane.webservice.journal.Snapshotter;
+import com.kannane.webservice.metrics.Metrics;
+import com.kannane.webservice.replication.ReplicationFollower;
+import com.kannane.webservice.replication.ReplicationLeader;
+import com.kannane.webservice.replication.ReplicationNode;
+import com.kannane.webservice.response.AccountResponseCache;
 import com.kannane.webservice.response.JsonTransformer;
+import com.kannane.webservice.response.ResponseWriter;
+import spark.Route;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.BiConsumer;
 
 import static spark.Spark.*;
 
@@ -15,33 +46,283 @@ public class Server {
     /**
      * In real world this will be via a Dependency Injection framework like GUICE *NOT SPRING*
      */
-    private final AccountsController accountsController = new AccountsController(new InMemoryAccountService());
+    private final AccountsController accountsController;
+    private final ReplicationNode replication;
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl admission;
+    private final StreamLimit changeStreams;
 
-    public static void main(String[] args) {
-        new Server().startRouting();
+    public Server() {
+        this(new InMemoryAccountService());
+    }
+
+    public Server(AccountService accountService) {
+        this(accountService, null);
+    }
+
+    public Server(AccountService accountService, ReplicationNode replication) {
+        this.accountsController = new AccountsController(accountService,
+                new AccountResponseCache(Integer.getInteger("accounts.cache.size", 1 << 16)),
+                balanceIndex(accountService), nameIndex(accountService), ledger(accountService),
+                changeFeed(accountService));
+        this.replication = replication;
+        this.admission = admissionControl();
+        this.changeStreams = changeStreams();
+    }
+
+    public static void main(String[] args) throws IOException {
+        StoreMode storeMode = StoreMode.fromProperty(System.getProperty("accounts.store"));
+        String role = System.getProperty("accounts.replication");
+        AccountService accountService;
+        ReplicationNode replication = null;
+        String journalPath = System.getProperty("accounts.journal");
+        Integer binaryPort = Integer.getInteger("accounts.binary.port");
+        if (binaryPort != null && journalPath != null && !"follower".equalsIgnoreCase(role)
+                && FsyncPolicy.fromProperty(System.getProperty("accounts.fsync")) == FsyncPolicy.EVERY_COMMIT) {
+            throw new IllegalStateException("The binary port runs requests on its event loops, which a journal forcing "
+                    + "every commit would stall, needs -Daccounts.fsync=periodic or none");
+        }
+        if ("follower".equalsIgnoreCase(role)) {
+            String snapshots = System.getProperty("accounts.replication.snapshots");
+            ReplicationFollower follower = new ReplicationFollower(storeMode,
+                    leaderAddress(System.getProperty("accounts.replication.leader", "localhost:4568")),
+                    snapshots == null ? Files.createTempDirectory("replica") : Paths.get(snapshots));
+            accountService = follower;
+            replication = follower;
+        } else if (journalPath != null) {
+            JournalingAccountService journaled = openJournaled(storeMode, Paths.get(journalPath));
+            accountService = journaled;
+            if ("leader".equalsIgnoreCase(role)) {
+                String snapshots = System.getProperty("accounts.snapshots");
+                replication = new ReplicationLeader(journaled.getJournal(),
+                        snapshots == null ? null : Paths.get(snapshots),
+                        Integer.getInteger("accounts.replication.port", 4568));
+            }
+        } else if ("leader".equalsIgnoreCase(role)) {
+            throw new IllegalStateException("A replication leader streams its journal, needs -Daccounts.journal");
+        } else {
+            accountService = configureEvents(storeMode.createService());
+        }
+        port(Integer.getInteger("accounts.port", 4567));
+        ThreadMode threadMode = ThreadMode.fromProperty(System.getProperty("accounts.threads"));
+        useThreads(threadMode, Integer.getInteger("accounts.threads.max", threadMode.getDefaultMaxThreads()));
+        new Server(accountService, replication).startRouting();
+        if (binaryPort != null) {
+            new BinaryServer(accountService, binaryPort,
+                    Integer.getInteger("accounts.binary.threads", Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    /**
+     * Serves requests on a pool of the given mode, must be called before the routes are set up
+     */
+    public static void useThreads(ThreadMode threadMode, int maxThreads) {
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                new EmbeddedJettyFactory().withThreadPool(threadMode.createThreadPool(maxThreads)));
+    }
+
+    /**
+     * -Daccounts.events=async moves listener notification off the request threads
+     */
+    private static AbstractAccountService configureEvents(AbstractAccountService store) {
+        if ("async".equalsIgnoreCase(System.getProperty("accounts.events"))) {
+            store.enableAsyncDispatch(Integer.getInteger("accounts.events.buffer", 1 << 16),
+                    Integer.getInteger("accounts.events.consumers", 1));
+        }
+        return store;
+    }
+
+    /**
+     * Boots from the latest snapshot (if snapshots are enabled) plus the journal written after it
+     */
+    private static JournalingAccountService openJournaled(StoreMode storeMode, Path journalPath) throws IOException {
+        Journal journal = Journal.open(journalPath, FsyncPolicy.fromProperty(System.getProperty("accounts.fsync")),
+                Long.getLong("accounts.fsync.interval", 100));
+        String snapshotDirectory = System.getProperty("accounts.snapshots");
+        if (snapshotDirectory == null) {
+            return new JournalingAccountService(configureEvents(storeMode.createService()), journal);
+        }
+        Path directory = Paths.get(snapshotDirectory);
+        AccountSnapshot snapshot = AccountSnapshot.latest(directory);
+        AbstractAccountService store = configureEvents(snapshot == null
+                ? storeMode.createService() : storeMode.createService(snapshot));
+        JournalingAccountService service = new JournalingAccountService(store, journal,
+                snapshot == null ? 0 : snapshot.getJournalPosition());
+        new Snapshotter(directory, journal).start(Long.getLong("accounts.snapshot.interval", 60_000));
+        return service;
     }
 
     public void startRouting() {
+        JsonTransformer json = new JsonTransformer();
         before((request, response) -> response.header("Content-Type", "application/json"));
-        get("/", (req, res) -> "This is the root of the app. Please visit individual paths/resources");
-        get("/account/:id", (req, res) -> accountsController.loadAccount(req), new JsonTransformer());
-        put("/account", (req, res) -> accountsController.createAccount(req), new JsonTransformer());
-        delete("/account/:id", (req, res) -> accountsController.deleteAccount(req), new JsonTransformer());
-        post("/transfer/from/:from/to/:to/amount/:amount",
-                (req, res) -> accountsController.transferMoney(req), new JsonTransformer());
+        route(Spark::get, "GET", "/",
+                (req, res) -> "This is the root of the app. Please visit individual paths/resources", null);
+        route(Spark::get, "GET", "/account/:id", accountsController::loadAccount, json);
+        route(Spark::get, "GET", "/account/:id/transactions", accountsController::transactions, null);
+        route(Spark::put, "PUT", "/account", (req, res) -> accountsController.createAccount(req), json);
+        route(Spark::delete, "DELETE", "/account/:id", (req, res) -> accountsController.deleteAccount(req), json);
+        route(Spark::post, "POST", "/transfer/from/:from/to/:to/amount/:amount",
+                accountsController::transferMoney, json);
+        route(Spark::post, "POST", "/transfers", (req, res) -> accountsController.transferBatch(req), json);
+        route(Spark::post, "POST", "/accounts/import", accountsController::importAccounts, null, false);
+        route(Spark::get, "GET", "/accounts", (req, res) -> accountsController.listAccounts(req), json);
+        route(Spark::get, "GET", "/accounts/top", (req, res) -> accountsController.topAccounts(req), json);
+        route(Spark::get, "GET", "/accounts/summary", (req, res) -> accountsController.accountSummary(), json);
+        route(Spark::get, "GET", "/accounts/search", accountsController::searchAccounts, null);
+        route(Spark::get, "GET", "/accounts/changes", changeStreams.admit(accountsController::changes), null, false);
+        if (replication instanceof ReplicationFollower) {
+            ReplicationFollower follower = (ReplicationFollower) replication;
+            before((request, response) -> response.header(ReplicationFollower.LAG_HEADER,
+                    Long.toString(follower.getLagMillis())));
+        }
+        if (replication != null) {
+            route(Spark::get, "GET", "/replication", (req, res) -> replication.status(), json);
+        }
+        get("/metrics", (req, res) -> {
+            res.type(Metrics.CONTENT_TYPE);
+            return metrics.render();
+        });
         exception(Exception.class, (e, request, response) -> {
-            int statusCode = 500;
-            if (e instanceof ServiceException) {
-                statusCode = ((ServiceException) e).getHttpErrorCode();
+            response.status(ServiceException.statusOf(e));
+            int retryAfter = ServiceException.retryAfterOf(e);
+            if (retryAfter > 0) {
+                response.header("Retry-After", Integer.toString(retryAfter));
             }
-            response.status(statusCode);
-            Map<String, String> messages = new HashMap<>();
-            messages.put("exception", e.getClass().getName());
-            messages.put("message", e.getMessage());
             //We can optionally/in debug mode show the entire stack trace to the user
-            Gson gson = new Gson();
-            response.body(gson.toJson(messages));
+            try {
+                json.writeError(e, response);
+            } catch (IOException writeFailure) {
+                throw new UncheckedIOException(writeFailure);
+            }
+            response.body("");
         });
     }
 
+    /**
+     * Indexes balances when -Daccounts.index.balance=true. Followers swap their store for every snapshot they load
+     * and keep no index.
+     */
+    private static BalanceIndex balanceIndex(AccountService accountService) {
+        AbstractAccountService store = indexedStore(accountService, "accounts.index.balance");
+        return store == null ? null : BalanceIndex.attach(store);
+    }
+
+    /**
+     * Indexes names for prefix searches when -Daccounts.index.name=true, followers keep no index either
+     */
+    private NameIndex nameIndex(AccountService accountService) {
+        AbstractAccountService store = indexedStore(accountService, "accounts.index.name");
+        if (store == null) {
+            return null;
+        }
+        NameIndex index = NameIndex.attach(store);
+        metrics.gauge("accounts_name_index_bytes", "Approximate heap held by the name index, names excluded",
+                index::footprint);
+        metrics.gauge("accounts_name_index_entries", "Accounts in the name index", index::size);
+        return index;
+    }
+
+    /**
+     * Records transfers for account histories when -Daccounts.ledger=true, followers keep no ledger
+     */
+    private Ledger ledger(AccountService accountService) {
+        AbstractAccountService store = indexedStore(accountService, "accounts.ledger");
+        if (store == null) {
+            return null;
+        }
+        Ledger ledger = Ledger.attach(store);
+        metrics.gauge("accounts_ledger_entries", "Transfers recorded in the ledger", ledger::size);
+        metrics.gauge("accounts_ledger_bytes", "Approximate heap held by the ledger and its account indexes",
+                ledger::footprint);
+        metrics.gauge("accounts_ledger_bytes_per_entry", "Ledger heap per recorded transfer",
+                ledger::bytesPerEntry);
+        return ledger;
+    }
+
+    /**
+     * Keeps the latest -Daccounts.changes.retention changes for GET /accounts/changes when -Daccounts.changes=true,
+     * followers keep no feed
+     */
+    private ChangeFeed changeFeed(AccountService accountService) {
+        AbstractAccountService store = indexedStore(accountService, "accounts.changes");
+        if (store == null) {
+            return null;
+        }
+        ChangeFeed feed = ChangeFeed.attach(store, Integer.getInteger("accounts.changes.retention", 1 << 16));
+        metrics.gauge("accounts_changes_latest", "Number of the latest change in the change feed", feed::latest);
+        return feed;
+    }
+
+    /**
+     * Sheds load past an in-flight limit that adapts to latency unless -Daccounts.admission=false, and limits the
+     * requests per second for each account when -Daccounts.admission.account.rate is set
+     */
+    private AdmissionControl admissionControl() {
+        if (!Boolean.parseBoolean(System.getProperty("accounts.admission", "true"))) {
+            return null;
+        }
+        AdaptiveLimit limit = new AdaptiveLimit(Integer.getInteger("accounts.admission.limit", 32),
+                Integer.getInteger("accounts.admission.limit.min", 4),
+                Integer.getInteger("accounts.admission.limit.max", 1000));
+        String rate = System.getProperty("accounts.admission.account.rate");
+        AccountRateLimiter accounts = rate == null ? null : new AccountRateLimiter(Double.parseDouble(rate),
+                Integer.getInteger("accounts.admission.account.burst", 100),
+                Integer.getInteger("accounts.admission.account.slots", 1 << 16));
+        metrics.gauge("accounts_admission_limit", "Requests let in at once, adapted to the latency", limit::getLimit);
+        metrics.gauge("accounts_admission_in_flight", "Requests let in and not answered yet", limit::getInFlight);
+        return new AdmissionControl(limit, accounts);
+    }
+
+    /**
+     * At most -Daccounts.changes.streams change streams at once, each holds a server thread while it is open
+     */
+    private StreamLimit changeStreams() {
+        StreamLimit streams = new StreamLimit(Integer.getInteger("accounts.changes.streams", 32));
+        metrics.gauge("accounts_changes_streams", "Change streams open", streams::getOpen);
+        return streams;
+    }
+
+    /**
+     * The store to attach an index, ledger or feed to if the property turns it on. They are off by default: they are
+     * kept up to date while a mutation holds its account locks, unless -Daccounts.events=async delivers the events on
+     * the dispatcher threads, and the ledger appends under the locks either way.
+     */
+    private static AbstractAccountService indexedStore(AccountService accountService, String property) {
+        if (!Boolean.parseBoolean(System.getProperty(property, "false"))) {
+            return null;
+        }
+        if (accountService instanceof JournalingAccountService) {
+            return ((JournalingAccountService) accountService).getStore();
+        }
+        return accountService instanceof AbstractAccountService ? (AbstractAccountService) accountService : null;
+    }
+
+    /**
+     * host:port of the leader a follower replicates from
+     */
+    private static InetSocketAddress leaderAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        return new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void route(BiConsumer<String, Route> register, String method, String path, Route route,
+                       ResponseWriter writer) {
+        route(register, method, path, route, writer, true);
+    }
+
+    /**
+     * Registers a route that records its latencies and statuses, the writer is optional. Bulk and streaming routes,
+     * whose time follows the size of the request or how long the client listens, are not admitted, their latency
+     * would throw the limit off.
+     */
+    private void route(BiConsumer<String, Route> register, String method, String path, Route route,
+                       ResponseWriter writer, boolean admitted) {
+        Route served = admitted && admission != null ? admission.admit(route) : route;
+        register.accept(path, metrics.route(method, path).timed(served, writer));
+    }
+
 }
@@ -5,6 +5,7 @@ package com.kannane.webservice;
  */
 public class ServiceException extends RuntimeException {
     private final int httpErrorCode;
+    private final int retryAfterSeconds;
 
     public ServiceException(String message) {
         this(message, 500);
@@ -13,9 +14,47 @@ public class ServiceException extends RuntimeException {
     public ServiceException(String message, int httpErrorCode) {
         super(message);
         this.httpErrorCode = httpErrorCode;
+        this.retryAfterSeconds = 0;
+    }
+
+    /**
+     * Without a stack trace the exception is cheap enough to create once and share, for failures that are expected
+     */
+    public ServiceException(String message, int httpErrorCode, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+        this.httpErrorCode = httpErrorCode;
+        this.retryAfterSeconds = 0;
+    }
+
+    /**
+     * A refusal the client should retry after the given seconds, sent as a Retry-After header. Refusals come in
+     * numbers under load, so there is no stack trace.
+     */
+    public ServiceException(String message, int httpErrorCode, int retryAfterSeconds) {
+        super(message, null, false, false);
+        this.httpErrorCode = httpErrorCode;
+        this.retryAfterSeconds = retryAfterSeconds;
     }
 
     public int getHttpErrorCode() {
         return httpErrorCode;
     }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * The status a failed request is answered with, 500 for anything that is not a service exception
+     */
+    public static int statusOf(Throwable e) {
+        return e instanceof ServiceException ? ((ServiceException) e).getHttpErrorCode() : 500;
+    }
+
+    /**
+     * Seconds after which a failed request is worth retrying, 0 when it is not
+     */
+    public static int retryAfterOf(Throwable e) {
+        return e instanceof ServiceException ? ((ServiceException) e).getRetryAfterSeconds() : 0;
+    }
 }
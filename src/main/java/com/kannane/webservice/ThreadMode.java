@@ -0,0 +1,45 @@
+package com.kannane.webservice;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * The threads requests are served on. Selected at startup with -Daccounts.threads=&lt;mode&gt;, the cap with
+ * -Daccounts.threads.max=&lt;n&gt;
+ */
+public enum ThreadMode {
+    /**
+     * Jetty's pool of platform threads, a request blocked on a lock holds one of them until it is done
+     */
+    PLATFORM(200) {
+        @Override
+        public ThreadPool createThreadPool(int maxThreads) {
+            return new QueuedThreadPool(maxThreads, Math.min(8, maxThreads));
+        }
+    },
+    /**
+     * One virtual thread per request with a cap on how many run at once, needs Java 21
+     */
+    VIRTUAL(10_000) {
+        @Override
+        public ThreadPool createThreadPool(int maxThreads) {
+            return new VirtualThreadPool(maxThreads);
+        }
+    };
+
+    private final int defaultMaxThreads;
+
+    ThreadMode(int defaultMaxThreads) {
+        this.defaultMaxThreads = defaultMaxThreads;
+    }
+
+    public abstract ThreadPool createThreadPool(int maxThreads);
+
+    public int getDefaultMaxThreads() {
+        return defaultMaxThreads;
+    }
+
+    public static ThreadMode fromProperty(String value) {
+        return value == null ? PLATFORM : valueOf(value.trim().toUpperCase());
+    }
+}
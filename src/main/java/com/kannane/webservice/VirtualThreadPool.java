@@ -0,0 +1,177 @@
+package com.kannane.webservice;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPoolBudget;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Jetty thread pool that starts a virtual thread for every task, so a request blocked on an account lock or the
+ * journal parks cheaply instead of holding one of a few hundred platform threads.
+ * <p>
+ * At most maxConcurrency tasks run at once, the rest wait for a permit on their own virtual thread in arrival order.
+ * Jetty leases threads from the pool's budget for its acceptor and selector loops, which never finish, every lease
+ * adds as many permits so the cap only applies to request work.
+ * <p>
+ * Virtual threads need Java 21, the pool looks them up reflectively so the rest of the server still runs on Java 8.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool.SizedThreadPool {
+
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private final int maxConcurrency;
+    private final Permits permits;
+    private final AtomicInteger running = new AtomicInteger();
+    private final ThreadPoolBudget budget;
+
+    public VirtualThreadPool(int maxConcurrency) {
+        if (VIRTUAL_THREADS == null) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("The concurrency cap must be positive [" + maxConcurrency + "]");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Permits(maxConcurrency);
+        this.budget = new ThreadPoolBudget(this) {
+            @Override
+            public Lease leaseTo(Object leasee, int threads) {
+                Lease lease = super.leaseTo(leasee, threads);
+                permits.release(threads);
+                return new Lease() {
+                    @Override
+                    public int getThreads() {
+                        return threads;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        permits.reduce(threads);
+                        lease.close();
+                    }
+                };
+            }
+        };
+    }
+
+    public static boolean isSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!isRunning()) {
+            throw new IllegalStateException("Thread pool is " + getState());
+        }
+        VIRTUAL_THREADS.newThread(() -> {
+            permits.acquireUninterruptibly();
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+                permits.release();
+            }
+        }).start();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        synchronized (this) {
+            while (isRunning()) {
+                wait();
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tasks currently holding a permit, including Jetty's own loops
+     */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /**
+     * Virtual threads are never kept around once their task is done
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    /**
+     * True while new requests have to wait for a permit
+     */
+    @Override
+    public boolean isLowOnThreads() {
+        return permits.availablePermits() == 0;
+    }
+
+    @Override
+    public int getMinThreads() {
+        return 0;
+    }
+
+    /**
+     * The request cap plus the threads leased to Jetty's loops, which is what Jetty checks its needs against
+     */
+    @Override
+    public int getMaxThreads() {
+        return maxConcurrency + budget.getLeasedThreads();
+    }
+
+    @Override
+    public void setMinThreads(int threads) {
+        // Nothing is pooled, there is no minimum to keep
+    }
+
+    @Override
+    public void setMaxThreads(int threads) {
+        throw new UnsupportedOperationException("The concurrency cap is fixed when the pool is created");
+    }
+
+    @Override
+    public ThreadPoolBudget getThreadPoolBudget() {
+        return budget;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    private static final class Permits extends Semaphore {
+        private Permits(int permits) {
+            super(permits, true);
+        }
+
+        private void reduce(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "request-", 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Listener and mutation log plumbing shared by the account stores
+ */
+public abstract class AbstractAccountService implements AccountService {
+
+    /**
+     * What {@link #snapshotOf(Long)} returns for an account a write is under way on
+     */
+    protected static final Account WRITING = new Account(null, null, null);
+    /**
+     * Passes {@link #findAccounts(List)} makes before giving up on accounts that never hold still, the later ones
+     * after a short pause
+     */
+    static final int SNAPSHOT_ATTEMPTS = 1000;
+    private static final int SNAPSHOT_SPINS = 64;
+    private static final long SNAPSHOT_BACKOFF_NANOS = 100_000;
+
+    private final Collection<InMemoryEventListener<Account>> listeners = new CopyOnWriteArrayList<>();
+    private volatile MutationLog mutationLog = MutationLog.NONE;
+    private volatile RingBufferEventDispatcher dispatcher;
+
+    /**
+     * Inserts an account with the id it already has, used when rebuilding a store. Ids handed out by
+     * {@link #createAccount(Account)} afterwards will not collide with it.
+     */
+    public abstract void restoreAccount(Account account);
+
+    /**
+     * Hands every live account to the action without notifying listeners, e.g. to build an index of a store that
+     * already holds accounts. An account changing during the visit may be seen as it was before or after the change.
+     */
+    public abstract void forEachAccount(Consumer<Account> action);
+
+    /**
+     * A copy of the account taken without waiting for writers, null if there is no such account, or
+     * {@link #WRITING} while a write that touches it is under way
+     */
+    protected abstract Account snapshotOf(Long id);
+
+    /**
+     * True if the account is still as it was copied (still missing for a null copy) and no write touches it now. The
+     * check for a write must come before the version is read.
+     */
+    protected abstract boolean unchangedSince(Long id, Account snapshot);
+
+    /**
+     * Copies every account, then checks that none has changed since and none is being written, and starts over
+     * otherwise. A transfer keeps its accounts busy from before its first write to after its last, so one that
+     * spanned the moment between the two passes is caught by one of them, and the copies all stood at that moment.
+     */
+    @Override
+    public List<Account> findAccounts(List<Long> ids) {
+        Account[] copies = new Account[ids.size()];
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            if (copyAll(ids, copies) && unchangedSince(ids, copies)) {
+                List<Account> accounts = new ArrayList<>(copies.length);
+                for (Account copy : copies) {
+                    if (copy != null) {
+                        accounts.add(copy);
+                    }
+                }
+                return accounts;
+            }
+            if (attempt < SNAPSHOT_SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(SNAPSHOT_BACKOFF_NANOS);
+            }
+        }
+        throw new ServiceException("Accounts " + ids + " kept changing while being read, try again", 503);
+    }
+
+    private boolean copyAll(List<Long> ids, Account[] copies) {
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = snapshotOf(ids.get(i));
+            if (copies[i] == WRITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean unchangedSince(List<Long> ids, Account[] copies) {
+        for (int i = 0; i < copies.length; i++) {
+            if (!unchangedSince(ids.get(i), copies[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setMutationLog(MutationLog mutationLog) {
+        this.mutationLog = mutationLog == null ? MutationLog.NONE : mutationLog;
+    }
+
+    /**
+     * Adds a log next to the one already set, both get every record
+     */
+    public synchronized void addMutationLog(MutationLog log) {
+        setMutationLog(MutationLog.both(mutationLog, log));
+    }
+
+    protected MutationLog mutationLog() {
+        return mutationLog;
+    }
+
+    protected void logTransfers(List<Transfer> transfers, List<TransferResult> results) {
+        for (int i = 0; i < transfers.size(); i++) {
+            if (results.get(i).isSuccess()) {
+                Transfer transfer = transfers.get(i);
+                mutationLog.transferred(transfer.getFrom(), transfer.getTo(), transfer.getAmount());
+            }
+        }
+    }
+
+    /**
+     * Delivers listener events on consumer threads through a ring buffer instead of on the thread holding the locks.
+     * Events of one account keep their order. Capacity must be a power of two.
+     */
+    public synchronized void enableAsyncDispatch(int capacity, int consumerThreads) {
+        if (dispatcher == null) {
+            dispatcher = new RingBufferEventDispatcher(listeners, capacity, consumerThreads);
+        }
+    }
+
+    /**
+     * Goes back to notifying listeners synchronously once every event already published has been delivered. Meant
+     * for shutdown or an idle store, events published while switching may be lost.
+     */
+    public synchronized void disableAsyncDispatch() {
+        RingBufferEventDispatcher current = dispatcher;
+        if (current != null) {
+            dispatcher = null;
+            current.close();
+        }
+    }
+
+    /**
+     * Accounts to be created must not have an id yet
+     */
+    protected static void checkNew(Account account) {
+        if (account.getId() != null && account.getId() != 0) {
+            throw new ServiceException("Account already has an ID and cannot be created");
+        }
+    }
+
+    /**
+     * Moves the amount between two accounts whose locks the caller holds, or leaves both alone and says why not
+     */
+    static TransferStatus applyTransfer(Account fromAccount, Account toAccount, double amount) {
+        if (!canCredit(toAccount.getBalanceValue(), amount)) {
+            return TransferStatus.BALANCE_TOO_HIGH;
+        }
+        if (!fromAccount.withdraw(amount)) {
+            return TransferStatus.INSUFFICIENT_FUNDS;
+        }
+        toAccount.deposit(amount);
+        return TransferStatus.OK;
+    }
+
+    /**
+     * The rounding guard: the amount, rounded to the cent as it will be moved, must be positive, not NaN, and must
+     * change the balance it is added to without taking it to infinity. Anything else would make money up or lose it.
+     */
+    static boolean canCredit(double balance, double amount) {
+        double cents = MinorUnits.round(amount);
+        double credited = balance + cents;
+        return cents > 0 && credited != balance && !Double.isInfinite(credited);
+    }
+
+    protected boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    protected void notifyObservers(CrudEventType eventType, Account account) {
+        RingBufferEventDispatcher current = dispatcher;
+        if (current != null) {
+            current.publish(eventType, account);
+        } else if (!listeners.isEmpty()) {
+            listeners.forEach(l -> l.onEvent(eventType, account));
+        }
+    }
+
+    void addListener(InMemoryEventListener<Account> l) {
+        listeners.add(l);
+    }
+}
@@ -1,29 +1,122 @@
 package com.kannane.webservice.accounts;
 
-import com.kannane.webservice.ServiceException;
-
 public class Account {
 
     private final Long id;
     private final String name;
-    private Double balance;
+    /**
+     * A primitive so that transfers change it without boxing
+     */
+    private double balance;
+    private final transient boolean hasBalance;
+    /**
+     * Twice the version, which every change to the balance bumps, plus one while a change is being written. Kept out
+     * of the JSON (requests and responses alike).
+     */
+    private transient volatile long stamp;
+    /**
+     * Created the first time the account turns hot, deposits land in its cells instead of the balance while active
+     */
+    private transient volatile HotBalance hot;
 
     public Account(Long id, String name, Double balance) {
+        this(id, name, balance, 0);
+    }
+
+    Account(Long id, String name, Double balance, long version) {
         this.id = id;
         this.name = name;
+        this.balance = balance == null ? 0 : MinorUnits.round(balance);
+        this.hasBalance = balance != null;
+        this.stamp = version << 1;
+    }
+
+    /**
+     * A detached copy. The version is read before the balance, so a copy racing a write ends up with a version older
+     * than its balance and fails any later check of the version.
+     */
+    Account copy() {
+        long copiedVersion = getVersion();
+        return new Account(id, name, getBalance(), copiedVersion);
+    }
+
+    /**
+     * Returns false and leaves the balance alone if it does not cover the amount. Amounts and balances are rounded
+     * to the cent.
+     */
+    boolean withdraw(double amount) {
+        double cents = MinorUnits.round(amount);
+        if (cents > getBalanceValue()) {
+            return false;
+        }
+        beginWrite();
+        balance = MinorUnits.round(balance - cents);
+        endWrite();
+        return true;
+    }
+
+    void deposit(double amount) {
+        beginWrite();
+        balance = MinorUnits.round(balance + MinorUnits.round(amount));
+        endWrite();
+    }
+
+    /**
+     * Puts back a balance captured earlier, used to undo a partially applied batch. A hot account's stripes must be
+     * held too.
+     */
+    void restoreBalance(double balance) {
+        beginWrite();
+        HotBalance current = hot;
+        if (current != null) {
+            current.reset();
+        }
         this.balance = balance;
+        endWrite();
+    }
+
+    /**
+     * Marks a change in progress, only under the account's write lock
+     */
+    private void beginWrite() {
+        stamp++;
     }
 
-    void withdraw(Double amount) {
-        if (amount > balance) {
-            throw new ServiceException("Could not withdraw [" + amount + "]. " +
-                    "Balance available is only [" + balance + "]");
+    /**
+     * Ends the change and bumps the version
+     */
+    private void endWrite() {
+        stamp++;
+    }
+
+    /**
+     * The cells while the account is hot, null otherwise
+     */
+    HotBalance hotBalance() {
+        HotBalance current = hot;
+        return current != null && current.isActive() ? current : null;
+    }
+
+    /**
+     * Only under the account's write lock
+     */
+    void makeHot(int stripes) {
+        if (hot == null) {
+            hot = new HotBalance(stripes);
         }
-        balance -= amount;
+        hot.setActive(true);
     }
 
-    void deposit(Double amount) {
-        balance += amount;
+    /**
+     * Stops deposits going into the cells, only under the account's write lock and every stripe. The cells keep what
+     * they hold, as their count of deposits is part of the version, and the balance stays their sum plus the
+     * account's own. Cooling down writes no balance, so readers never catch it halfway.
+     */
+    void makeCold() {
+        HotBalance current = hotBalance();
+        if (current != null) {
+            current.setActive(false);
+        }
     }
 
     public Long getId() {
@@ -34,8 +127,52 @@ public class Account {
         return name;
     }
 
+    /**
+     * Boxes the balance, null if the account was given none
+     */
     public Double getBalance() {
-        return balance;
+        return hasBalance() ? getBalanceValue() : null;
+    }
+
+    /**
+     * False for an account made without a balance, like a request missing one
+     */
+    public boolean hasBalance() {
+        return hasBalance;
+    }
+
+    /**
+     * The balance without boxing, 0 if the account was given none
+     */
+    public double getBalanceValue() {
+        HotBalance current = hot;
+        return current == null ? balance : MinorUnits.round(balance + current.sum());
+    }
+
+    /**
+     * Only ever grows while the account lives, readable without the account's lock
+     */
+    public long getVersion() {
+        HotBalance current = hot;
+        long version = stamp >>> 1;
+        return current == null ? version : version + current.changes();
+    }
+
+    /**
+     * The version, or -1 while a change is being written. A balance read between two calls that return the same
+     * version is that version's balance, which {@link #getVersion()} alone does not promise.
+     */
+    public long getStableVersion() {
+        long current = stamp;
+        if ((current & 1) != 0) {
+            return -1;
+        }
+        HotBalance cells = hot;
+        if (cells == null) {
+            return current >>> 1;
+        }
+        long changes = cells.stableChanges();
+        return changes < 0 ? -1 : (current >>> 1) + changes;
     }
 
     @Override
@@ -43,7 +180,7 @@ public class Account {
         final StringBuilder sb = new StringBuilder("Account{");
         sb.append("id=").append(id);
         sb.append(", name='").append(name).append('\'');
-        sb.append(", balance=").append(balance);
+        sb.append(", balance=").append(getBalance());
         sb.append('}');
         return sb.toString();
     }
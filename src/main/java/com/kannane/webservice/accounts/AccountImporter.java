@@ -0,0 +1,224 @@
+package com.kannane.webservice.accounts;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.response.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams accounts into a store from NDJSON, one {"name": "user1", "balance": 10.5} per line, or from CSV, one
+ * name,balance per line with an optional header and double quotes around fields that need them. Lines are read one at
+ * a time and created in batches of {@link #BATCH_SIZE}, so the body is never held in memory and each batch takes one
+ * block of ids.
+ * <p>
+ * The outcome of every line is written back as NDJSON once its batch is in, {"line": 1, "id": 17} or
+ * {"line": 2, "error": "..."}, in line order, followed by {"imported": n, "failed": m}.
+ */
+public class AccountImporter {
+
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+    static final int BATCH_SIZE = 1024;
+    private static final String CSV_HEADER = "name,balance";
+
+    public enum Format {
+        NDJSON,
+        CSV;
+
+        /**
+         * The format query param if there is one, otherwise text/csv bodies are CSV and anything else NDJSON
+         */
+        public static Format of(String param, String contentType) {
+            if (param != null) {
+                try {
+                    return valueOf(param.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new ServiceException("Unknown import format [" + param + "]", 400);
+                }
+            }
+            return contentType != null && contentType.startsWith("text/csv") ? CSV : NDJSON;
+        }
+    }
+
+    private final AccountService accountService;
+    private final Gson gson = new Gson();
+
+    public AccountImporter(AccountService accountService) {
+        this.accountService = accountService;
+    }
+
+    /**
+     * Returns the number of accounts created
+     */
+    public long importAccounts(InputStream in, Format format, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        Batch batch = new Batch(new BufferedOutputStream(out, 1 << 16));
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()
+                    || format == Format.CSV && lineNumber == 1 && line.trim().equalsIgnoreCase(CSV_HEADER)) {
+                continue;
+            }
+            try {
+                batch.add(lineNumber, format == Format.CSV ? parseCsv(line) : parseJson(line));
+            } catch (ServiceException e) {
+                batch.fail(lineNumber, e.getMessage());
+            }
+            if (batch.isFull()) {
+                batch.flush();
+            }
+        }
+        batch.flush();
+        batch.finish();
+        return batch.imported;
+    }
+
+    private Account parseJson(String line) {
+        JsonAccount account;
+        try {
+            account = gson.fromJson(line, JsonAccount.class);
+        } catch (JsonParseException e) {
+            throw new ServiceException("Could not parse account: " + e.getMessage(), 400);
+        }
+        if (account == null || account.name == null || account.balance == null) {
+            throw new ServiceException("Every account needs a name and a balance", 400);
+        }
+        if (account.id != null && account.id != 0) {
+            throw new ServiceException("Account already has an ID and cannot be created", 400);
+        }
+        return new Account(0L, account.name, account.balance);
+    }
+
+    /**
+     * An NDJSON line as Gson reads it, fields left out stay null
+     */
+    private static final class JsonAccount {
+        private Long id;
+        private String name;
+        private Double balance;
+    }
+
+    static Account parseCsv(String line) {
+        List<String> fields = csvFields(line);
+        if (fields.size() != 2) {
+            throw new ServiceException("Expected name,balance but got " + fields.size() + " fields", 400);
+        }
+        try {
+            return new Account(0L, fields.get(0), Double.parseDouble(fields.get(1).trim()));
+        } catch (NumberFormatException e) {
+            throw new ServiceException("Invalid balance [" + fields.get(1) + "]", 400);
+        }
+    }
+
+    /**
+     * Splits on commas outside double quotes, a doubled quote inside quotes is a literal quote
+     */
+    private static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<>(2);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new ServiceException("Unterminated quote", 400);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * The lines read since the last flush, parsed accounts and parse errors kept in line order
+     */
+    private final class Batch {
+        private final OutputStream out;
+        private final List<Account> accounts = new ArrayList<>(BATCH_SIZE);
+        private final int[] lines = new int[BATCH_SIZE];
+        private final String[] errors = new String[BATCH_SIZE];
+        private int size;
+        private long imported;
+        private long failed;
+
+        private Batch(OutputStream out) {
+            this.out = out;
+        }
+
+        private void add(int line, Account account) {
+            lines[size] = line;
+            errors[size++] = null;
+            accounts.add(account);
+        }
+
+        private void fail(int line, String error) {
+            lines[size] = line;
+            errors[size++] = error;
+        }
+
+        private boolean isFull() {
+            return size == BATCH_SIZE;
+        }
+
+        private void flush() throws IOException {
+            List<Account> created = null;
+            String batchError = null;
+            if (!accounts.isEmpty()) {
+                try {
+                    created = accountService.createAccounts(accounts);
+                } catch (ServiceException e) {
+                    batchError = e.getMessage();
+                }
+            }
+            for (int i = 0, next = 0; i < size; i++) {
+                JsonWriter writer = JsonWriter.forThread().beginObject().name("line").value(lines[i]);
+                String error = errors[i] != null ? errors[i] : batchError;
+                if (error == null) {
+                    writer.name("id").value(created.get(next++).getId());
+                    imported++;
+                } else {
+                    writer.name("error").value(error);
+                    failed++;
+                }
+                writer.endObject().writeTo(out);
+                out.write('\n');
+            }
+            out.flush();
+            accounts.clear();
+            size = 0;
+        }
+
+        private void finish() throws IOException {
+            JsonWriter.forThread().beginObject().name("imported").value(imported).name("failed").value(failed)
+                    .endObject().writeTo(out);
+            out.write('\n');
+            out.flush();
+        }
+    }
+}
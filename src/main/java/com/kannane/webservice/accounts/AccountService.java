@@ -1,14 +1,75 @@
 package com.kannane.webservice.accounts;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 public interface AccountService {
 
     Optional<Account> findAccount(final Long id);
 
-    void transferMoney(final Long fromAccountId, final Long toAccountId, final Double amount);
+    /**
+     * The accounts with these ids as they all stood at one instant, in the order asked and without the ids that have
+     * no account, so no transfer between two of them shows half applied. Listeners are not notified. The stores read
+     * without taking locks and read again when a write got in between. This default reads the accounts one at a
+     * time and promises no such instant.
+     */
+    default List<Account> findAccounts(List<Long> ids) {
+        List<Account> accounts = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            findAccount(id).ifPresent(accounts::add);
+        }
+        return accounts;
+    }
+
+    /**
+     * The version of the account, see {@link Account#getVersion()}, or -1 if there is no such account. Stores answer
+     * without locking or copying the account where they can, and without notifying listeners.
+     */
+    default long versionOf(Long id) {
+        return findAccount(id).map(Account::getVersion).orElse(-1L);
+    }
+
+    /**
+     * Transfers the amount, or returns why it could not without changing anything. Expected failures like a missing
+     * account or a balance too low are never thrown.
+     */
+    TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount);
+
+    /**
+     * {@link #tryTransfer(long, long, double)} with the amount in minor units (cents). Stores that keep balances in
+     * minor units take it as it is. The in-memory and columnar stores allocate nothing on this path.
+     */
+    default TransferStatus tryTransferMinor(long fromAccountId, long toAccountId, long minorAmount) {
+        return tryTransfer(fromAccountId, toAccountId, MinorUnits.toMajor(minorAmount));
+    }
+
+    /**
+     * {@link #tryTransfer(long, long, double)} for callers that want a failure thrown, with its details
+     */
+    default void transferMoney(final Long fromAccountId, final Long toAccountId, final Double amount) {
+        tryTransfer(fromAccountId, toAccountId, amount).throwIfFailed(fromAccountId, toAccountId, amount);
+    }
+
+    /**
+     * Applies all transfers while holding the locks of every account involved, acquired once and in id order.
+     * Returns one result per transfer, in ALL_OR_NOTHING mode any failure is thrown and nothing is applied.
+     */
+    List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode);
 
     Account createAccount(Account account);
 
+    /**
+     * Creates the accounts and returns them with their ids, in the same order. Stores create a batch at once where
+     * they can, taking its ids as one block.
+     */
+    default List<Account> createAccounts(List<Account> accounts) {
+        List<Account> created = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            created.add(createAccount(account));
+        }
+        return created;
+    }
+
     Account deleteAccount(Long id);
 }
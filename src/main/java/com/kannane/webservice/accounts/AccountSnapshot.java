@@ -0,0 +1,212 @@
+package com.kannane.webservice.accounts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static com.kannane.webservice.accounts.ColumnarAccountService.PAGE_SIZE;
+
+/**
+ * A point in time copy of an account store in the page layout of {@link ColumnarAccountService}, read and written
+ * through memory mapped regions.
+ * <p>
+ * Layout: a fixed header, then every page as [balances long * PAGE_SIZE][name refs int * PAGE_SIZE]
+ * [live bitmap PAGE_SIZE / 8 bytes], then the raw bytes of the {@link NameArea}. Every page sits at a fixed offset
+ * so a single page can be mapped and loaded on its own.
+ */
+public class AccountSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x41434E53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final long PAGE_BYTES = (long) PAGE_SIZE * (Long.BYTES + Integer.BYTES) + PAGE_SIZE / 8;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long journalPosition;
+    private final long maxId;
+    private final int pageCount;
+    private final long namesOffset;
+    private final int namesLength;
+
+    private AccountSnapshot(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            channel.close();
+            throw new IOException("Not an account snapshot [" + path + "]");
+        }
+        this.journalPosition = header.getLong();
+        this.maxId = header.getLong();
+        this.pageCount = header.getInt();
+        if (header.getInt() != PAGE_SIZE) {
+            channel.close();
+            throw new IOException("Snapshot page size does not match [" + path + "]");
+        }
+        this.namesOffset = header.getLong();
+        this.namesLength = header.getInt();
+    }
+
+    public static AccountSnapshot open(Path path) throws IOException {
+        return new AccountSnapshot(path);
+    }
+
+    /**
+     * The snapshot with the highest journal position in the directory, or null if there is none
+     */
+    public static AccountSnapshot latest(Path directory) throws IOException {
+        Path latest = null;
+        long latestPosition = -1;
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                long position = positionOf(file);
+                if (position > latestPosition) {
+                    latest = file;
+                    latestPosition = position;
+                }
+            }
+        }
+        return latest == null ? null : open(latest);
+    }
+
+    /**
+     * Writes every page of the store to a new snapshot in the directory. The file is written under a temporary name
+     * and moved into place once forced, so a crash never leaves a partial snapshot behind.
+     */
+    public static Path write(ColumnarAccountService store, Path directory, long journalPosition) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve(PREFIX + journalPosition + SUFFIX);
+        Path temp = directory.resolve(PREFIX + journalPosition + SUFFIX + ".tmp");
+        int pageCount = store.pageCount();
+        byte[] names = store.names().copyBytes();
+        long namesOffset = HEADER_SIZE + pageCount * PAGE_BYTES;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int index = 0; index < pageCount; index++) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + index * PAGE_BYTES, PAGE_BYTES);
+                writePage(store.page(index), region);
+                region.force();
+            }
+            if (names.length > 0) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, namesOffset, names.length);
+                region.put(names);
+                region.force();
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(journalPosition).putLong(store.maxId())
+                    .putInt(pageCount).putInt(PAGE_SIZE).putLong(namesOffset).putInt(names.length);
+            header.force();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    /**
+     * Restores every live account into a store one by one, for stores that cannot load pages lazily
+     */
+    public void loadInto(AbstractAccountService store) throws IOException {
+        NameArea names = loadNames();
+        for (int index = 0; index < pageCount; index++) {
+            ColumnarAccountService.Page page = loadPage(index);
+            long firstId = (long) index * PAGE_SIZE + 1;
+            for (int slot = 0; slot < PAGE_SIZE && firstId + slot <= maxId; slot++) {
+                if (page.isLive(slot)) {
+                    store.restoreAccount(new Account(firstId + slot, names.get(page.nameRefs[slot]),
+                            MinorUnits.toMajor(page.balances.get(slot))));
+                }
+            }
+        }
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public static long positionOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    NameArea loadNames() {
+        byte[] bytes = new byte[Math.max(namesLength, 1 << 16)];
+        if (namesLength > 0) {
+            try {
+                channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, namesLength).get(bytes, 0, namesLength);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read names from [" + path + "]", e);
+            }
+        }
+        return new NameArea(bytes, namesLength);
+    }
+
+    ColumnarAccountService.Page loadPage(int index) {
+        ByteBuffer region;
+        try {
+            region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + index * PAGE_BYTES, PAGE_BYTES);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read page [" + index + "] from [" + path + "]", e);
+        }
+        long[] balances = new long[PAGE_SIZE];
+        int[] nameRefs = new int[PAGE_SIZE];
+        boolean[] live = new boolean[PAGE_SIZE];
+        region.asLongBuffer().get(balances);
+        region.position(PAGE_SIZE * Long.BYTES);
+        region.asIntBuffer().get(nameRefs);
+        int bitmap = PAGE_SIZE * (Long.BYTES + Integer.BYTES);
+        for (int slot = 0; slot < PAGE_SIZE; slot++) {
+            live[slot] = (region.get(bitmap + (slot >>> 3)) & (1 << (slot & 7))) != 0;
+        }
+        return new ColumnarAccountService.Page(balances, nameRefs, live);
+    }
+
+    private static void writePage(ColumnarAccountService.Page page, ByteBuffer region) {
+        int bitmap = PAGE_SIZE * (Long.BYTES + Integer.BYTES);
+        for (int slot = 0; slot < PAGE_SIZE; slot++) {
+            region.putLong(slot * Long.BYTES, page.balances.get(slot));
+            region.putInt(PAGE_SIZE * Long.BYTES + slot * Integer.BYTES, page.nameRefs[slot]);
+            if (page.isLive(slot)) {
+                int offset = bitmap + (slot >>> 3);
+                region.put(offset, (byte) (region.get(offset) | (1 << (slot & 7))));
+            }
+        }
+    }
+}
@@ -1,34 +1,411 @@
 package com.kannane.webservice.accounts;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.response.AccountResponseCache;
+import com.kannane.webservice.response.JsonTransformer;
+import com.kannane.webservice.response.JsonWriter;
 import spark.Request;
+import spark.Response;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.Double.parseDouble;
 import static java.lang.Long.parseLong;
 
 public class AccountsController {
 
+    private static final byte[] NOT_MODIFIED = new byte[0];
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int CHANGES_BATCH = 1024;
+    private static final long CHANGES_HEARTBEAT_MILLIS = 15_000;
+    private static final long CHANGES_MIN_PARK_NANOS = 100_000;
+    private static final long CHANGES_MAX_PARK_NANOS = 10_000_000;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final Map<String, String> TRANSFERRED = Collections.singletonMap("success", "true");
+
     private final AccountService accountService;
+    private final AccountResponseCache responseCache;
+    private final BalanceIndex balanceIndex;
+    private final NameIndex nameIndex;
+    private final Ledger ledger;
+    private final ChangeFeed changeFeed;
+    private final AccountImporter importer;
+    private final Map<TransferStatus, byte[]> transferErrors = new EnumMap<>(TransferStatus.class);
+    private final Gson gson = new Gson();
+    /**
+     * Versions start over when a store is rebuilt from a snapshot, so the ETags of one run must not match another's
+     */
+    private final String etagPrefix = "\"" + Long.toString(System.currentTimeMillis(), 36) + "-";
 
-    public AccountsController(AccountService accountService) {
+    /**
+     * Either index, the ledger and the change feed may be null, the queries needing them then answer 404
+     */
+    public AccountsController(AccountService accountService, AccountResponseCache responseCache,
+                              BalanceIndex balanceIndex, NameIndex nameIndex, Ledger ledger,
+                              ChangeFeed changeFeed) {
         this.accountService = accountService;
+        this.responseCache = responseCache;
+        this.balanceIndex = balanceIndex;
+        this.nameIndex = nameIndex;
+        this.ledger = ledger;
+        this.changeFeed = changeFeed;
+        this.importer = new AccountImporter(accountService);
+        for (TransferStatus status : TransferStatus.values()) {
+            if (!status.isSuccess()) {
+                transferErrors.put(status, JsonTransformer.renderError(status.error()));
+            }
+        }
     }
 
-    public Account loadAccount(Request request) {
+    /**
+     * Tags the account with its version. A matching If-None-Match is answered with a 304 from the version alone,
+     * without locking, loading or rendering the account, and an unchanged account is rendered once and then served
+     * from the response cache. Returns the rendered JSON.
+     */
+    public byte[] loadAccount(Request request, Response response) {
         Long id = parseLong(request.params(":id"));
-        Optional<Account> account = accountService.findAccount(id);
-        account.orElseThrow(() -> new ServiceException("No account found for id [" + id + "]", 404));
-        return account.get();
+        long version = accountService.versionOf(id);
+        if (version >= 0) {
+            String etag = etag(version);
+            if (matches(request.headers("If-None-Match"), etag)) {
+                response.header("ETag", etag);
+                response.status(304);
+                return NOT_MODIFIED;
+            }
+            byte[] cached = responseCache.get(id, version);
+            if (cached != null) {
+                response.header("ETag", etag);
+                return cached;
+            }
+        }
+        Account account = accountService.findAccount(id)
+                .orElseThrow(() -> new ServiceException("No account found for id [" + id + "]", 404));
+        long loaded = account.getStableVersion();
+        byte[] json = responseCache.render(account);
+        if (loaded >= 0 && account.getStableVersion() == loaded) {
+            response.header("ETag", etag(loaded));
+        }
+        return json;
+    }
+
+    private String etag(long version) {
+        return etagPrefix + version + '"';
+    }
+
+    /**
+     * If-None-Match holds * or a list of tags, weak ones included as a GET only needs the weak comparison
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        if (ifNoneMatch.equals(etag)) {
+            return true;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A failed transfer is answered with its status' error, rendered once when the controller was built, so an
+     * expected failure costs no more than a success. The amount goes to the store in minor units, rounded to the cent.
+     */
+    public Object transferMoney(Request req, Response response) {
+        TransferStatus status = accountService.tryTransferMinor(parseLong(req.params(":from")),
+                parseLong(req.params(":to")), MinorUnits.toMinor(parseDouble(req.params(":amount"))));
+        if (status.isSuccess()) {
+            return TRANSFERRED;
+        }
+        response.status(status.getHttpErrorCode());
+        return transferErrors.get(status);
+    }
+
+    /**
+     * Body is a JSON array of {"from": 1, "to": 2, "amount": 20.0}, the mode query param picks all-or-nothing
+     * (the default) or per-item results
+     */
+    public Map<String, ?> transferBatch(Request req) {
+        TransferBatchMode mode = TransferBatchMode.fromParam(req.queryParams("mode"));
+        Transfer[] transfers;
+        try {
+            transfers = gson.fromJson(req.body(), Transfer[].class);
+        } catch (JsonParseException e) {
+            throw new ServiceException("Could not parse transfers: " + e.getMessage(), 400);
+        }
+        if (transfers == null || transfers.length == 0) {
+            throw new ServiceException("No transfers in the request", 400);
+        }
+        List<TransferResult> results = accountService.transferBatch(Arrays.asList(transfers), mode);
+        if (mode == TransferBatchMode.ALL_OR_NOTHING) {
+            return Collections.singletonMap("success", "true");
+        }
+        return Collections.singletonMap("results", results);
+    }
+
+    /**
+     * GET /accounts: the accounts named by the ids query param if there is one, otherwise accounts by balance
+     */
+    public Map<String, Object> listAccounts(Request request) {
+        String ids = request.queryParams("ids");
+        return ids == null ? accountsByBalance(request) : accountsById(ids);
+    }
+
+    /**
+     * The accounts with the comma separated ids (at most a page of them) as they all stood at one instant, in the
+     * order asked. Ids without an account are left out, so a dashboard's totals add up in one round trip.
+     */
+    public Map<String, Object> accountsById(String ids) {
+        String[] values = ids.split(",");
+        if (values.length > MAX_PAGE_SIZE) {
+            throw new ServiceException("At most " + MAX_PAGE_SIZE + " ids can be read at once", 400);
+        }
+        List<Long> parsed = new ArrayList<>(values.length);
+        for (String value : values) {
+            try {
+                parsed.add(parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new ServiceException("Invalid account id [" + value + "]", 400);
+            }
+        }
+        return Collections.singletonMap("accounts", accountService.findAccounts(parsed));
+    }
+
+    /**
+     * Accounts with a balance below the balanceBelow query param, or all accounts without it, lowest balance first
+     * and at most limit (default 100) per page. While there may be more the page carries a next cursor to pass back
+     * as the after query param.
+     */
+    public Map<String, Object> accountsByBalance(Request request) {
+        String below = request.queryParams("balanceBelow");
+        int limit = pageSize(request.queryParams("limit"), 100);
+        String after = request.queryParams("after");
+        BalanceIndex.Cursor cursor = null;
+        if (after != null) {
+            cursor = BalanceIndex.Cursor.parse(after);
+            if (cursor == null) {
+                throw new ServiceException("Invalid cursor [" + after + "]", 400);
+            }
+        }
+        List<Account> accounts = balanceIndex().below(below == null ? Double.POSITIVE_INFINITY : parseDouble(below),
+                cursor, limit);
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("accounts", accounts);
+        if (accounts.size() == limit) {
+            page.put("next", BalanceIndex.Cursor.after(accounts.get(limit - 1)).toString());
+        }
+        return page;
     }
 
-    public Map<String, String> transferMoney(Request req) {
-        accountService.transferMoney(parseLong(req.params(":from")),
-                parseLong(req.params(":to")), parseDouble(req.params(":amount")));
-        return Collections.singletonMap("success", "true");
+    /**
+     * The n (default 10) accounts with the highest balances, highest first
+     */
+    public Map<String, Object> topAccounts(Request request) {
+        return Collections.singletonMap("accounts", balanceIndex().top(pageSize(request.queryParams("n"), 10)));
+    }
+
+    public Map<String, Object> accountSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", balanceIndex().count());
+        summary.put("totalBalance", balanceIndex().totalBalance());
+        return summary;
+    }
+
+    /**
+     * Streams up to limit (default 100) accounts whose name starts with the prefix query param as NDJSON, one account
+     * per line ordered by name and id, each written as soon as it is loaded
+     */
+    public Object searchAccounts(Request request, Response response) throws IOException {
+        String prefix = request.queryParams("prefix");
+        if (prefix == null) {
+            throw new ServiceException("Searching needs a prefix", 400);
+        }
+        int limit = pageSize(request.queryParams("limit"), 100);
+        if (nameIndex == null) {
+            throw new ServiceException("This server keeps no name index", 404);
+        }
+        response.type(AccountImporter.CONTENT_TYPE);
+        OutputStream out = new BufferedOutputStream(response.raw().getOutputStream(), 1 << 13);
+        try {
+            nameIndex.search(prefix, limit, id -> accountService.findAccount(id).ifPresent(account -> {
+                try {
+                    out.write(responseCache.render(account));
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+        return "";
+    }
+
+    /**
+     * The account's transfers, newest first and at most limit (default 100) of them, as
+     * {"transactions": [{"id", "time", "from", "to", "amount"}...], "next": position}. Pass next back as before for
+     * the following page, it is left out on the last one. Entries are written to the response as they are read, a
+     * page is never held in memory.
+     */
+    public Object transactions(Request request, Response response) throws IOException {
+        long id = parseLong(request.params(":id"));
+        String before = request.queryParams("before");
+        int limit = pageSize(request.queryParams("limit"), 100);
+        if (ledger == null) {
+            throw new ServiceException("This server keeps no ledger", 404);
+        }
+        if (ledger.count(id) == 0 && accountService.versionOf(id) < 0) {
+            throw new ServiceException("No account found for id [" + id + "]", 404);
+        }
+        OutputStream out = new BufferedOutputStream(response.raw().getOutputStream(), 1 << 13);
+        JsonWriter writer = JsonWriter.forThread();
+        writer.beginObject().name("transactions").beginArray();
+        long next;
+        try {
+            next = ledger.history(id, before == null ? -1 : parseLong(before), limit,
+                    (entry, time, from, to, amount) -> {
+                        writer.beginObject().name("id").value(entry).name("time").value(time)
+                                .name("from").value(from).name("to").value(to).name("amount").value(amount)
+                                .endObject();
+                        if (writer.size() >= 1 << 12) {
+                            try {
+                                writer.drainTo(out);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.endArray();
+        if (next >= 0) {
+            writer.name("next").value(next);
+        }
+        writer.endObject().drainTo(out);
+        out.flush();
+        return "";
+    }
+
+    /**
+     * Streams account changes as server-sent events, each with its number as the id, its type as the event and
+     * {"id", "name", "balance", "version"} as the data. The stream starts after the change given as after or in a
+     * Last-Event-ID header, or at the next change without either, and ends after limit changes if one is given.
+     * Whatever has been recorded is sent in one flush, an idle stream gets a comment every
+     * {@value #CHANGES_HEARTBEAT_MILLIS}ms. A start the feed no longer holds is answered 410, a stream that falls
+     * that far behind ends with an error event.
+     */
+    public Object changes(Request request, Response response) throws IOException {
+        if (changeFeed == null) {
+            throw new ServiceException("This server keeps no change feed", 404);
+        }
+        String after = request.queryParams("after");
+        if (after == null) {
+            after = request.headers("Last-Event-ID");
+        }
+        long position = after == null ? changeFeed.latest() : parseLong(after);
+        String limitValue = request.queryParams("limit");
+        long limit = limitValue == null ? Long.MAX_VALUE : parseLong(limitValue);
+        if (position < 0 || limit < 1) {
+            throw new ServiceException("The start must not be negative and the limit must be positive", 400);
+        }
+        if (position < changeFeed.oldest() - 1) {
+            throw new ServiceException("Changes after [" + position + "] are no longer kept, the oldest is ["
+                    + changeFeed.oldest() + "]", 410);
+        }
+        response.type("text/event-stream");
+        response.header("Cache-Control", "no-cache");
+        OutputStream out = new BufferedOutputStream(response.raw().getOutputStream(), 1 << 13);
+        out.flush();
+        ChangeFeed.Visitor writeEvent = (sequence, type, id, name, balance, version) -> {
+            try {
+                JsonWriter writer = JsonWriter.forThread().raw("id: ").value(sequence).raw("\nevent: ").raw(type)
+                        .raw("\ndata: ").beginObject().name("id").value(id);
+                if (name != null) {
+                    writer.name("name").value(name);
+                }
+                writer.name("balance").value(balance).name("version").value(version).endObject().raw("\n\n")
+                        .writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        long sent = 0;
+        long idleSince = System.nanoTime();
+        long parkNanos = CHANGES_MIN_PARK_NANOS;
+        try {
+            while (sent < limit) {
+                int read = changeFeed.read(position, (int) Math.min(CHANGES_BATCH, limit - sent), writeEvent);
+                if (read < 0) {
+                    out.write(("event: error\ndata: {\"error\":\"Fell behind the change feed after [" + position
+                            + "], the oldest kept is [" + changeFeed.oldest() + "]\"}\n\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                if (read > 0) {
+                    position += read;
+                    sent += read;
+                    out.flush();
+                    idleSince = System.nanoTime();
+                    parkNanos = CHANGES_MIN_PARK_NANOS;
+                    continue;
+                }
+                if (System.nanoTime() - idleSince > TimeUnit.MILLISECONDS.toNanos(CHANGES_HEARTBEAT_MILLIS)) {
+                    out.write(HEARTBEAT);
+                    out.flush();
+                    idleSince = System.nanoTime();
+                }
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, CHANGES_MAX_PARK_NANOS);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+        return "";
+    }
+
+    private BalanceIndex balanceIndex() {
+        if (balanceIndex == null) {
+            throw new ServiceException("This server keeps no balance index", 404);
+        }
+        return balanceIndex;
+    }
+
+    private static int pageSize(String value, int defaultSize) {
+        if (value == null) {
+            return defaultSize;
+        }
+        int size = Integer.parseInt(value);
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new ServiceException("Page size must be between 1 and " + MAX_PAGE_SIZE + " [" + value + "]", 400);
+        }
+        return size;
     }
 
     public Account createAccount(Request request) {
@@ -36,6 +413,27 @@ public class AccountsController {
         return accountService.createAccount(account);
     }
 
+    /**
+     * Streams the body into the store and the results back, see {@link AccountImporter} for both formats
+     */
+    public Object importAccounts(Request request, Response response) throws IOException {
+        AccountImporter.Format format = AccountImporter.Format.of(request.queryParams("format"),
+                request.contentType());
+        response.type(AccountImporter.CONTENT_TYPE);
+        importer.importAccounts(unwrap(request.raw()).getInputStream(), format, response.raw().getOutputStream());
+        return "";
+    }
+
+    /**
+     * Spark's wrapper reads and caches the whole body on first access, the request it wraps streams it
+     */
+    private static ServletRequest unwrap(ServletRequest request) {
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+        return request;
+    }
+
     public Account deleteAccount(Request request) {
         return accountService.deleteAccount(parseLong(request.params(":id")));
     }
@@ -0,0 +1,233 @@
+package com.kannane.webservice.accounts;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A secondary index of accounts ordered by balance, kept up to date from the store's events, plus the number of
+ * accounts and their total balance. An update is one skip list insert and one remove. With the store's synchronous
+ * events it happens while the transfer holds its locks, with async events it happens on the dispatcher threads.
+ * <p>
+ * The index follows the store, so with async events it can trail it by the events not yet delivered. Each account's
+ * entry only ever moves to a newer version, which makes the order events of one account arrive in irrelevant.
+ * <p>
+ * A deleted account's entry is dropped. Stores deliver an account's events in order and never hand a deleted id out
+ * again, so only the accounts read while the index is being filled could come back after their deletion. Ids
+ * deleted meanwhile are remembered until filling is done.
+ */
+public class BalanceIndex implements InMemoryEventListener<Account> {
+
+    private static final Comparator<Entry> BY_BALANCE = Comparator.<Entry>comparingDouble(e -> e.balance)
+            .thenComparingLong(e -> e.id);
+    private static final Entry DELETED = new Entry(0, null, 0, Long.MAX_VALUE);
+
+    private final NavigableSet<Entry> byBalance = new ConcurrentSkipListSet<>(BY_BALANCE);
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder totalBalance = new DoubleAdder();
+    private volatile boolean filling;
+
+    /**
+     * Indexes the accounts the store already holds and follows its events from then on
+     */
+    public static BalanceIndex attach(AbstractAccountService store) {
+        BalanceIndex index = new BalanceIndex();
+        index.filling = true;
+        store.addListener(index);
+        store.forEachAccount(index::put);
+        index.filling = false;
+        index.entries.forEach((id, entry) -> {
+            if (entry == DELETED) {
+                index.entries.remove(id, DELETED);
+            }
+        });
+        return index;
+    }
+
+    @Override
+    public void onEvent(CrudEventType eventType, Account account) {
+        switch (eventType) {
+            case CREATED:
+            case UPDATED:
+                put(account);
+                break;
+            case DELETED:
+                remove(account.getId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Up to max accounts with a balance below the limit, lowest balance first, starting after the cursor (null for
+     * the first page)
+     */
+    public List<Account> below(double limit, Cursor after, int max) {
+        NavigableSet<Entry> from = after == null ? byBalance
+                : byBalance.tailSet(new Entry(after.id, null, after.balance, 0), false);
+        List<Account> accounts = new ArrayList<>(Math.min(max, 64));
+        for (Entry entry : from) {
+            if (entry.balance >= limit || accounts.size() == max) {
+                break;
+            }
+            if (isCurrent(entry)) {
+                accounts.add(entry.toAccount());
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * The n accounts with the highest balances, highest first
+     */
+    public List<Account> top(int n) {
+        List<Account> accounts = new ArrayList<>(Math.min(n, 64));
+        for (Entry entry : byBalance.descendingSet()) {
+            if (accounts.size() == n) {
+                break;
+            }
+            if (isCurrent(entry)) {
+                accounts.add(entry.toAccount());
+            }
+        }
+        return accounts;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * A running sum of every change, so rounding of the individual changes adds up in the last digits
+     */
+    public double totalBalance() {
+        return totalBalance.sum();
+    }
+
+    /**
+     * Per account the map entry and its set entry change together, the compute holding the map bin's lock
+     */
+    void put(Account account) {
+        long version = account.getVersion();
+        Double balance = account.getBalance();
+        entries.compute(account.getId(), (id, current) -> {
+            if (current != null && current.version >= version) {
+                return current;
+            }
+            if (current != null && current.balance == balance) {
+                current.version = version;
+                return current;
+            }
+            Entry next = new Entry(id, account.getName(), balance, version);
+            byBalance.add(next);
+            if (current == null) {
+                count.increment();
+                totalBalance.add(balance);
+            } else {
+                byBalance.remove(current);
+                totalBalance.add(balance - current.balance);
+            }
+            return next;
+        });
+    }
+
+    /**
+     * Leaves a marker while the index is being filled, which either this or the end of filling removes, whichever
+     * comes last
+     */
+    void remove(long accountId) {
+        entries.compute(accountId, (id, current) -> {
+            if (current != null && current != DELETED) {
+                byBalance.remove(current);
+                count.decrement();
+                totalBalance.add(-current.balance);
+            }
+            return DELETED;
+        });
+        if (!filling) {
+            entries.remove(accountId, DELETED);
+        }
+    }
+
+    /**
+     * Accounts the map holds entries or deletion markers for
+     */
+    int tracked() {
+        return entries.size();
+    }
+
+    /**
+     * While an account moves, its new entry is in the set before the map points at it and the old one leaves the set
+     * after, so a reader that skips entries the map does not point at sees the account exactly once
+     */
+    private boolean isCurrent(Entry entry) {
+        return entries.get(entry.id) == entry;
+    }
+
+    /**
+     * A position in the balance order, the last account of a page
+     */
+    public static final class Cursor {
+        private final double balance;
+        private final long id;
+
+        public Cursor(double balance, long id) {
+            this.balance = balance;
+            this.id = id;
+        }
+
+        public static Cursor after(Account account) {
+            return new Cursor(account.getBalance(), account.getId());
+        }
+
+        /**
+         * The balance:id form of {@link #toString()}, null if the value is not one
+         */
+        public static Cursor parse(String value) {
+            int colon = value.lastIndexOf(':');
+            if (colon < 0) {
+                return null;
+            }
+            try {
+                return new Cursor(Double.parseDouble(value.substring(0, colon)),
+                        Long.parseLong(value.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return balance + ":" + id;
+        }
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final String name;
+        private final double balance;
+        /**
+         * Only changed inside the compute of the entry's id, it is not part of the order
+         */
+        private volatile long version;
+
+        private Entry(long id, String name, double balance, long version) {
+            this.id = id;
+            this.name = name;
+            this.balance = balance;
+            this.version = version;
+        }
+
+        private Account toAccount() {
+            return new Account(id, name, balance, version);
+        }
+    }
+}
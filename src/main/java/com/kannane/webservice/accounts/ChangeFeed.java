@@ -0,0 +1,124 @@
+package com.kannane.webservice.accounts;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The store's account changes (created, updated and deleted) numbered from 1 in the order the store made them, kept
+ * in a preallocated ring of the latest {@code capacity} so consumers can read from where they left off.
+ * <p>
+ * The feed is a store listener, so it records while the store holds the account's lock, and every account's changes
+ * are numbered in the order they happened. Recording claims a number and writes the slot, it never waits for and
+ * allocates nothing. Readers never hold anything up: a reader that falls more than the capacity behind finds its
+ * changes overwritten and has to start over. A slot is marked while it is written and readers check the mark before
+ * and after reading it, so they never see half of a change. The capacity must be well above the number of threads
+ * that can record at once.
+ * <p>
+ * Stores that hand out their live accounts may already have a newer balance when a change is recorded, so a change
+ * holds the account's version and balance as they were read, the version tells which state is newer.
+ */
+public final class ChangeFeed implements InMemoryEventListener<Account> {
+
+    private static final int STRIDE = 5;
+    private static final int SEQUENCE = 0;
+    private static final int TYPE = 1;
+    private static final int ID = 2;
+    private static final int VERSION = 3;
+    private static final int BALANCE = 4;
+    private static final CrudEventType[] TYPES = CrudEventType.values();
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicReferenceArray<String> names;
+    private final AtomicLong recorded = new AtomicLong();
+
+    ChangeFeed(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two [" + capacity + "]");
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicLongArray(capacity * STRIDE);
+        this.names = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Records the store's changes from now on, keeping the latest capacity (a power of two) of them
+     */
+    public static ChangeFeed attach(AbstractAccountService store, int capacity) {
+        ChangeFeed feed = new ChangeFeed(capacity);
+        store.addListener(feed);
+        return feed;
+    }
+
+    @Override
+    public void onEvent(CrudEventType eventType, Account account) {
+        if (eventType == CrudEventType.LOADED) {
+            return;
+        }
+        long sequence = recorded.incrementAndGet();
+        int slot = (int) sequence & mask;
+        int at = slot * STRIDE;
+        slots.set(at + SEQUENCE, -sequence);
+        slots.set(at + TYPE, eventType.ordinal());
+        slots.set(at + ID, account.getId());
+        slots.set(at + VERSION, account.getVersion());
+        slots.set(at + BALANCE, Double.doubleToRawLongBits(account.getBalanceValue()));
+        names.set(slot, account.getName());
+        slots.set(at + SEQUENCE, sequence);
+    }
+
+    /**
+     * Hands the visitor the changes numbered after the given one, in order and at most max of them, stopping early
+     * at a change that is still being recorded. Returns how many it handed over, or -1 if the next change was
+     * already overwritten.
+     */
+    public int read(long after, int max, Visitor visitor) {
+        int read = 0;
+        for (long sequence = after + 1; read < max; sequence++, read++) {
+            int slot = (int) sequence & mask;
+            int at = slot * STRIDE;
+            long marked = slots.get(at + SEQUENCE);
+            if (marked != sequence) {
+                return Math.abs(marked) > sequence || sequence <= recorded.get() - capacity ? overwritten(read) : read;
+            }
+            int type = (int) slots.get(at + TYPE);
+            long id = slots.get(at + ID);
+            long version = slots.get(at + VERSION);
+            double balance = Double.longBitsToDouble(slots.get(at + BALANCE));
+            String name = names.get(slot);
+            if (slots.get(at + SEQUENCE) != sequence) {
+                return overwritten(read);
+            }
+            visitor.visit(sequence, TYPES[type].name(), id, name, balance, version);
+        }
+        return read;
+    }
+
+    /**
+     * The number of the latest change, 0 before the first
+     */
+    public long latest() {
+        return recorded.get();
+    }
+
+    /**
+     * The number of the oldest change still kept
+     */
+    public long oldest() {
+        return Math.max(1, recorded.get() - capacity + 1);
+    }
+
+    private static int overwritten(int read) {
+        return read > 0 ? read : -1;
+    }
+
+    /**
+     * Receives changes one at a time, type is CREATED, UPDATED or DELETED
+     */
+    public interface Visitor {
+        void visit(long sequence, String type, long id, String name, double balance, long version);
+    }
+}
@@ -0,0 +1,531 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An account table laid out as primitive columns indexed by account id, meant for tens of millions of accounts.
+ * <p>
+ * Balances are kept as {@link MinorUnits}, names as references into a {@link NameArea} and every account has a lock
+ * word made up of a version, a live flag and a write lock bit. Columns are allocated in fixed size pages so growing
+ * the table never copies existing data. {@link Account} objects are only created when they leave the service.
+ * <p>
+ * Writers take the lock bit of every account they touch in increasing id order. Readers never lock, they read the
+ * lock word before and after the columns and retry if it changed (a seqlock).
+ * <p>
+ * When started from an {@link AccountSnapshot} the pages are not read up front, each page is loaded from the mapped
+ * snapshot the first time it is touched so startup time does not depend on the number of accounts.
+ */
+public class ColumnarAccountService extends AbstractAccountService {
+
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final long LOCKED = 1;
+    private static final long LIVE = 2;
+    private static final long VERSION_INCREMENT = 4;
+    /**
+     * A waiter spins this many times, then yields as many times, then parks for doubling times up to MAX_PARK_NANOS
+     */
+    private static final int SPINS = 64;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final IdAllocator ids;
+    private final NameArea names;
+    private final AccountSnapshot snapshot;
+    private volatile Page[] pages;
+
+    public ColumnarAccountService() {
+        this.ids = new IdAllocator();
+        this.names = new NameArea();
+        this.snapshot = null;
+        this.pages = new Page[0];
+    }
+
+    public ColumnarAccountService(AccountSnapshot snapshot) {
+        this.ids = new IdAllocator(snapshot.getMaxId());
+        this.names = snapshot.loadNames();
+        this.snapshot = snapshot;
+        this.pages = new Page[snapshot.getPageCount()];
+    }
+
+    @Override
+    public Optional<Account> findAccount(Long id) {
+        Page page = pageFor(id);
+        if (page == null) {
+            return Optional.empty();
+        }
+        Account account = read(page, slotFor(id), id);
+        if (account == null) {
+            return Optional.empty();
+        }
+        notifyObservers(CrudEventType.LOADED, account);
+        return Optional.of(account);
+    }
+
+    @Override
+    protected Account snapshotOf(Long id) {
+        Page page = pageFor(id);
+        return page == null ? null : tryRead(page, slotFor(id), id);
+    }
+
+    @Override
+    protected boolean unchangedSince(Long id, Account snapshot) {
+        Page page = pageFor(id);
+        long word = page == null ? 0 : page.locks.get(slotFor(id));
+        if ((word & LOCKED) != 0) {
+            return false;
+        }
+        if ((word & LIVE) == 0) {
+            return snapshot == null;
+        }
+        return snapshot != null && word / VERSION_INCREMENT == snapshot.getVersion();
+    }
+
+    /**
+     * The version part of the lock word, which is bumped by every write to the account and only then. While a writer
+     * holds the lock the version of the state before the write is returned.
+     */
+    @Override
+    public long versionOf(Long id) {
+        Page page = pageFor(id);
+        if (page == null) {
+            return -1;
+        }
+        long word = page.locks.get(slotFor(id));
+        return (word & LIVE) == 0 ? -1 : word / VERSION_INCREMENT;
+    }
+
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        return tryTransferMinor(fromAccountId, toAccountId, MinorUnits.toMinor(amount));
+    }
+
+    /**
+     * Native to this store, the amount goes into the balance columns as it is
+     */
+    @Override
+    public TransferStatus tryTransferMinor(long fromAccountId, long toAccountId, long minorAmount) {
+        if (fromAccountId == toAccountId) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        Page fromPage = livePage(fromAccountId), toPage = livePage(toAccountId);
+        if (fromPage == null) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        if (toPage == null) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        TransferStatus status;
+        boolean written = false;
+        int fromSlot = slotFor(fromAccountId), toSlot = slotFor(toAccountId);
+        boolean fromFirst = fromAccountId < toAccountId;
+        long firstWord = fromFirst ? lock(fromPage, fromSlot) : lock(toPage, toSlot);
+        try {
+            long secondWord = fromFirst ? lock(toPage, toSlot) : lock(fromPage, fromSlot);
+            try {
+                long fromWord = fromFirst ? firstWord : secondWord, toWord = fromFirst ? secondWord : firstWord;
+                if ((fromWord & LIVE) == 0) {
+                    status = TransferStatus.FROM_NOT_FOUND;
+                } else if ((toWord & LIVE) == 0) {
+                    status = TransferStatus.TO_NOT_FOUND;
+                } else {
+                    status = applyTransfer(fromPage, fromSlot, toPage, toSlot, minorAmount);
+                    written = status.isSuccess();
+                }
+                if (status.isSuccess()) {
+                    mutationLog().transferred(fromAccountId, toAccountId, MinorUnits.toMajor(minorAmount));
+                    if (hasListeners()) {
+                        notifyObservers(CrudEventType.UPDATED, materialise(fromPage, fromSlot, fromAccountId));
+                        notifyObservers(CrudEventType.UPDATED, materialise(toPage, toSlot, toAccountId));
+                    }
+                }
+            } finally {
+                unlock(fromFirst ? toPage : fromPage, fromFirst ? toSlot : fromSlot, written);
+            }
+        } finally {
+            unlock(fromFirst ? fromPage : toPage, fromFirst ? fromSlot : toSlot, written);
+        }
+        return status;
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        SortedSet<Long> accountIds = TransferBatch.lockOrder(transfers);
+        long[] lockedIds = new long[accountIds.size()];
+        int locked = 0;
+        Set<Long> updated = null;
+        try {
+            for (Long id : accountIds) {
+                Page page = pageFor(id);
+                if (page != null) {
+                    lock(page, slotFor(id));
+                    lockedIds[locked++] = id;
+                }
+            }
+            List<TransferResult> results = TransferBatch.execute(transfers, mode, accountIds,
+                    new TransferBatch.Store() {
+                        @Override
+                        public TransferStatus apply(Transfer transfer) {
+                            return applyBatchTransfer(transfer);
+                        }
+
+                        @Override
+                        public Runnable checkpoint(Long accountId) {
+                            Page page = pageFor(accountId);
+                            if (page == null) {
+                                return null;
+                            }
+                            int slot = slotFor(accountId);
+                            long balance = page.balances.get(slot);
+                            return () -> page.balances.set(slot, balance);
+                        }
+                    });
+            logTransfers(transfers, results);
+            updated = TransferBatch.updatedAccounts(transfers, results);
+            if (hasListeners()) {
+                for (Long id : updated) {
+                    notifyObservers(CrudEventType.UPDATED, materialise(pageFor(id), slotFor(id), id));
+                }
+            }
+            return results;
+        } finally {
+            // A batch that was rolled back may have been read half applied, so it moves every version forward
+            for (int i = locked - 1; i >= 0; i--) {
+                long id = lockedIds[i];
+                unlock(pageFor(id), slotFor(id), updated == null || updated.contains(id));
+            }
+        }
+    }
+
+    @Override
+    public Account createAccount(Account account) {
+        checkNew(account);
+        return insertAccount(ids.next(), account);
+    }
+
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        accounts.forEach(AbstractAccountService::checkNew);
+        List<Account> created = new ArrayList<>(accounts.size());
+        long id = ids.claim(accounts.size());
+        for (Account account : accounts) {
+            created.add(insertAccount(id++, account));
+        }
+        return created;
+    }
+
+    @Override
+    public void restoreAccount(Account account) {
+        long id = account.getId();
+        ids.reserve(id);
+        Page page = ensurePage(id);
+        int slot = slotFor(id);
+        page.nameRefs[slot] = names.intern(account.getName());
+        page.balances.set(slot, MinorUnits.toMinor(account.getBalanceValue()));
+        page.locks.set(slot, LIVE);
+    }
+
+    /**
+     * Loads every page of a store started from a snapshot
+     */
+    @Override
+    public void forEachAccount(Consumer<Account> action) {
+        for (long id = 1, last = ids.last(); id <= last; id++) {
+            Page page = pageFor(id);
+            Account account = page == null ? null : read(page, slotFor(id), id);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+    }
+
+    @Override
+    public Account deleteAccount(Long id) {
+        Page page = pageFor(id);
+        if (page == null) {
+            throw new ServiceException("Account with id [" + id + "] not found");
+        }
+        int slot = slotFor(id);
+        long word = lock(page, slot);
+        Account deletedAccount;
+        try {
+            if ((word & LIVE) == 0) {
+                throw new ServiceException("Account with id [" + id + "] not found");
+            }
+            deletedAccount = materialise(page, slot, id);
+            page.locks.set(slot, (word & ~LIVE) | LOCKED);
+            mutationLog().deleted(id);
+            notifyObservers(CrudEventType.DELETED, deletedAccount);
+        } finally {
+            unlock(page, slot, true);
+        }
+        return deletedAccount;
+    }
+
+    long maxId() {
+        return ids.last();
+    }
+
+    int pageCount() {
+        return pages.length;
+    }
+
+    /**
+     * The page at the index, loading it from the snapshot if needed
+     */
+    Page page(int index) {
+        Page page = pages[index];
+        return page != null ? page : loadPage(index);
+    }
+
+    NameArea names() {
+        return names;
+    }
+
+    /**
+     * Approximate bytes held by the columns and the name area
+     */
+    public long footprint() {
+        long perAccount = Long.BYTES * 2 + Integer.BYTES;
+        return (long) pages.length * PAGE_SIZE * perAccount + names.footprint();
+    }
+
+    /**
+     * Fills the columns of a new account under the given id and makes it live
+     */
+    private Account insertAccount(long id, Account account) {
+        long balance = MinorUnits.toMinor(account.getBalanceValue());
+        int nameRef = names.intern(account.getName());
+        Page page = ensurePage(id);
+        int slot = slotFor(id);
+        page.nameRefs[slot] = nameRef;
+        page.balances.set(slot, balance);
+        Account domainAccount = new Account(id, names.get(nameRef), MinorUnits.toMajor(balance));
+        /**
+         * Becomes live locked so nothing can touch the account before its creation has been logged
+         */
+        page.locks.set(slot, LIVE | LOCKED);
+        try {
+            mutationLog().created(domainAccount);
+            notifyObservers(CrudEventType.CREATED, domainAccount);
+        } finally {
+            unlock(page, slot, true);
+        }
+        return domainAccount;
+    }
+
+    /**
+     * Applies one transfer of a batch, the lock bits of both accounts are already held by this thread
+     */
+    private TransferStatus applyBatchTransfer(Transfer transfer) {
+        Long fromAccountId = transfer.getFrom(), toAccountId = transfer.getTo();
+        if (Objects.equals(fromAccountId, toAccountId)) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        Page fromPage = livePage(fromAccountId), toPage = livePage(toAccountId);
+        if (fromPage == null) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        if (toPage == null) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        return applyTransfer(fromPage, slotFor(fromAccountId), toPage, slotFor(toAccountId),
+                MinorUnits.toMinor(transfer.getAmount()));
+    }
+
+    private static TransferStatus applyTransfer(Page fromPage, int fromSlot, Page toPage, int toSlot,
+                                                long minorAmount) {
+        long fromBalance = fromPage.balances.get(fromSlot), toBalance = toPage.balances.get(toSlot);
+        if (minorAmount <= 0 || toBalance > Long.MAX_VALUE - minorAmount) {
+            return TransferStatus.BALANCE_TOO_HIGH;
+        }
+        if (minorAmount > fromBalance) {
+            return TransferStatus.INSUFFICIENT_FUNDS;
+        }
+        fromPage.balances.set(fromSlot, fromBalance - minorAmount);
+        toPage.balances.set(toSlot, toBalance + minorAmount);
+        return TransferStatus.OK;
+    }
+
+    /**
+     * A consistent copy of the account without locking, or null if it is not live
+     */
+    private Account read(Page page, int slot, long id) {
+        for (int spins = 0; ; spins++) {
+            Account account = tryRead(page, slot, id);
+            if (account != WRITING) {
+                return account;
+            }
+            backOff(spins);
+        }
+    }
+
+    /**
+     * One pass of the seqlock read, {@link #WRITING} if a writer held the lock or took it meanwhile
+     */
+    private Account tryRead(Page page, int slot, long id) {
+        long before = page.locks.get(slot);
+        if ((before & LOCKED) != 0) {
+            return WRITING;
+        }
+        if ((before & LIVE) == 0) {
+            return null;
+        }
+        long balance = page.balances.get(slot);
+        int nameRef = page.nameRefs[slot];
+        if (page.locks.get(slot) != before) {
+            return WRITING;
+        }
+        return new Account(id, names.get(nameRef), MinorUnits.toMajor(balance), before / VERSION_INCREMENT);
+    }
+
+    /**
+     * The account as it reads once this thread, holding its lock bit, releases it after writing, null if it is not
+     * live. Events are made from it before the lock bit goes, so an account's events are published in order and none
+     * after its deletion.
+     */
+    private Account materialise(Page page, int slot, long id) {
+        long word = page.locks.get(slot);
+        if ((word & LIVE) == 0) {
+            return null;
+        }
+        return new Account(id, names.get(page.nameRefs[slot]), MinorUnits.toMajor(page.balances.get(slot)),
+                word / VERSION_INCREMENT + 1);
+    }
+
+    /**
+     * The page of a live account, null if there is no such account
+     */
+    private Page livePage(long id) {
+        Page page = pageFor(id);
+        return page == null || (page.locks.get(slotFor(id)) & LIVE) == 0 ? null : page;
+    }
+
+    /**
+     * Spins until the lock bit is ours and returns the lock word as it was before locking
+     */
+    private static long lock(Page page, int slot) {
+        for (int spins = 0; ; spins++) {
+            long word = page.locks.get(slot);
+            if ((word & LOCKED) == 0 && page.locks.compareAndSet(slot, word, word | LOCKED)) {
+                return word;
+            }
+            backOff(spins);
+        }
+    }
+
+    /**
+     * Releases the lock bit, bumping the version if the account was written so that concurrent readers retry. An
+     * account that was only locked keeps its version, and with it the ETags handed out for it.
+     */
+    private static void unlock(Page page, int slot, boolean written) {
+        long word = page.locks.get(slot);
+        page.locks.set(slot, (word & ~LOCKED) + (written ? VERSION_INCREMENT : 0));
+    }
+
+    /**
+     * Lock holders can be descheduled or busy with the mutation log and listeners, so a waiter stops burning its CPU
+     * after a while and parks instead
+     */
+    private static void backOff(int spins) {
+        if (spins < SPINS) {
+            return;
+        }
+        if (spins < 2 * SPINS) {
+            Thread.yield();
+            return;
+        }
+        LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, spins - 2 * SPINS)));
+    }
+
+    private Page pageFor(Long id) {
+        return id == null ? null : pageFor(id.longValue());
+    }
+
+    private Page pageFor(long id) {
+        if (id <= 0 || id > ids.last()) {
+            return null;
+        }
+        long index = (id - 1) >>> PAGE_SHIFT;
+        Page[] current = pages;
+        if (index >= current.length) {
+            return null;
+        }
+        Page page = current[(int) index];
+        return page != null ? page : loadPage((int) index);
+    }
+
+    private static int slotFor(long id) {
+        return (int) ((id - 1) & PAGE_MASK);
+    }
+
+    private Page ensurePage(long id) {
+        long index = (id - 1) >>> PAGE_SHIFT;
+        Page[] current = pages;
+        if (index < current.length) {
+            Page page = current[(int) index];
+            return page != null ? page : loadPage((int) index);
+        }
+        synchronized (this) {
+            current = pages;
+            if (index >= current.length) {
+                Page[] grown = new Page[(int) index + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Page();
+                }
+                pages = grown;
+                current = grown;
+            }
+            Page page = current[(int) index];
+            return page != null ? page : loadPage((int) index);
+        }
+    }
+
+    private synchronized Page loadPage(int index) {
+        Page[] current = pages;
+        Page page = current[index];
+        if (page == null) {
+            page = snapshot.loadPage(index);
+            current[index] = page;
+            pages = current;
+        }
+        return page;
+    }
+
+    /**
+     * One page of every column. Loaded pages are fully built in the constructor, the final fields make them safe to
+     * publish without further synchronization.
+     */
+    static final class Page {
+        final AtomicLongArray balances = new AtomicLongArray(PAGE_SIZE);
+        final AtomicLongArray locks = new AtomicLongArray(PAGE_SIZE);
+        final int[] nameRefs = new int[PAGE_SIZE];
+
+        Page() {
+        }
+
+        Page(long[] balances, int[] nameRefs, boolean[] live) {
+            for (int slot = 0; slot < PAGE_SIZE; slot++) {
+                this.balances.lazySet(slot, balances[slot]);
+                this.nameRefs[slot] = nameRefs[slot];
+                this.locks.lazySet(slot, live[slot] ? LIVE : 0);
+            }
+        }
+
+        boolean isLive(int slot) {
+            return (locks.get(slot) & LIVE) != 0;
+        }
+    }
+}
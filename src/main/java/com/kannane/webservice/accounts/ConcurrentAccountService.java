@@ -0,0 +1,301 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * An account store without a global lock. Accounts live in a {@link ConcurrentHashMap} and every account carries its
+ * own {@link StampedLock}, so opening or closing an account never blocks transfers between unrelated accounts.
+ * <p>
+ * A deleted entry is marked as such under its write lock before it is removed from the map, which lets a transfer
+ * that looked the entry up just before the delete notice it once it holds the lock.
+ */
+public class ConcurrentAccountService extends AbstractAccountService {
+
+    private final ConcurrentMap<Long, AccountEntry> accountsMap = new ConcurrentHashMap<>();
+    private final IdAllocator ids = new IdAllocator();
+
+    @Override
+    public Optional<Account> findAccount(Long id) {
+        AccountEntry entry = accountsMap.get(id);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        StampedLock lock = entry.lock;
+        long stamp = lock.tryOptimisticRead();
+        boolean deleted = entry.deleted;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                deleted = entry.deleted;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (deleted) {
+            return Optional.empty();
+        }
+        notifyObservers(CrudEventType.LOADED, entry.account);
+        return Optional.of(entry.account);
+    }
+
+    /**
+     * Never locks. A delete racing with the read may still see the version, just as a find that completed before the
+     * delete would have seen the account.
+     */
+    @Override
+    protected Account snapshotOf(Long id) {
+        AccountEntry entry = accountsMap.get(id);
+        if (entry == null) {
+            return null;
+        }
+        long stamp = entry.lock.tryOptimisticRead();
+        if (stamp == 0) {
+            return WRITING;
+        }
+        boolean deleted = entry.deleted;
+        Account copy = entry.account.copy();
+        if (!entry.lock.validate(stamp)) {
+            return WRITING;
+        }
+        return deleted ? null : copy;
+    }
+
+    @Override
+    protected boolean unchangedSince(Long id, Account snapshot) {
+        AccountEntry entry = accountsMap.get(id);
+        if (entry == null) {
+            return snapshot == null;
+        }
+        long stamp = entry.lock.tryOptimisticRead();
+        boolean deleted = entry.deleted;
+        long version = entry.account.getVersion();
+        if (stamp == 0 || !entry.lock.validate(stamp)) {
+            return false;
+        }
+        return deleted ? snapshot == null : snapshot != null && version == snapshot.getVersion();
+    }
+
+    @Override
+    public long versionOf(Long id) {
+        AccountEntry entry = accountsMap.get(id);
+        return entry == null || entry.deleted ? -1 : entry.account.getVersion();
+    }
+
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        if (fromAccountId == toAccountId) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        AccountEntry from = accountsMap.get(fromAccountId);
+        if (from == null) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        AccountEntry to = accountsMap.get(toAccountId);
+        if (to == null) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        /**
+         * Same ordering rule as {@link InMemoryAccountService}, always lock the lower id first to avoid deadlock
+         */
+        AccountEntry first = fromAccountId < toAccountId ? from : to;
+        AccountEntry second = first == from ? to : from;
+        long firstStamp = first.lock.writeLock();
+        try {
+            long secondStamp = second.lock.writeLock();
+            try {
+                if (from.deleted) {
+                    return TransferStatus.FROM_NOT_FOUND;
+                }
+                if (to.deleted) {
+                    return TransferStatus.TO_NOT_FOUND;
+                }
+                return transferMoneyInternal(from.account, to.account, amount);
+            } finally {
+                second.lock.unlockWrite(secondStamp);
+            }
+        } finally {
+            first.lock.unlockWrite(firstStamp);
+        }
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        SortedSet<Long> accountIds = TransferBatch.lockOrder(transfers);
+        List<AccountEntry> entries = new ArrayList<>(accountIds.size());
+        for (Long id : accountIds) {
+            AccountEntry entry = accountsMap.get(id);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        long[] stamps = new long[entries.size()];
+        int locked = 0;
+        try {
+            for (; locked < stamps.length; locked++) {
+                stamps[locked] = entries.get(locked).lock.writeLock();
+            }
+            List<TransferResult> results = TransferBatch.execute(transfers, mode, accountIds,
+                    new TransferBatch.Store() {
+                        @Override
+                        public TransferStatus apply(Transfer transfer) {
+                            return applyBatchTransfer(entries, transfer);
+                        }
+
+                        @Override
+                        public Runnable checkpoint(Long accountId) {
+                            AccountEntry entry = find(entries, accountId);
+                            if (entry == null) {
+                                return null;
+                            }
+                            double balance = entry.account.getBalanceValue();
+                            return () -> entry.account.restoreBalance(balance);
+                        }
+                    });
+            logTransfers(transfers, results);
+            TransferBatch.updatedAccounts(transfers, results)
+                    .forEach(id -> notifyObservers(CrudEventType.UPDATED, find(entries, id).account));
+            return results;
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                entries.get(i).lock.unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    @Override
+    public Account createAccount(Account account) {
+        checkNew(account);
+        return insertAccount(ids.next(), account);
+    }
+
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        accounts.forEach(AbstractAccountService::checkNew);
+        List<Account> created = new ArrayList<>(accounts.size());
+        long id = ids.claim(accounts.size());
+        for (Account account : accounts) {
+            created.add(insertAccount(id++, account));
+        }
+        return created;
+    }
+
+    @Override
+    public void restoreAccount(Account account) {
+        accountsMap.put(account.getId(), new AccountEntry(account));
+        ids.reserve(account.getId());
+    }
+
+    @Override
+    public void forEachAccount(Consumer<Account> action) {
+        for (AccountEntry entry : accountsMap.values()) {
+            if (!entry.deleted) {
+                action.accept(entry.account);
+            }
+        }
+    }
+
+    @Override
+    public Account deleteAccount(Long id) {
+        AccountEntry entry = accountsMap.get(id);
+        if (entry == null) {
+            throw new ServiceException("Account with id [" + id + "] not found");
+        }
+        long stamp = entry.lock.writeLock();
+        try {
+            if (entry.deleted) {
+                throw new ServiceException("Account with id [" + id + "] not found");
+            }
+            entry.deleted = true;
+            accountsMap.remove(id, entry);
+            mutationLog().deleted(id);
+            notifyObservers(CrudEventType.DELETED, entry.account);
+            return entry.account;
+        } finally {
+            entry.lock.unlockWrite(stamp);
+        }
+    }
+
+    private Account insertAccount(long id, Account account) {
+        Account domainAccount = new Account(id, account.getName(), account.getBalance());
+        AccountEntry entry = new AccountEntry(domainAccount);
+        /**
+         * Publish the entry locked so nothing can touch the account before its creation has been logged
+         */
+        long stamp = entry.lock.writeLock();
+        try {
+            accountsMap.put(domainAccount.getId(), entry);
+            mutationLog().created(domainAccount);
+            notifyObservers(CrudEventType.CREATED, domainAccount);
+        } finally {
+            entry.lock.unlockWrite(stamp);
+        }
+        return domainAccount;
+    }
+
+    /**
+     * The entries are sorted by id, a binary search keeps large batches cheap without another map
+     */
+    private static AccountEntry find(List<AccountEntry> entries, Long id) {
+        int low = 0, high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = entries.get(mid).account.getId();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                AccountEntry entry = entries.get(mid);
+                return entry.deleted ? null : entry;
+            }
+        }
+        return null;
+    }
+
+    private TransferStatus applyBatchTransfer(List<AccountEntry> entries, Transfer transfer) {
+        if (Objects.equals(transfer.getFrom(), transfer.getTo())) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        AccountEntry from = find(entries, transfer.getFrom()), to = find(entries, transfer.getTo());
+        if (from == null) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        if (to == null) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        return applyTransfer(from.account, to.account, transfer.getAmount());
+    }
+
+    private TransferStatus transferMoneyInternal(Account fromAccount, Account toAccount, double amount) {
+        TransferStatus status = applyTransfer(fromAccount, toAccount, amount);
+        if (status.isSuccess()) {
+            mutationLog().transferred(fromAccount.getId(), toAccount.getId(), amount);
+            notifyObservers(CrudEventType.UPDATED, fromAccount);
+            notifyObservers(CrudEventType.UPDATED, toAccount);
+        }
+        return status;
+    }
+
+    private static final class AccountEntry {
+        private final Account account;
+        private final StampedLock lock = new StampedLock();
+        /**
+         * Only written under the write lock, read either optimistically or under a lock
+         */
+        private boolean deleted;
+
+        private AccountEntry(Account account) {
+            this.account = account;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.kannane.webservice.accounts;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The deposits a hot account took without its lock, summed in minor units in a {@link LongAdder} so that concurrent
+ * deposits rarely touch the same cache line and add up exactly whatever order they land in. The account's balance is
+ * its own balance plus {@link #sum()}.
+ * <p>
+ * A deposit holds one stripe's read lock, picked by thread. Withdrawals never need the stripes: deposits only ever
+ * raise the sum, so a withdrawal made under the account's write lock can trust a sum it read. Rolling back a batch,
+ * which sets the balance outright, and cooling the account down hold every stripe's write lock after the account's
+ * write lock so that no deposit is in flight. The cells are never folded back into the account, they keep their sum
+ * once it cools down.
+ */
+final class HotBalance {
+
+    private final LongAdder deposits = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+    private volatile boolean active;
+
+    HotBalance(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * The stripe the calling thread deposits under
+     */
+    Lock depositLock() {
+        return stripes[(int) Thread.currentThread().getId() & mask].readLock();
+    }
+
+    /**
+     * Only while holding {@link #depositLock()}. The cells change between the two counts, so a reader that sees a
+     * count sees at least the deposits it counts and one that sees both counts equal saw no deposit in flight.
+     */
+    void deposit(long minor) {
+        started.increment();
+        deposits.add(minor);
+        changes.increment();
+    }
+
+    void lockAll() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * True while some deposit holds its stripe
+     */
+    boolean isDepositing() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            if (stripe.getReadLockCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    double sum() {
+        return MinorUnits.toMajor(deposits.sum());
+    }
+
+    /**
+     * Deposits taken so far, never goes down
+     */
+    long changes() {
+        return changes.sum();
+    }
+
+    /**
+     * Deposits taken so far, or -1 while one is being added. Reads the finished count first as the started one
+     * never trails it.
+     */
+    long stableChanges() {
+        long finished = changes.sum();
+        return started.sum() == finished ? finished : -1;
+    }
+
+    /**
+     * Only under {@link #lockAll()}
+     */
+    void reset() {
+        deposits.reset();
+    }
+
+    /**
+     * A deposit checks again once it holds its stripe, the account may have cooled down meanwhile
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Only under the account's write lock, and every stripe when turning it off
+     */
+    void setActive(boolean active) {
+        this.active = active;
+    }
+}
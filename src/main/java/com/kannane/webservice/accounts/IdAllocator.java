@@ -0,0 +1,49 @@
+package com.kannane.webservice.accounts;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out account ids without locking. A single create takes the next id, a batch claims a block of consecutive
+ * ids with one atomic add, so threads importing in parallel only ever meet on that add. Ids are never reused, not
+ * even after a delete.
+ */
+final class IdAllocator {
+
+    private final AtomicLong last;
+
+    IdAllocator() {
+        this(0);
+    }
+
+    /**
+     * Continues after the given id, e.g. the highest id of a snapshot
+     */
+    IdAllocator(long last) {
+        this.last = new AtomicLong(last);
+    }
+
+    long next() {
+        return last.incrementAndGet();
+    }
+
+    /**
+     * Claims count consecutive ids and returns the first
+     */
+    long claim(int count) {
+        return last.addAndGet(count) - count + 1;
+    }
+
+    /**
+     * Makes sure the id is never handed out, for accounts restored with the id they already have
+     */
+    void reserve(long id) {
+        last.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * The highest id handed out or reserved so far
+     */
+    long last() {
+        return last.get();
+    }
+}
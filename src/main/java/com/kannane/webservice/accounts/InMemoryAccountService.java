@@ -3,17 +3,52 @@ package com.kannane.webservice.accounts;
 import com.kannane.webservice.ServiceException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
-public class InMemoryAccountService implements AccountService {
+/**
+ * Accounts behind one global read/write lock and a read/write lock per account. A hot account, one that many
+ * transfers pay into at once, takes deposits into striped cells without its lock, see {@link HotBalance}. Accounts
+ * turn hot through {@link #setHotAccount(long, boolean)} or on their own once deposits keep finding them locked.
+ */
+public class InMemoryAccountService extends AbstractAccountService {
 
-    private final Map<Long, Account> accountsMap = new HashMap<>();
-    private final Map<Long, ReadWriteLock> locksMap = new HashMap<>();
+    /**
+     * Deposits per second that must find an account locked before it turns hot
+     */
+    public static final int DEFAULT_HOT_THRESHOLD = 256;
+    public static final int DEFAULT_HOT_STRIPES = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Guarded by the locks like everything else, concurrent only so that {@link #versionOf(Long)} can skip them
+     */
+    private final Map<Long, Account> accountsMap = new ConcurrentHashMap<>();
+    /**
+     * The same accounts by primitive id, each with its lock, for transfers to find without boxing the ids
+     */
+    private final LongMap<AccountLock> locksMap = new LongMap<>();
     private final ReadWriteLock globalLock = new ReentrantReadWriteLock();
+    private final IdAllocator ids = new IdAllocator();
+    private final Set<Long> configuredHot = ConcurrentHashMap.newKeySet();
+    private final int hotThreshold;
+    private final int hotStripes;
+
+    public InMemoryAccountService() {
+        this(DEFAULT_HOT_THRESHOLD, DEFAULT_HOT_STRIPES);
+    }
+
+    /**
+     * @param hotThreshold contended deposits per second that turn an account hot, 0 to only go by configuration
+     * @param hotStripes   cells a hot account spreads its deposits over
+     */
+    public InMemoryAccountService(int hotThreshold, int hotStripes) {
+        this.hotThreshold = hotThreshold;
+        this.hotStripes = hotStripes;
+    }
 
     @Override
     public Optional<Account> findAccount(Long id) {
@@ -35,41 +70,143 @@ public class InMemoryAccountService implements AccountService {
 
     }
 
+    /**
+     * Takes only the global read lock, which transfers share, to find the account's lock
+     */
     @Override
-    public void transferMoney(Long fromAccountId, Long toAccountId, Double amount) {
-        if (Objects.equals(fromAccountId, toAccountId)) {
-            throw new ServiceException("The from and to account should not be the same [" + fromAccountId + "]");
+    protected Account snapshotOf(Long id) {
+        globalLock.readLock().lock();
+        try {
+            AccountLock lock = locksMap.get(id);
+            if (lock == null) {
+                return null;
+            }
+            return lock.isWriting() ? WRITING : lock.account.copy();
+        } finally {
+            globalLock.readLock().unlock();
         }
+    }
+
+    @Override
+    protected boolean unchangedSince(Long id, Account snapshot) {
         globalLock.readLock().lock();
         try {
-            if (!accountsMap.containsKey(fromAccountId)) {
-                throw new ServiceException("Account Id [" + fromAccountId + "] not found");
+            AccountLock lock = locksMap.get(id);
+            if (lock == null || snapshot == null) {
+                return lock == null && snapshot == null;
             }
-            if (!accountsMap.containsKey(toAccountId)) {
-                throw new ServiceException("Account Id [" + toAccountId + "] not found");
+            return !lock.isWriting() && lock.account.getVersion() == snapshot.getVersion();
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long versionOf(Long id) {
+        Account account = accountsMap.get(id);
+        return account == null ? -1 : account.getVersion();
+    }
+
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        if (fromAccountId == toAccountId) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        globalLock.readLock().lock();
+        try {
+            AccountLock fromEntry = locksMap.get(fromAccountId), toLock = locksMap.get(toAccountId);
+            if (fromEntry == null) {
+                return TransferStatus.FROM_NOT_FOUND;
+            }
+            if (toLock == null) {
+                return TransferStatus.TO_NOT_FOUND;
             }
+            Account from = fromEntry.account, to = toLock.account;
             /**
              * We need to write lock both accounts however to avoid deadlock we will acquire resources
-             * in increasing order
+             * in increasing order. A hot account's stripe stands in for its write lock at the same place.
              *
              * https://www.securecoding.cert.org/confluence/display/java/LCK07-J.+Avoid+deadlock+by+requesting+and+releasing+locks+in+the+same+order
              */
-            Collection<Lock> accountLocks = Stream.of(fromAccountId, toAccountId)
-                    .sorted()
-                    .map(locksMap::get)
-                    .map(ReadWriteLock::writeLock)
-                    .collect(Collectors.toList());
-            accountLocks.forEach(Lock::lock);
+            Lock fromLock = fromEntry.writeLock();
+            HotBalance hot = to.hotBalance();
+            if (hot != null) {
+                Lock stripe = hot.depositLock();
+                Lock first = fromAccountId < toAccountId ? fromLock : stripe;
+                Lock second = first == fromLock ? stripe : fromLock;
+                first.lock();
+                try {
+                    second.lock();
+                    try {
+                        if (hot.isActive()) {
+                            return depositToHot(from, to, hot, amount);
+                        }
+                    } finally {
+                        second.unlock();
+                    }
+                } finally {
+                    first.unlock();
+                }
+            }
+            boolean contended;
+            if (fromAccountId < toAccountId) {
+                fromLock.lock();
+                contended = toLock.lockForDeposit();
+            } else {
+                contended = toLock.lockForDeposit();
+                fromLock.lock();
+            }
             try {
-                transferMoneyInternal(accountsMap.get(fromAccountId), accountsMap.get(toAccountId), amount);
+                TransferStatus status = transferMoneyInternal(from, to, amount);
+                if (contended && hotThreshold > 0 && toLock.contended(hotThreshold)) {
+                    to.makeHot(hotStripes);
+                }
+                return status;
             } finally {
-                accountLocks.forEach(Lock::unlock);
+                fromLock.unlock();
+                toLock.writeLock().unlock();
             }
         } finally {
             globalLock.readLock().unlock();
         }
     }
 
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        SortedSet<Long> accountIds = TransferBatch.lockOrder(transfers);
+        globalLock.readLock().lock();
+        try {
+            List<TransferResult> results;
+            List<Long> locked = lockExclusively(accountIds);
+            try {
+                results = TransferBatch.execute(transfers, mode, accountIds, new TransferBatch.Store() {
+                    @Override
+                    public TransferStatus apply(Transfer transfer) {
+                        return applyBatchTransfer(transfer);
+                    }
+
+                    @Override
+                    public Runnable checkpoint(Long accountId) {
+                        Account account = accountsMap.get(accountId);
+                        if (account == null) {
+                            return null;
+                        }
+                        double balance = account.getBalanceValue();
+                        return () -> account.restoreBalance(balance);
+                    }
+                });
+                logTransfers(transfers, results);
+                TransferBatch.updatedAccounts(transfers, results)
+                        .forEach(id -> notifyUpdated(accountsMap.get(id)));
+            } finally {
+                unlockExclusively(locked);
+            }
+            return results;
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
     @Override
     public Account createAccount(Account account) {
         globalLock.writeLock().lock();
@@ -80,6 +217,96 @@ public class InMemoryAccountService implements AccountService {
         }
     }
 
+    /**
+     * Takes the global write lock once for the whole batch
+     */
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        accounts.forEach(AbstractAccountService::checkNew);
+        List<Account> created = new ArrayList<>(accounts.size());
+        globalLock.writeLock().lock();
+        try {
+            long id = ids.claim(accounts.size());
+            for (Account account : accounts) {
+                created.add(insertAccount(id++, account));
+            }
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+        return created;
+    }
+
+    @Override
+    public void restoreAccount(Account account) {
+        globalLock.writeLock().lock();
+        try {
+            accountsMap.put(account.getId(), account);
+            locksMap.put(account.getId(), new AccountLock(account));
+            ids.reserve(account.getId());
+            if (configuredHot.contains(account.getId())) {
+                account.makeHot(hotStripes);
+            }
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Holds the global read lock for the whole visit, which keeps accounts from being opened or closed meanwhile
+     */
+    @Override
+    public void forEachAccount(Consumer<Account> action) {
+        globalLock.readLock().lock();
+        try {
+            accountsMap.values().forEach(action);
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Turns striped deposits on or off for an account, one that does not exist yet turns hot once it is created.
+     * Turning an account off folds its cells back into the balance, it may still turn hot again on its own.
+     */
+    public void setHotAccount(long id, boolean hot) {
+        globalLock.readLock().lock();
+        try {
+            if (hot) {
+                configuredHot.add(id);
+            } else {
+                configuredHot.remove(id);
+            }
+            Account account = accountsMap.get(id);
+            if (account == null) {
+                return;
+            }
+            Lock accountLock = locksMap.get(id).writeLock();
+            accountLock.lock();
+            try {
+                HotBalance cells = account.hotBalance();
+                if (hot) {
+                    account.makeHot(hotStripes);
+                } else if (cells != null) {
+                    cells.lockAll();
+                    try {
+                        account.makeCold();
+                    } finally {
+                        cells.unlockAll();
+                    }
+                }
+            } finally {
+                accountLock.unlock();
+            }
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    public boolean isHotAccount(long id) {
+        Account account = accountsMap.get(id);
+        return account != null && account.hotBalance() != null;
+    }
+
     @Override
     public Account deleteAccount(Long id) {
         globalLock.writeLock().lock();
@@ -105,44 +332,166 @@ public class InMemoryAccountService implements AccountService {
         return account;
     }
 
-    private Void transferMoneyInternal(Account fromAccount, Account toAccount, Double amount) {
-        if (toAccount.getBalance() + amount <= toAccount.getBalance()) {
-            throw new ServiceException("Rounding error with balance for [" + toAccount  + "]. Balance went too high");
+    private TransferStatus applyBatchTransfer(Transfer transfer) {
+        if (Objects.equals(transfer.getFrom(), transfer.getTo())) {
+            return TransferStatus.SAME_ACCOUNT;
+        }
+        if (!accountsMap.containsKey(transfer.getFrom())) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        if (!accountsMap.containsKey(transfer.getTo())) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        return applyTransfer(accountsMap.get(transfer.getFrom()), accountsMap.get(transfer.getTo()),
+                transfer.getAmount());
+    }
+
+    private TransferStatus transferMoneyInternal(Account fromAccount, Account toAccount, double amount) {
+        TransferStatus status = applyTransfer(fromAccount, toAccount, amount);
+        if (status.isSuccess()) {
+            mutationLog().transferred(fromAccount.getId(), toAccount.getId(), amount);
+            notifyUpdated(fromAccount);
+            notifyUpdated(toAccount);
+        }
+        return status;
+    }
+
+    /**
+     * The withdrawal happens under the payer's lock as always, the deposit lands in the payee's cells. The transfer
+     * is logged before the deposit shows, so a withdrawal spending it is always logged after it.
+     */
+    private TransferStatus depositToHot(Account fromAccount, Account toAccount, HotBalance hot, double amount) {
+        if (!canCredit(toAccount.getBalanceValue(), amount)) {
+            return TransferStatus.BALANCE_TOO_HIGH;
+        }
+        long minor = MinorUnits.toMinor(amount);
+        if (!fromAccount.withdraw(amount)) {
+            return TransferStatus.INSUFFICIENT_FUNDS;
+        }
+        mutationLog().transferred(fromAccount.getId(), toAccount.getId(), amount);
+        hot.deposit(minor);
+        notifyUpdated(fromAccount);
+        notifyUpdated(toAccount);
+        return TransferStatus.OK;
+    }
+
+    /**
+     * Deposits into a hot account run side by side under different stripes, so while an account is hot its updates
+     * are published holding its cells' monitor. Each one reads the account after the one before, which keeps its
+     * events in the order of its versions.
+     */
+    private void notifyUpdated(Account account) {
+        HotBalance hot = account.hotBalance();
+        if (hot == null || !hasListeners()) {
+            notifyObservers(CrudEventType.UPDATED, account);
+            return;
+        }
+        synchronized (hot) {
+            notifyObservers(CrudEventType.UPDATED, account);
+        }
+    }
+
+    /**
+     * Write locks the accounts in id order, and every stripe of the hot ones so that a batch can roll them back
+     */
+    private List<Long> lockExclusively(SortedSet<Long> accountIds) {
+        List<Long> locked = new ArrayList<>(accountIds.size());
+        for (Long id : accountIds) {
+            AccountLock lock = locksMap.get(id);
+            if (lock != null) {
+                lock.writeLock().lock();
+                HotBalance hot = accountsMap.get(id).hotBalance();
+                if (hot != null) {
+                    hot.lockAll();
+                }
+                locked.add(id);
+            }
+        }
+        return locked;
+    }
+
+    private void unlockExclusively(List<Long> locked) {
+        for (Long id : locked) {
+            HotBalance hot = accountsMap.get(id).hotBalance();
+            if (hot != null) {
+                hot.unlockAll();
+            }
+            locksMap.get(id).writeLock().unlock();
         }
-        fromAccount.withdraw(amount);
-        toAccount.deposit(amount);
-        notifyObservers(CrudEventType.UPDATED, fromAccount);
-        notifyObservers(CrudEventType.UPDATED, toAccount);
-        return null;
     }
 
     private Account deleteAccountInternal(Account account) {
         Account deletedAccount = accountsMap.remove(account.getId());
         locksMap.remove(account.getId());
+        mutationLog().deleted(deletedAccount.getId());
         notifyObservers(CrudEventType.DELETED, deletedAccount);
         return deletedAccount;
     }
 
     private Account createAccountInternal(Account account) {
-        if (account.getId() != null && account.getId() != 0) {
-            throw new ServiceException("Account already has an ID and cannot be created");
-        }
-        Account domainAccount = new Account((long) (accountsMap.size() + 1),
-                account.getName(), account.getBalance());
+        checkNew(account);
+        return insertAccount(ids.next(), account);
+    }
+
+    private Account insertAccount(long id, Account account) {
+        Account domainAccount = new Account(id, account.getName(), account.getBalance());
         accountsMap.put(domainAccount.getId(), domainAccount);
-        locksMap.put(domainAccount.getId(), new ReentrantReadWriteLock());
+        locksMap.put(domainAccount.getId(), new AccountLock(domainAccount));
+        if (configuredHot.contains(id)) {
+            domainAccount.makeHot(hotStripes);
+        }
+        mutationLog().created(domainAccount);
         notifyObservers(CrudEventType.CREATED, domainAccount);
         return domainAccount;
     }
 
-    private void notifyObservers(CrudEventType eventType, Account account) {
-        listeners.forEach(l -> l.onEvent(eventType, account));
-    }
+    /**
+     * An account with its lock, counting the deposits that found it taken to spot accounts worth turning hot
+     */
+    private static final class AccountLock extends ReentrantReadWriteLock {
 
-    void addListener(InMemoryEventListener<Account> l) {
-        listeners.add(l);
-    }
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final Account account;
+        private int contended;
+        private long windowStart;
+
+        AccountLock(Account account) {
+            this.account = account;
+        }
 
-    private Collection<InMemoryEventListener<Account>> listeners = new ArrayList<>();
+        /**
+         * True while a writer holds the lock or a deposit holds a stripe of the account's hot cells
+         */
+        boolean isWriting() {
+            if (isWriteLocked()) {
+                return true;
+            }
+            HotBalance hot = account.hotBalance();
+            return hot != null && hot.isDepositing();
+        }
+
+        /**
+         * Write locks for a deposit, true if the lock was taken and the deposit had to wait
+         */
+        boolean lockForDeposit() {
+            if (writeLock().tryLock()) {
+                return false;
+            }
+            writeLock().lock();
+            return true;
+        }
 
+        /**
+         * Counts a contended deposit, with the write lock held. True once a second saw the threshold reached.
+         */
+        boolean contended(int threshold) {
+            long now = System.nanoTime();
+            if (now - windowStart > WINDOW_NANOS) {
+                windowStart = now;
+                contended = 0;
+            }
+            return ++contended >= threshold;
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package com.kannane.webservice.accounts;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An append-only, in-memory record of every transfer a store applies. Entries are fixed width, four longs (time,
+ * from, to and the bits of the amount) in chunks of {@value #CHUNK_ENTRIES}, and are numbered in the order they were
+ * appended. Every account has its own index of the entries that touched it, so reading an account's history never
+ * looks at another account's entries.
+ * <p>
+ * The ledger is the store's {@link MutationLog}, so it appends while the store holds the accounts' locks. An append
+ * is a few array writes and increments, and allocates only when a chunk fills up. Deposits into a hot account and
+ * the sharded store's threads can append for one account at the same time, so an account index hands out its slots
+ * with an increment and a reader waits for a slot that is still being filled. The ledger starts empty, transfers
+ * from before it was attached are not in it.
+ */
+public final class Ledger implements MutationLog {
+
+    private static final int CHUNK_SHIFT = 12;
+    static final int CHUNK_ENTRIES = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_ENTRIES - 1;
+    private static final int ENTRY_LONGS = 4;
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int ARRAY_BYTES = 16;
+    private static final int REFERENCE_BYTES = Runtime.getRuntime().maxMemory() < (32L << 30) ? 4 : 8;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong footprint = new AtomicLong();
+    private volatile long[][] chunks = new long[16][];
+    /**
+     * Account indexes by id, in pages of {@code 1 << PAGE_SHIFT} as ids are handed out densely
+     */
+    private volatile History[][] histories = new History[16][];
+
+    /**
+     * Starts recording the store's transfers, next to the mutation log it already has
+     */
+    public static Ledger attach(AbstractAccountService store) {
+        Ledger ledger = new Ledger();
+        store.addMutationLog(ledger);
+        return ledger;
+    }
+
+    @Override
+    public void created(Account account) {
+    }
+
+    @Override
+    public void deleted(Long id) {
+    }
+
+    @Override
+    public void transferred(long fromAccountId, long toAccountId, double amount) {
+        long entry = appended.getAndIncrement();
+        long[] chunk = chunk(entry);
+        int at = (int) (entry & CHUNK_MASK) * ENTRY_LONGS;
+        chunk[at] = System.currentTimeMillis();
+        chunk[at + 1] = fromAccountId;
+        chunk[at + 2] = toAccountId;
+        chunk[at + 3] = Double.doubleToRawLongBits(amount);
+        history(fromAccountId).add(entry);
+        history(toAccountId).add(entry);
+    }
+
+    /**
+     * Hands the visitor the account's entries older than position before, newest first and at most limit of them.
+     * Positions count the account's entries from 0, a negative before starts from the newest. Returns the position
+     * to pass as before for the next page, or -1 once there are no older entries.
+     */
+    public long history(long accountId, long before, int limit, Visitor visitor) {
+        History history = find(accountId);
+        if (history == null) {
+            return -1;
+        }
+        int newest = history.reserved.get();
+        int start = before < 0 || before > newest ? newest : (int) before;
+        int end = Math.max(0, start - limit);
+        for (int position = start - 1; position >= end; position--) {
+            long entry = history.await(position);
+            long[] chunk = chunks[(int) (entry >>> CHUNK_SHIFT)];
+            int at = (int) (entry & CHUNK_MASK) * ENTRY_LONGS;
+            visitor.visit(entry, chunk[at], chunk[at + 1], chunk[at + 2], Double.longBitsToDouble(chunk[at + 3]));
+        }
+        return end > 0 ? end : -1;
+    }
+
+    /**
+     * Entries that touched the account so far
+     */
+    public int count(long accountId) {
+        History history = find(accountId);
+        return history == null ? 0 : history.reserved.get();
+    }
+
+    public long size() {
+        return appended.get();
+    }
+
+    /**
+     * Approximate heap held by the entries and the account indexes
+     */
+    public long footprint() {
+        return footprint.get();
+    }
+
+    /**
+     * {@link #footprint()} spread over the entries, 0 while there are none
+     */
+    public long bytesPerEntry() {
+        long entries = size();
+        return entries == 0 ? 0 : footprint() / entries;
+    }
+
+    private long[] chunk(long entry) {
+        int index = (int) (entry >>> CHUNK_SHIFT);
+        long[][] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        return allocateChunk(index);
+    }
+
+    private synchronized long[] allocateChunk(int index) {
+        long[][] current = chunks;
+        if (index >= current.length) {
+            long[][] grown = new long[Math.max(current.length * 2, index + 1)][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            footprint.addAndGet((long) (grown.length - current.length) * REFERENCE_BYTES);
+            current = grown;
+        }
+        if (current[index] == null) {
+            current[index] = new long[CHUNK_ENTRIES * ENTRY_LONGS];
+            footprint.addAndGet(ARRAY_BYTES + (long) CHUNK_ENTRIES * ENTRY_LONGS * Long.BYTES);
+        }
+        chunks = current;
+        return current[index];
+    }
+
+    private History find(long accountId) {
+        History[][] pages = histories;
+        int page = (int) (accountId >>> PAGE_SHIFT);
+        if (accountId < 0 || page >= pages.length || pages[page] == null) {
+            return null;
+        }
+        return pages[page][(int) accountId & PAGE_MASK];
+    }
+
+    private History history(long accountId) {
+        History history = find(accountId);
+        return history != null ? history : createHistory(accountId);
+    }
+
+    private synchronized History createHistory(long accountId) {
+        History[][] pages = histories;
+        int page = (int) (accountId >>> PAGE_SHIFT);
+        if (page >= pages.length) {
+            History[][] grown = new History[Math.max(pages.length * 2, page + 1)][];
+            System.arraycopy(pages, 0, grown, 0, pages.length);
+            footprint.addAndGet((long) (grown.length - pages.length) * REFERENCE_BYTES);
+            pages = grown;
+        }
+        if (pages[page] == null) {
+            pages[page] = new History[1 << PAGE_SHIFT];
+            footprint.addAndGet(ARRAY_BYTES + ((long) REFERENCE_BYTES << PAGE_SHIFT));
+        }
+        History history = pages[page][(int) accountId & PAGE_MASK];
+        if (history == null) {
+            history = new History(footprint);
+            pages[page][(int) accountId & PAGE_MASK] = history;
+        }
+        histories = pages;
+        return history;
+    }
+
+    /**
+     * Receives a page of an account's history one entry at a time
+     */
+    public interface Visitor {
+        void visit(long entry, long time, long fromAccountId, long toAccountId, double amount);
+    }
+
+    /**
+     * The entry numbers of one account, plus one so that 0 marks a slot still being filled. Slots live in chunks
+     * that double from {@value #FIRST_CHUNK} up to {@value #MAX_CHUNK}, so the many accounts with a short history
+     * stay small.
+     */
+    private static final class History {
+        private static final int FIRST_CHUNK = 8;
+        private static final int MAX_CHUNK = 1024;
+        /**
+         * Chunks before the first one of the full size, and the slots they hold between them
+         */
+        private static final int GROWING_CHUNKS = Integer.numberOfTrailingZeros(MAX_CHUNK / FIRST_CHUNK);
+        private static final int GROWING_SLOTS = FIRST_CHUNK * ((1 << GROWING_CHUNKS) - 1);
+        private static final int CHUNK_OVERHEAD = 32;
+
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicLongArray first = new AtomicLongArray(FIRST_CHUNK);
+        private final AtomicLong footprint;
+        /**
+         * Chunk k at k - 1, only replaced while holding the history's monitor
+         */
+        private volatile AtomicLongArray[] rest;
+
+        History(AtomicLong footprint) {
+            this.footprint = footprint;
+            footprint.addAndGet(48 + CHUNK_OVERHEAD + FIRST_CHUNK * Long.BYTES);
+        }
+
+        void add(long entry) {
+            int position = reserved.getAndIncrement();
+            int chunk = chunkOf(position);
+            AtomicLongArray slots = chunk == 0 ? first : restChunk(chunk);
+            slots.lazySet(position - startOf(chunk), entry + 1);
+        }
+
+        /**
+         * The entry at a reserved position, waiting for its writer if it is still being filled
+         */
+        long await(int position) {
+            int chunk = chunkOf(position);
+            for (; ; Thread.yield()) {
+                AtomicLongArray slots = chunk == 0 ? first : existingChunk(chunk);
+                long value = slots == null ? 0 : slots.get(position - startOf(chunk));
+                if (value != 0) {
+                    return value - 1;
+                }
+            }
+        }
+
+        private AtomicLongArray existingChunk(int chunk) {
+            AtomicLongArray[] current = rest;
+            return current == null || chunk > current.length ? null : current[chunk - 1];
+        }
+
+        private AtomicLongArray restChunk(int chunk) {
+            AtomicLongArray slots = existingChunk(chunk);
+            return slots != null ? slots : allocate(chunk);
+        }
+
+        private synchronized AtomicLongArray allocate(int chunk) {
+            AtomicLongArray[] current = rest;
+            if (current == null || chunk > current.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[Math.max(4, chunk * 2)];
+                if (current != null) {
+                    System.arraycopy(current, 0, grown, 0, current.length);
+                }
+                footprint.addAndGet(ARRAY_BYTES + (long) (grown.length - (current == null ? 0 : current.length))
+                        * REFERENCE_BYTES);
+                current = grown;
+            }
+            if (current[chunk - 1] == null) {
+                int size = sizeOf(chunk);
+                current[chunk - 1] = new AtomicLongArray(size);
+                footprint.addAndGet(CHUNK_OVERHEAD + (long) size * Long.BYTES);
+            }
+            rest = current;
+            return current[chunk - 1];
+        }
+
+        static int chunkOf(int position) {
+            if (position < GROWING_SLOTS) {
+                return 31 - Integer.numberOfLeadingZeros(position / FIRST_CHUNK + 1);
+            }
+            return GROWING_CHUNKS + (position - GROWING_SLOTS) / MAX_CHUNK;
+        }
+
+        static int startOf(int chunk) {
+            if (chunk < GROWING_CHUNKS) {
+                return FIRST_CHUNK * ((1 << chunk) - 1);
+            }
+            return GROWING_SLOTS + (chunk - GROWING_CHUNKS) * MAX_CHUNK;
+        }
+
+        static int sizeOf(int chunk) {
+            return chunk < GROWING_CHUNKS ? FIRST_CHUNK << chunk : MAX_CHUNK;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+/**
+ * Converts between the API's decimal amounts and the fixed point minor units (cents) used by the primitive stores
+ */
+public final class MinorUnits {
+
+    public static final long PER_MAJOR_UNIT = 100;
+    /**
+     * Above this a double no longer holds every cent, amounts that large are left as they are
+     */
+    private static final double MAX_ROUNDED = (double) (1L << 53) / PER_MAJOR_UNIT;
+
+    private MinorUnits() {
+    }
+
+    public static long toMinor(double amount) {
+        double minor = Math.rint(amount * PER_MAJOR_UNIT);
+        if (Double.isNaN(minor) || minor >= Long.MAX_VALUE || minor <= Long.MIN_VALUE) {
+            throw new ServiceException("Amount [" + amount + "] cannot be represented", 400);
+        }
+        return (long) minor;
+    }
+
+    /**
+     * The amount to the nearest cent, the same double {@code toMajor(toMinor(amount))} gives. The double stores keep
+     * every balance rounded like this, so their balances are exactly what the columnar store and snapshots hold.
+     */
+    public static double round(double amount) {
+        return Math.abs(amount) < MAX_ROUNDED ? Math.rint(amount * PER_MAJOR_UNIT) / PER_MAJOR_UNIT : amount;
+    }
+
+    public static double toMajor(long minor) {
+        return (double) minor / PER_MAJOR_UNIT;
+    }
+}
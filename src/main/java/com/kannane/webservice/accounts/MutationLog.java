@@ -0,0 +1,57 @@
+package com.kannane.webservice.accounts;
+
+/**
+ * Receives every successful mutation of a store in the order it was applied. The store calls it while still holding
+ * the locks of the accounts involved, so records touching the same account arrive in the order they happened and
+ * replaying them in that order rebuilds the same balances. Implementations must be quick and must not block.
+ */
+public interface MutationLog {
+
+    MutationLog NONE = new MutationLog() {
+        @Override
+        public void created(Account account) {
+        }
+
+        @Override
+        public void deleted(Long id) {
+        }
+
+        @Override
+        public void transferred(long fromAccountId, long toAccountId, double amount) {
+        }
+    };
+
+    /**
+     * Hands every record to the first log, then to the second
+     */
+    static MutationLog both(MutationLog first, MutationLog second) {
+        if (first == NONE) {
+            return second;
+        }
+        return new MutationLog() {
+            @Override
+            public void created(Account account) {
+                first.created(account);
+                second.created(account);
+            }
+
+            @Override
+            public void deleted(Long id) {
+                first.deleted(id);
+                second.deleted(id);
+            }
+
+            @Override
+            public void transferred(long fromAccountId, long toAccountId, double amount) {
+                first.transferred(fromAccountId, toAccountId, amount);
+                second.transferred(fromAccountId, toAccountId, amount);
+            }
+        };
+    }
+
+    void created(Account account);
+
+    void deleted(Long id);
+
+    void transferred(long fromAccountId, long toAccountId, double amount);
+}
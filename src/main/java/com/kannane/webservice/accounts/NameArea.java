@@ -0,0 +1,170 @@
+package com.kannane.webservice.accounts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append only storage for account names. Every distinct name is stored once as length prefixed UTF-8 bytes and is
+ * referred to by its offset into the area, so the store keeps an int per account instead of a String.
+ * <p>
+ * Names are deduplicated through an open addressing table of offsets, which avoids holding String keys on the heap.
+ * Interning is synchronized, reads are not: a reference is only handed out after its bytes are written and it is
+ * published to readers through the store's own volatile writes.
+ */
+final class NameArea {
+
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+
+    private byte[] bytes;
+    private int used;
+    private int[] table;
+    private int entries;
+
+    NameArea() {
+        this.bytes = new byte[1 << 16];
+        this.table = new int[1 << 10];
+    }
+
+    /**
+     * An area restored from a snapshot. The dedup table is only rebuilt when the first new name is interned.
+     */
+    NameArea(byte[] bytes, int used) {
+        this.bytes = bytes;
+        this.used = used;
+    }
+
+    synchronized int intern(String name) {
+        if (table == null) {
+            rebuildTable();
+        }
+        byte[] encoded = (name == null ? "" : name).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(encoded.length, MAX_NAME_BYTES);
+        int hash = hash(encoded, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int ref = table[slot] - 1;
+            if (ref < 0) {
+                break;
+            }
+            if (matches(ref, encoded, length)) {
+                return ref;
+            }
+        }
+        int ref = append(encoded, length);
+        insert(ref, hash);
+        if (++entries * 2 > table.length) {
+            rehash();
+        }
+        return ref;
+    }
+
+    String get(int ref) {
+        byte[] area = bytes;
+        int length = ((area[ref] & 0xFF) << 8) | (area[ref + 1] & 0xFF);
+        return new String(area, ref + 2, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bytes reserved by the area and its dedup table
+     */
+    synchronized long footprint() {
+        return bytes.length + (table == null ? 0 : (long) table.length * Integer.BYTES);
+    }
+
+    synchronized int used() {
+        return used;
+    }
+
+    /**
+     * Copies the used part of the area, names are referenced by offset so the copy is the whole state
+     */
+    synchronized byte[] copyBytes() {
+        return Arrays.copyOf(bytes, used);
+    }
+
+    private int append(byte[] encoded, int length) {
+        if (used + length + 2 > bytes.length) {
+            long newLength = Math.max((long) bytes.length * 2, (long) used + length + 2);
+            if (newLength > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Name area is full");
+            }
+            bytes = Arrays.copyOf(bytes, (int) newLength);
+        }
+        int ref = used;
+        bytes[ref] = (byte) (length >>> 8);
+        bytes[ref + 1] = (byte) length;
+        System.arraycopy(encoded, 0, bytes, ref + 2, length);
+        used += length + 2;
+        return ref;
+    }
+
+    private boolean matches(int ref, byte[] encoded, int length) {
+        int storedLength = ((bytes[ref] & 0xFF) << 8) | (bytes[ref + 1] & 0xFF);
+        if (storedLength != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[ref + 2 + i] != encoded[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int ref, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = ref + 1;
+    }
+
+    private void rebuildTable() {
+        int capacity = 1 << 10;
+        int names = 0;
+        for (int ref = 0; ref < used; ref += 2 + lengthAt(ref)) {
+            names++;
+        }
+        while (capacity < names * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity * 2];
+        entries = names;
+        for (int ref = 0; ref < used; ref += 2 + lengthAt(ref)) {
+            insert(ref, hashAt(ref + 2, lengthAt(ref)));
+        }
+    }
+
+    private int lengthAt(int ref) {
+        return ((bytes[ref] & 0xFF) << 8) | (bytes[ref + 1] & 0xFF);
+    }
+
+    private void rehash() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        for (int entry : old) {
+            if (entry != 0) {
+                int ref = entry - 1;
+                int length = ((bytes[ref] & 0xFF) << 8) | (bytes[ref + 1] & 0xFF);
+                insert(ref, hashAt(ref + 2, length));
+            }
+        }
+    }
+
+    private int hashAt(int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[offset + i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] encoded, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + encoded[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,306 @@
+package com.kannane.webservice.accounts;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * An index of account ids by name for prefix searches, kept in sync through the store's create and delete events, as
+ * names never change.
+ * <p>
+ * Most of the index is two parallel arrays sorted by name and id: the names, which are the String instances the
+ * store's accounts hold rather than copies, and the ids. That is a reference and a long per account. Accounts created
+ * since the arrays were built sit in a skip list and ids deleted since in a set. Once those hold more than a sixteenth
+ * of the arrays a background thread merges them into new arrays and swaps them in, writers never wait for a merge.
+ * <p>
+ * A search binary searches the arrays and walks them in step with the skip lists, so its cost depends on the number of
+ * results and not on the number of accounts.
+ */
+public class NameIndex implements InMemoryEventListener<Account>, Closeable {
+
+    private static final int MIN_MERGE = 1 << 13;
+    private static final Comparator<Entry> BY_NAME = Comparator.<Entry, String>comparing(e -> e.name)
+            .thenComparingLong(e -> e.id);
+    /**
+     * Rough heap cost of a skip list entry and of a deleted id, the index nodes of the skip list included
+     */
+    private static final int CREATED_BYTES = 80;
+    private static final int DELETED_BYTES = 64;
+
+    /**
+     * Only excludes writers while the delta they write to is swapped out for a merge
+     */
+    private final ReadWriteLock deltaLock = new ReentrantReadWriteLock();
+    /**
+     * Set until the index is seeded, so no merge swaps the arrays underneath the seeding
+     */
+    private final AtomicBoolean merging = new AtomicBoolean(true);
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "name-index-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile State state = new State(new String[0], new long[0], new Delta(), null);
+
+    /**
+     * Indexes the accounts the store already holds and follows its events from then on
+     */
+    public static NameIndex attach(AbstractAccountService store) {
+        NameIndex index = new NameIndex();
+        store.addListener(index);
+        List<Entry> existing = new ArrayList<>();
+        store.forEachAccount(account -> {
+            if (account.getName() != null) {
+                existing.add(new Entry(account.getName(), account.getId()));
+            }
+        });
+        Entry[] sorted = existing.toArray(new Entry[0]);
+        Arrays.parallelSort(sorted, BY_NAME);
+        String[] names = new String[sorted.length];
+        long[] ids = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            names[i] = sorted[i].name;
+            ids[i] = sorted[i].id;
+        }
+        index.state = new State(names, ids, index.state.delta, null);
+        index.merging.set(false);
+        index.mergeIfDue(index.state.delta.changes.get());
+        return index;
+    }
+
+    @Override
+    public void onEvent(CrudEventType eventType, Account account) {
+        if (account.getName() == null) {
+            return;
+        }
+        if (eventType == CrudEventType.CREATED) {
+            add(account.getName(), account.getId());
+        } else if (eventType == CrudEventType.DELETED) {
+            remove(account.getName(), account.getId());
+        }
+    }
+
+    /**
+     * Hands the ids of up to limit accounts whose name starts with the prefix to the consumer, ordered by name and
+     * id, and returns how many it handed over
+     */
+    public int search(String prefix, int limit, LongConsumer ids) {
+        State current = state;
+        Entry from = new Entry(prefix, Long.MIN_VALUE);
+        Iterator<Entry> created = current.delta.created.tailSet(from).iterator();
+        Iterator<Entry> merging = current.frozen == null ? null : current.frozen.created.tailSet(from).iterator();
+        Entry nextCreated = next(created), nextMerging = next(merging);
+        int position = lowerBound(current.names, prefix);
+        int found = 0;
+        Entry last = null;
+        while (found < limit) {
+            Entry candidate = position < current.names.length
+                    ? new Entry(current.names[position], current.ids[position]) : null;
+            int source = 0;
+            if (nextCreated != null && (candidate == null || BY_NAME.compare(nextCreated, candidate) < 0)) {
+                candidate = nextCreated;
+                source = 1;
+            }
+            if (nextMerging != null && (candidate == null || BY_NAME.compare(nextMerging, candidate) < 0)) {
+                candidate = nextMerging;
+                source = 2;
+            }
+            if (candidate == null || !candidate.name.startsWith(prefix)) {
+                break;
+            }
+            if (source == 0) {
+                position++;
+            } else if (source == 1) {
+                nextCreated = next(created);
+            } else {
+                nextMerging = next(merging);
+            }
+            if (!current.isDeleted(candidate.id) && (last == null || BY_NAME.compare(last, candidate) != 0)) {
+                ids.accept(candidate.id);
+                found++;
+            }
+            last = candidate;
+        }
+        return found;
+    }
+
+    /**
+     * Accounts in the index, deleted ones still waiting to be merged out excluded
+     */
+    public long size() {
+        State current = state;
+        long size = current.names.length + current.delta.created.size() - current.delta.deleted.size();
+        if (current.frozen != null) {
+            size += current.frozen.created.size() - current.frozen.deleted.size();
+        }
+        return size;
+    }
+
+    /**
+     * Approximate heap held by the index itself, not counting the names it shares with the store
+     */
+    public long footprint() {
+        State current = state;
+        int referenceBytes = Runtime.getRuntime().maxMemory() < (32L << 30) ? 4 : 8;
+        long bytes = 32 + (long) current.names.length * (referenceBytes + Long.BYTES);
+        for (Delta delta : new Delta[]{current.delta, current.frozen}) {
+            if (delta != null) {
+                bytes += (long) delta.created.size() * CREATED_BYTES + (long) delta.deleted.size() * DELETED_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        merger.shutdownNow();
+    }
+
+    private void add(String name, long id) {
+        int changes;
+        deltaLock.readLock().lock();
+        try {
+            Delta delta = state.delta;
+            delta.created.add(new Entry(name, id));
+            changes = delta.changes.incrementAndGet();
+        } finally {
+            deltaLock.readLock().unlock();
+        }
+        mergeIfDue(changes);
+    }
+
+    private void remove(String name, long id) {
+        int changes;
+        deltaLock.readLock().lock();
+        try {
+            Delta delta = state.delta;
+            if (!delta.created.remove(new Entry(name, id))) {
+                delta.deleted.add(id);
+            }
+            changes = delta.changes.incrementAndGet();
+        } finally {
+            deltaLock.readLock().unlock();
+        }
+        mergeIfDue(changes);
+    }
+
+    private void mergeIfDue(int changes) {
+        if (changes > Math.max(MIN_MERGE, state.names.length >> 4) && merging.compareAndSet(false, true)) {
+            merger.execute(this::merge);
+        }
+    }
+
+    /**
+     * Freezes the delta, builds new arrays from the current ones and the frozen delta and swaps them in. Readers see
+     * the frozen delta next to the old arrays until then.
+     */
+    void merge() {
+        State before;
+        deltaLock.writeLock().lock();
+        try {
+            before = state;
+            state = new State(before.names, before.ids, new Delta(), before.delta);
+        } finally {
+            deltaLock.writeLock().unlock();
+        }
+        Delta frozen = before.delta;
+        String[] names = new String[before.names.length + frozen.created.size()];
+        long[] ids = new long[names.length];
+        Iterator<Entry> created = frozen.created.iterator();
+        Entry nextCreated = next(created);
+        int position = 0, size = 0;
+        while (position < before.names.length || nextCreated != null) {
+            Entry candidate;
+            if (nextCreated == null || position < before.names.length
+                    && BY_NAME.compare(new Entry(before.names[position], before.ids[position]), nextCreated) <= 0) {
+                candidate = new Entry(before.names[position], before.ids[position++]);
+            } else {
+                candidate = nextCreated;
+                nextCreated = next(created);
+            }
+            boolean duplicate = size > 0 && ids[size - 1] == candidate.id && names[size - 1].equals(candidate.name);
+            if (!duplicate && !frozen.deleted.contains(candidate.id)) {
+                names[size] = candidate.name;
+                ids[size++] = candidate.id;
+            }
+        }
+        State merged = new State(Arrays.copyOf(names, size), Arrays.copyOf(ids, size), state.delta, null);
+        state = merged;
+        merging.set(false);
+        mergeIfDue(merged.delta.changes.get());
+    }
+
+    /**
+     * The first position whose name is not before the prefix
+     */
+    private static int lowerBound(String[] names, String prefix) {
+        int low = 0, high = names.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Entry next(Iterator<Entry> entries) {
+        return entries != null && entries.hasNext() ? entries.next() : null;
+    }
+
+    private static final class State {
+        private final String[] names;
+        private final long[] ids;
+        /**
+         * Where writers record changes
+         */
+        private final Delta delta;
+        /**
+         * The delta being merged into new arrays, null when no merge is running
+         */
+        private final Delta frozen;
+
+        private State(String[] names, long[] ids, Delta delta, Delta frozen) {
+            this.names = names;
+            this.ids = ids;
+            this.delta = delta;
+            this.frozen = frozen;
+        }
+
+        private boolean isDeleted(long id) {
+            return delta.deleted.contains(id) || frozen != null && frozen.deleted.contains(id);
+        }
+    }
+
+    private static final class Delta {
+        private final NavigableSet<Entry> created = new ConcurrentSkipListSet<>(BY_NAME);
+        private final Set<Long> deleted = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger changes = new AtomicInteger();
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final long id;
+
+        private Entry(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+}
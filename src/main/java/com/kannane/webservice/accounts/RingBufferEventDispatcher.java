@@ -0,0 +1,204 @@
+package com.kannane.webservice.accounts;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers store events to the listeners on consumer threads, so a slow listener no longer extends the time a store
+ * holds its locks.
+ * <p>
+ * Events go into a preallocated ring of slots. Publishing claims a sequence, fills the slot and marks it published,
+ * which allocates nothing. Consumers drain everything published since their last run in one batch. Each consumer
+ * owns the accounts whose id falls in its partition, and stores publish events for an account while holding its
+ * lock, so every account's events are delivered in the order they happened. When the ring is full publishers wait
+ * for the slowest consumer, which keeps memory bounded. A consumer that finds nothing spins and parks briefly for
+ * about 10ms, then blocks until a publisher wakes it, so an idle dispatcher keeps no core busy.
+ * <p>
+ * Listeners get the account object the store passed in. For stores that hand out their live objects the balance
+ * may already be newer than the event.
+ */
+final class RingBufferEventDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(RingBufferEventDispatcher.class.getName());
+    private static final long MAX_PARK_NANOS = 50_000;
+    /**
+     * Idle rounds a consumer spins, yields and parks briefly through (about 10ms) before it blocks until woken
+     */
+    private static final int SPINS_BEFORE_BLOCKING = 400;
+    /**
+     * A blocked consumer still looks every so often, in case it is woken late
+     */
+    private static final long BLOCKED_PARK_NANOS = 100_000_000;
+
+    private final Collection<InMemoryEventListener<Account>> listeners;
+    private final int capacity;
+    private final int mask;
+    private final CrudEventType[] types;
+    private final Account[] accounts;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final EventConsumer[] consumers;
+    private volatile long gatingCache = -1;
+    private volatile boolean running = true;
+    /**
+     * Consumers that are blocked or about to block, publishers only wake them while there are any
+     */
+    private final AtomicInteger blocked = new AtomicInteger();
+
+    RingBufferEventDispatcher(Collection<InMemoryEventListener<Account>> listeners, int capacity, int consumerThreads) {
+        if (Integer.bitCount(capacity) != 1 || consumerThreads < 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two and there must be a consumer");
+        }
+        this.listeners = listeners;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.types = new CrudEventType[capacity];
+        this.accounts = new Account[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.consumers = new EventConsumer[consumerThreads];
+        for (int i = 0; i < consumerThreads; i++) {
+            consumers[i] = new EventConsumer(i);
+        }
+        for (EventConsumer consumer : consumers) {
+            consumer.thread.start();
+        }
+    }
+
+    void publish(CrudEventType eventType, Account account) {
+        long sequence = claimed.incrementAndGet();
+        long wrapPoint = sequence - capacity;
+        if (wrapPoint > gatingCache) {
+            for (int spins = 0; ; spins++) {
+                long slowest = slowestConsumer();
+                gatingCache = slowest;
+                if (wrapPoint <= slowest) {
+                    break;
+                }
+                idle(spins);
+            }
+        }
+        int index = (int) (sequence & mask);
+        types[index] = eventType;
+        accounts[index] = account;
+        published.set(index, sequence);
+        if (blocked.get() > 0) {
+            wakeConsumers();
+        }
+    }
+
+    /**
+     * Stops the consumers once they have delivered everything published so far
+     */
+    void close() {
+        running = false;
+        wakeConsumers();
+        for (EventConsumer consumer : consumers) {
+            try {
+                consumer.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void wakeConsumers() {
+        for (EventConsumer consumer : consumers) {
+            LockSupport.unpark(consumer.thread);
+        }
+    }
+
+    private long slowestConsumer() {
+        long slowest = Long.MAX_VALUE;
+        for (EventConsumer consumer : consumers) {
+            slowest = Math.min(slowest, consumer.consumed.get());
+        }
+        return slowest;
+    }
+
+    private static void idle(int spins) {
+        if (spins < 100) {
+            return;
+        }
+        if (spins < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1_000L * (spins - 200 + 1)));
+        }
+    }
+
+    private final class EventConsumer implements Runnable {
+        private final int partition;
+        private final AtomicLong consumed = new AtomicLong(-1);
+        private final Thread thread;
+
+        private EventConsumer(int partition) {
+            this.partition = partition;
+            this.thread = new Thread(this, "event-dispatch-" + partition);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int idleSpins = 0;
+            while (running || next <= claimed.get()) {
+                long end = next;
+                while (end - next < capacity && published.get((int) (end & mask)) == end) {
+                    end++;
+                }
+                if (end == next) {
+                    if (idleSpins < SPINS_BEFORE_BLOCKING) {
+                        idle(idleSpins++);
+                    } else {
+                        block(next);
+                    }
+                    continue;
+                }
+                idleSpins = 0;
+                for (long sequence = next; sequence < end; sequence++) {
+                    int index = (int) (sequence & mask);
+                    Account account = accounts[index];
+                    if (Math.floorMod(account.getId(), consumers.length) == partition) {
+                        deliver(types[index], account);
+                    }
+                }
+                consumed.lazySet(end - 1);
+                next = end;
+            }
+        }
+
+        /**
+         * Parks until a publisher wakes it. Publishers read the count after publishing and the consumer looks for
+         * the event after counting itself in, so one of the two always sees the other.
+         */
+        private void block(long next) {
+            blocked.incrementAndGet();
+            try {
+                if (running && published.get((int) (next & mask)) != next) {
+                    LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+                }
+            } finally {
+                blocked.decrementAndGet();
+            }
+        }
+
+        private void deliver(CrudEventType eventType, Account account) {
+            for (InMemoryEventListener<Account> listener : listeners) {
+                try {
+                    listener.onEvent(eventType, account);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Listener failed for " + eventType + " of " + account, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * An account store partitioned by id into shards. Each shard is owned by one thread that applies the shard's
+ * commands in arrival order, shard state is only ever touched by that thread and needs no locks. Callers hand
+ * commands over through a lock free queue and wait for the result, or take it as a {@link CompletableFuture}.
+ * <p>
+ * A transfer within one shard is a single command. A transfer across shards debits the source account on its shard
+ * and passes a credit to the target shard, which applies it or sends the money back. Either way the source shard
+ * hears back before the transfer completes, and an account cannot be deleted while a debit of it is in flight, so
+ * money is never lost or created. While the credit is in flight the money is in neither account.
+ * <p>
+ * Accounts handed out are copies, the live ones never leave their shard. Listeners run on the shard threads and
+ * must not call back into the store synchronously.
+ */
+public class ShardedAccountService extends AbstractAccountService implements Closeable {
+
+    private static final int IDLE_SPINS = 100;
+
+    private final Shard[] shards;
+    private final IdAllocator ids = new IdAllocator();
+    /**
+     * Only taken by callers running a batch across shards, so two of them never pause the shards in different orders
+     */
+    private final Lock pauseLock = new ReentrantLock();
+
+    public ShardedAccountService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedAccountService(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Need at least one shard [" + shardCount + "]");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard("account-shard-" + i);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public Optional<Account> findAccount(Long id) {
+        return await(findAccountAsync(id));
+    }
+
+    public CompletableFuture<Optional<Account>> findAccountAsync(Long id) {
+        Shard shard = shardOf(id);
+        return submit(shard, () -> {
+            Account account = shard.live(id);
+            if (account == null) {
+                return Optional.empty();
+            }
+            notifyObservers(CrudEventType.LOADED, account);
+            return Optional.of(account.copy());
+        });
+    }
+
+    /**
+     * A command on the account's shard like every read, but without copying the account or notifying listeners
+     */
+    @Override
+    public long versionOf(Long id) {
+        Shard shard = shardOf(id);
+        return await(submit(shard, () -> {
+            Account account = shard.live(id);
+            return account == null ? -1L : account.getVersion();
+        }));
+    }
+
+    /**
+     * An account with a debit in flight counts as written to until the credit is settled, as the money is in neither
+     * account meanwhile. A read of accounts that always have some debit in flight gives up, see
+     * {@link #findAccounts(List)}.
+     */
+    @Override
+    protected Account snapshotOf(Long id) {
+        Shard shard = shardOf(id);
+        return await(submit(shard, () -> {
+            if (shard.debitsInFlight.containsKey(id)) {
+                return WRITING;
+            }
+            Account account = shard.live(id);
+            return account == null ? null : account.copy();
+        }));
+    }
+
+    @Override
+    protected boolean unchangedSince(Long id, Account snapshot) {
+        Shard shard = shardOf(id);
+        return await(submit(shard, () -> {
+            if (shard.debitsInFlight.containsKey(id)) {
+                return false;
+            }
+            Account account = shard.live(id);
+            return account == null ? snapshot == null
+                    : snapshot != null && account.getVersion() == snapshot.getVersion();
+        }));
+    }
+
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        return await(tryTransferAsync(fromAccountId, toAccountId, amount));
+    }
+
+    /**
+     * Completes with the outcome of the transfer once it is applied or has failed. A transfer across shards completes
+     * after the source shard has heard back from the target.
+     */
+    public CompletableFuture<TransferStatus> tryTransferAsync(long fromAccountId, long toAccountId, double amount) {
+        if (fromAccountId == toAccountId) {
+            return CompletableFuture.completedFuture(TransferStatus.SAME_ACCOUNT);
+        }
+        Shard source = shardOf(fromAccountId), target = shardOf(toAccountId);
+        if (source == target) {
+            return submit(source, () -> transferWithinShard(source, fromAccountId, toAccountId, amount));
+        }
+        CompletableFuture<TransferStatus> result = new CompletableFuture<>();
+        source.submit(() -> debit(source, target, fromAccountId, toAccountId, amount, result));
+        return result;
+    }
+
+    /**
+     * Completes once the transfer is applied, or exceptionally with the same {@link ServiceException} the synchronous
+     * call would throw
+     */
+    public CompletableFuture<Void> transferMoneyAsync(Long fromAccountId, Long toAccountId, Double amount) {
+        return tryTransferAsync(fromAccountId, toAccountId, amount).thenAccept(status ->
+                status.throwIfFailed(fromAccountId, toAccountId, amount));
+    }
+
+    /**
+     * A batch within one shard runs as one command of that shard. A batch across shards pauses every shard and runs
+     * on the calling thread, which then has the shards' state to itself.
+     */
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        SortedSet<Long> accountIds = TransferBatch.lockOrder(transfers);
+        Shard only = null;
+        for (Long id : accountIds) {
+            Shard shard = shardOf(id);
+            if (only == null) {
+                only = shard;
+            } else if (only != shard) {
+                return withShardsPaused(() -> executeBatch(transfers, mode, accountIds));
+            }
+        }
+        return await(submit(only == null ? shards[0] : only, () -> executeBatch(transfers, mode, accountIds)));
+    }
+
+    @Override
+    public Account createAccount(Account account) {
+        checkNew(account);
+        long id = ids.next();
+        Shard shard = shardOf(id);
+        return await(submit(shard, () -> insertAccount(shard, id, account)));
+    }
+
+    /**
+     * The batch takes a block of consecutive ids, so every shard gets every shard count'th account of it and inserts
+     * its share in one command
+     */
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        accounts.forEach(AbstractAccountService::checkNew);
+        int count = accounts.size();
+        long first = ids.claim(count);
+        Account[] created = new Account[count];
+        List<CompletableFuture<Void>> inserts = new ArrayList<>(shards.length);
+        for (int offset = 0; offset < Math.min(count, shards.length); offset++) {
+            Shard shard = shardOf(first + offset);
+            int start = offset;
+            inserts.add(submit(shard, () -> {
+                for (int i = start; i < count; i += shards.length) {
+                    created[i] = insertAccount(shard, first + i, accounts.get(i));
+                }
+                return null;
+            }));
+        }
+        inserts.forEach(ShardedAccountService::await);
+        return Arrays.asList(created);
+    }
+
+    @Override
+    public void restoreAccount(Account account) {
+        Shard shard = shardOf(account.getId());
+        await(submit(shard, () -> shard.accounts.put(account.getId(), account)));
+        ids.reserve(account.getId());
+    }
+
+    /**
+     * Copies one shard's accounts at a time on the shard's thread and visits them on the calling thread
+     */
+    @Override
+    public void forEachAccount(Consumer<Account> action) {
+        for (Shard shard : shards) {
+            List<Account> copies = await(submit(shard, () -> {
+                List<Account> accounts = new ArrayList<>(shard.accounts.size());
+                for (Account account : shard.accounts.values()) {
+                    if (!shard.pendingDeletes.containsKey(account.getId())) {
+                        accounts.add(account.copy());
+                    }
+                }
+                return accounts;
+            }));
+            copies.forEach(action);
+        }
+    }
+
+    /**
+     * Waits for debits of the account still in flight to settle. From the moment the delete reaches the shard the
+     * account counts as gone for every command behind it.
+     */
+    @Override
+    public Account deleteAccount(Long id) {
+        Shard shard = shardOf(id);
+        CompletableFuture<Account> result = new CompletableFuture<>();
+        shard.submit(() -> delete(shard, id, result));
+        return await(result);
+    }
+
+    /**
+     * Stops the shard threads, meant for an idle store. Commands still queued are dropped.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Shard shardOf(Long id) {
+        return shards[(int) Math.floorMod(id, (long) shards.length)];
+    }
+
+    private Account insertAccount(Shard shard, long id, Account account) {
+        Account domainAccount = new Account(id, account.getName(), account.getBalance());
+        shard.accounts.put(id, domainAccount);
+        mutationLog().created(domainAccount);
+        notifyObservers(CrudEventType.CREATED, domainAccount);
+        return domainAccount.copy();
+    }
+
+    private TransferStatus transferWithinShard(Shard shard, long fromAccountId, long toAccountId, double amount) {
+        Account from = shard.live(fromAccountId), to = shard.live(toAccountId);
+        if (from == null) {
+            return TransferStatus.FROM_NOT_FOUND;
+        }
+        if (to == null) {
+            return TransferStatus.TO_NOT_FOUND;
+        }
+        TransferStatus status = applyTransfer(from, to, amount);
+        if (status.isSuccess()) {
+            mutationLog().transferred(fromAccountId, toAccountId, amount);
+            notifyObservers(CrudEventType.UPDATED, from);
+            notifyObservers(CrudEventType.UPDATED, to);
+        }
+        return status;
+    }
+
+    /**
+     * First step of a transfer across shards, on the source shard. A transfer failing here still asks the target
+     * shard for the payee, so a missing payee is reported before the funds or the amount as in the other stores.
+     */
+    private void debit(Shard source, Shard target, long fromAccountId, long toAccountId, double amount,
+                       CompletableFuture<TransferStatus> result) {
+        try {
+            Account from = source.live(fromAccountId);
+            if (from == null) {
+                result.complete(TransferStatus.FROM_NOT_FOUND);
+                return;
+            }
+            TransferStatus failure = !(MinorUnits.round(amount) > 0) ? TransferStatus.BALANCE_TOO_HIGH
+                    : from.withdraw(amount) ? null : TransferStatus.INSUFFICIENT_FUNDS;
+            if (failure != null) {
+                target.submit(() -> result.complete(target.live(toAccountId) == null
+                        ? TransferStatus.TO_NOT_FOUND : failure));
+                return;
+            }
+            source.debitsInFlight.merge(fromAccountId, 1, Integer::sum);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        target.submit(() -> credit(source, target, fromAccountId, toAccountId, amount, result));
+    }
+
+    /**
+     * Second step, on the target shard. The source shard is always told the outcome, whatever happens here.
+     */
+    private void credit(Shard source, Shard target, long fromAccountId, long toAccountId, double amount,
+                        CompletableFuture<TransferStatus> result) {
+        Throwable failure = null;
+        TransferStatus status = null;
+        try {
+            Account to = target.live(toAccountId);
+            if (to == null) {
+                status = TransferStatus.TO_NOT_FOUND;
+            } else if (!canCredit(to.getBalanceValue(), amount)) {
+                status = TransferStatus.BALANCE_TOO_HIGH;
+            } else {
+                to.deposit(amount);
+                status = TransferStatus.OK;
+                mutationLog().transferred(fromAccountId, toAccountId, amount);
+                notifyObservers(CrudEventType.UPDATED, to);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+        TransferStatus outcome = status;
+        Throwable error = failure;
+        source.submit(() -> settle(source, fromAccountId, amount, outcome, error, result));
+    }
+
+    /**
+     * Last step, back on the source shard. Puts the money back if the target did not take it and runs a delete that
+     * was waiting for the account's debits. The status is null if the target threw before it got to one.
+     */
+    private void settle(Shard source, long fromAccountId, double amount, TransferStatus status, Throwable failure,
+                        CompletableFuture<TransferStatus> result) {
+        Account from = source.accounts.get(fromAccountId);
+        try {
+            if (status != TransferStatus.OK) {
+                from.deposit(amount);
+            } else if (failure == null) {
+                notifyObservers(CrudEventType.UPDATED, from);
+            }
+        } catch (Throwable e) {
+            failure = failure == null ? e : failure;
+        } finally {
+            if (source.debitsInFlight.merge(fromAccountId, -1, Integer::sum) == 0) {
+                source.debitsInFlight.remove(fromAccountId);
+                CompletableFuture<Account> deletion = source.pendingDeletes.remove(fromAccountId);
+                if (deletion != null) {
+                    delete(source, fromAccountId, deletion);
+                }
+            }
+        }
+        if (failure == null) {
+            result.complete(status);
+        } else {
+            result.completeExceptionally(failure);
+        }
+    }
+
+    private void delete(Shard shard, Long id, CompletableFuture<Account> result) {
+        try {
+            Account account = shard.live(id);
+            if (account == null) {
+                throw new ServiceException("Account with id [" + id + "] not found");
+            }
+            if (shard.debitsInFlight.containsKey(id)) {
+                shard.pendingDeletes.put(id, result);
+                return;
+            }
+            shard.accounts.remove(id);
+            mutationLog().deleted(id);
+            notifyObservers(CrudEventType.DELETED, account);
+            result.complete(account.copy());
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Runs with every shard the batch touches owned by the calling thread
+     */
+    private List<TransferResult> executeBatch(List<Transfer> transfers, TransferBatchMode mode,
+                                              SortedSet<Long> accountIds) {
+        List<TransferResult> results = TransferBatch.execute(transfers, mode, accountIds, new TransferBatch.Store() {
+            @Override
+            public TransferStatus apply(Transfer transfer) {
+                if (Objects.equals(transfer.getFrom(), transfer.getTo())) {
+                    return TransferStatus.SAME_ACCOUNT;
+                }
+                Account from = shardOf(transfer.getFrom()).live(transfer.getFrom());
+                Account to = shardOf(transfer.getTo()).live(transfer.getTo());
+                if (from == null) {
+                    return TransferStatus.FROM_NOT_FOUND;
+                }
+                if (to == null) {
+                    return TransferStatus.TO_NOT_FOUND;
+                }
+                return applyTransfer(from, to, transfer.getAmount());
+            }
+
+            @Override
+            public Runnable checkpoint(Long accountId) {
+                Account account = shardOf(accountId).live(accountId);
+                if (account == null) {
+                    return null;
+                }
+                double balance = account.getBalanceValue();
+                return () -> account.restoreBalance(balance);
+            }
+        });
+        logTransfers(transfers, results);
+        TransferBatch.updatedAccounts(transfers, results)
+                .forEach(id -> notifyObservers(CrudEventType.UPDATED, shardOf(id).live(id)));
+        return results;
+    }
+
+    /**
+     * Parks every shard thread on a command of its own, runs the work and lets them go. The latches order the
+     * shards' earlier writes before the work and the work's writes before anything the shards do next.
+     */
+    private <T> T withShardsPaused(Supplier<T> work) {
+        pauseLock.lock();
+        try {
+            CountDownLatch paused = new CountDownLatch(shards.length);
+            CountDownLatch resumed = new CountDownLatch(1);
+            for (Shard shard : shards) {
+                shard.submit(() -> {
+                    paused.countDown();
+                    awaitUninterruptibly(resumed);
+                });
+            }
+            awaitUninterruptibly(paused);
+            try {
+                return work.get();
+            } finally {
+                resumed.countDown();
+            }
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private static <T> CompletableFuture<T> submit(Shard shard, Supplier<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        shard.submit(() -> {
+            try {
+                result.complete(command.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Waits for a shard's answer and rethrows its exception as is, so callers see the same exceptions as with the
+     * other stores
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Shard implements Runnable {
+        private final Map<Long, Account> accounts = new HashMap<>();
+        private final Map<Long, Integer> debitsInFlight = new HashMap<>();
+        private final Map<Long, CompletableFuture<Account>> pendingDeletes = new HashMap<>();
+        private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean sleeping;
+        private volatile boolean running = true;
+
+        private Shard(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * The account unless it is gone or waiting to be deleted
+         */
+        private Account live(Long id) {
+            return pendingDeletes.containsKey(id) ? null : accounts.get(id);
+        }
+
+        private void submit(Runnable command) {
+            commands.offer(command);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable command = commands.poll();
+                if (command != null) {
+                    command.run();
+                } else {
+                    idle();
+                }
+            }
+        }
+
+        /**
+         * Spins briefly before parking. A producer that queued a command after the last check sees the flag and
+         * unparks us, one that queued before it is seen by the check.
+         */
+        private void idle() {
+            for (int i = 0; i < IDLE_SPINS; i++) {
+                if (!commands.isEmpty()) {
+                    return;
+                }
+            }
+            sleeping = true;
+            if (commands.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+    }
+}
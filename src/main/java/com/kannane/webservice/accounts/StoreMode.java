@@ -0,0 +1,81 @@
+package com.kannane.webservice.accounts;
+
+import java.io.IOException;
+
+/**
+ * The account stores the server can be started with. Selected at startup with -Daccounts.store=&lt;mode&gt;
+ */
+public enum StoreMode {
+    /**
+     * The original store guarded by one global read/write lock. -Daccounts.hot=&lt;ids&gt; lists accounts that take
+     * deposits into striped cells from the start, -Daccounts.hot.threshold sets how many contended deposits a second
+     * turn any other account hot (0 never does) and -Daccounts.hot.stripes how many cells a hot account has.
+     */
+    INMEMORY {
+        @Override
+        public AbstractAccountService createService() {
+            InMemoryAccountService service = new InMemoryAccountService(
+                    Integer.getInteger("accounts.hot.threshold", InMemoryAccountService.DEFAULT_HOT_THRESHOLD),
+                    Integer.getInteger("accounts.hot.stripes", InMemoryAccountService.DEFAULT_HOT_STRIPES));
+            for (String id : System.getProperty("accounts.hot", "").split(",")) {
+                if (!id.trim().isEmpty()) {
+                    service.setHotAccount(Long.parseLong(id.trim()), true);
+                }
+            }
+            return service;
+        }
+    },
+    /**
+     * Concurrent map with per account locks, creates and deletes never block unrelated transfers
+     */
+    CONCURRENT {
+        @Override
+        public AbstractAccountService createService() {
+            return new ConcurrentAccountService();
+        }
+    },
+    /**
+     * Primitive columns indexed by id with fixed point balances, for very large account counts
+     */
+    COLUMNAR {
+        @Override
+        public AbstractAccountService createService() {
+            return new ColumnarAccountService();
+        }
+
+        @Override
+        public AbstractAccountService createService(AccountSnapshot snapshot) {
+            return new ColumnarAccountService(snapshot);
+        }
+    },
+    /**
+     * Accounts partitioned into -Daccounts.shards shards (default one per core), each owned by a single thread
+     */
+    SHARDED {
+        @Override
+        public AbstractAccountService createService() {
+            return new ShardedAccountService(Integer.getInteger("accounts.shards",
+                    Runtime.getRuntime().availableProcessors()));
+        }
+    };
+
+    public abstract AbstractAccountService createService();
+
+    /**
+     * A store holding the snapshot's accounts, the store takes ownership of the snapshot. Loads the accounts one by
+     * one and closes the snapshot unless the store can map it directly.
+     */
+    public AbstractAccountService createService(AccountSnapshot snapshot) throws IOException {
+        AbstractAccountService service = createService();
+        try {
+            snapshot.loadInto(service);
+        } finally {
+            snapshot.close();
+        }
+        return service;
+    }
+
+    public static StoreMode fromProperty(String value) {
+        return value == null ? INMEMORY : valueOf(value.trim().toUpperCase());
+    }
+}
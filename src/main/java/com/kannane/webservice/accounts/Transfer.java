@@ -0,0 +1,39 @@
+package com.kannane.webservice.accounts;
+
+/**
+ * One entry of a batch transfer request
+ */
+public class Transfer {
+
+    private final Long from;
+    private final Long to;
+    private final Double amount;
+
+    public Transfer(Long from, Long to, Double amount) {
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public Long getTo() {
+        return to;
+    }
+
+    public Double getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Transfer{");
+        sb.append("from=").append(from);
+        sb.append(", to=").append(to);
+        sb.append(", amount=").append(amount);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Applies a batch of transfers once the store holds the locks of every account in it. The stores only need to know
+ * how to apply one transfer and how to put an account's balance back, the batch semantics live here.
+ */
+final class TransferBatch {
+
+    interface Store {
+        /**
+         * Validates and applies one transfer, all locks are already held, and returns its outcome. A failed transfer
+         * changes nothing. Must not notify listeners.
+         */
+        TransferStatus apply(Transfer transfer);
+
+        /**
+         * Returns an action that puts the current balance of the account back, or null if there is no such account
+         */
+        Runnable checkpoint(Long accountId);
+    }
+
+    private TransferBatch() {
+    }
+
+    /**
+     * Every account id in the batch in increasing order, which is the order locks have to be taken in
+     */
+    static SortedSet<Long> lockOrder(List<Transfer> transfers) {
+        SortedSet<Long> ids = new TreeSet<>();
+        for (Transfer transfer : transfers) {
+            validate(transfer);
+            ids.add(transfer.getFrom());
+            ids.add(transfer.getTo());
+        }
+        return ids;
+    }
+
+    static List<TransferResult> execute(List<Transfer> transfers, TransferBatchMode mode,
+                                        Set<Long> accountIds, Store store) {
+        if (mode == TransferBatchMode.ALL_OR_NOTHING) {
+            return executeAllOrNothing(transfers, accountIds, store);
+        }
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            TransferStatus status = store.apply(transfer);
+            results.add(status.isSuccess() ? TransferResult.success() : TransferResult.failure(
+                    status.message(transfer.getFrom(), transfer.getTo(), transfer.getAmount())));
+        }
+        return results;
+    }
+
+    /**
+     * Accounts whose balance was changed by the successful transfers, in the order they were first touched
+     */
+    static Set<Long> updatedAccounts(List<Transfer> transfers, List<TransferResult> results) {
+        Set<Long> updated = new LinkedHashSet<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            if (results.get(i).isSuccess()) {
+                updated.add(transfers.get(i).getFrom());
+                updated.add(transfers.get(i).getTo());
+            }
+        }
+        return updated;
+    }
+
+    private static List<TransferResult> executeAllOrNothing(List<Transfer> transfers, Set<Long> accountIds,
+                                                            Store store) {
+        List<Runnable> checkpoints = new ArrayList<>(accountIds.size());
+        for (Long id : accountIds) {
+            Runnable checkpoint = store.checkpoint(id);
+            if (checkpoint != null) {
+                checkpoints.add(checkpoint);
+            }
+        }
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            TransferStatus status = store.apply(transfer);
+            if (!status.isSuccess()) {
+                checkpoints.forEach(Runnable::run);
+                throw new ServiceException("Transfer [" + i + "] of the batch failed: "
+                        + status.message(transfer.getFrom(), transfer.getTo(), transfer.getAmount()),
+                        status.getHttpErrorCode());
+            }
+        }
+        return Collections.nCopies(transfers.size(), TransferResult.success());
+    }
+
+    private static void validate(Transfer transfer) {
+        if (transfer == null || transfer.getFrom() == null || transfer.getTo() == null
+                || transfer.getAmount() == null) {
+            throw new ServiceException("Every transfer needs a from, to and amount [" + transfer + "]", 400);
+        }
+    }
+}
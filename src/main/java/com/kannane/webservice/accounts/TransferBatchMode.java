@@ -0,0 +1,25 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+public enum TransferBatchMode {
+    /**
+     * Either every transfer is applied or none is, the first failure fails the whole batch
+     */
+    ALL_OR_NOTHING,
+    /**
+     * Every transfer succeeds or fails on its own and gets its own result
+     */
+    PER_ITEM;
+
+    public static TransferBatchMode fromParam(String value) {
+        if (value == null || value.isEmpty()) {
+            return ALL_OR_NOTHING;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new ServiceException("Unknown batch mode [" + value + "]", 400);
+        }
+    }
+}
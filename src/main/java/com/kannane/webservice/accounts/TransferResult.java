@@ -0,0 +1,33 @@
+package com.kannane.webservice.accounts;
+
+/**
+ * Outcome of a single transfer in a batch, mirrors the {"success": "true"} body of the single transfer route
+ */
+public class TransferResult {
+
+    private static final TransferResult SUCCESS = new TransferResult("true", null);
+
+    private final String success;
+    private final String message;
+
+    private TransferResult(String success, String message) {
+        this.success = success;
+        this.message = message;
+    }
+
+    public static TransferResult success() {
+        return SUCCESS;
+    }
+
+    public static TransferResult failure(String message) {
+        return new TransferResult("false", message);
+    }
+
+    public boolean isSuccess() {
+        return SUCCESS.success.equals(success);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
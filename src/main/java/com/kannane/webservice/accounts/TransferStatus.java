@@ -0,0 +1,68 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+
+/**
+ * The outcome of a transfer. The expected failures are reported as one of these rather than thrown, each comes with
+ * a preallocated stackless {@link ServiceException} for answering it without building anything, and with a message
+ * naming the accounts and amount for callers that want the details.
+ */
+public enum TransferStatus {
+    OK(null),
+    SAME_ACCOUNT("The from and to account should not be the same"),
+    FROM_NOT_FOUND("The from account was not found"),
+    TO_NOT_FOUND("The to account was not found"),
+    INSUFFICIENT_FUNDS("Could not withdraw, the balance is too low"),
+    BALANCE_TOO_HIGH("Rounding error with balance, it went too high");
+
+    private final ServiceException error;
+
+    TransferStatus(String message) {
+        this.error = message == null ? null : new ServiceException(message, 500, false);
+    }
+
+    public boolean isSuccess() {
+        return this == OK;
+    }
+
+    /**
+     * The shared error of a failure, without the ids or amount. Null for {@link #OK}.
+     */
+    public ServiceException error() {
+        return error;
+    }
+
+    public int getHttpErrorCode() {
+        return error == null ? 200 : error.getHttpErrorCode();
+    }
+
+    /**
+     * What went wrong with the transfer, null for {@link #OK}
+     */
+    public String message(long fromAccountId, long toAccountId, double amount) {
+        switch (this) {
+            case SAME_ACCOUNT:
+                return "The from and to account should not be the same [" + fromAccountId + "]";
+            case FROM_NOT_FOUND:
+                return "Account Id [" + fromAccountId + "] not found";
+            case TO_NOT_FOUND:
+                return "Account Id [" + toAccountId + "] not found";
+            case INSUFFICIENT_FUNDS:
+                return "Could not withdraw [" + amount + "] from account [" + fromAccountId
+                        + "], the balance is too low";
+            case BALANCE_TOO_HIGH:
+                return "Rounding error with balance for [" + toAccountId + "]. Balance went too high";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Throws a failure as a new {@link ServiceException} carrying {@link #message(long, long, double)}
+     */
+    public void throwIfFailed(long fromAccountId, long toAccountId, double amount) {
+        if (this != OK) {
+            throw new ServiceException(message(fromAccountId, toAccountId, amount), error.getHttpErrorCode());
+        }
+    }
+}
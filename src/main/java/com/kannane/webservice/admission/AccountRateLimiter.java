@@ -0,0 +1,53 @@
+package com.kannane.webservice.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Requests per second allowed for each account, with bursts of up to burst requests. Each account is kept as the
+ * time its budget is spent until (the generic cell rate algorithm), one long in a fixed table, so checking is a
+ * compare and set and never allocates. Accounts are hashed into {@code slots} slots and accounts sharing a slot
+ * share a budget, size the table well above the accounts that are busy at one time.
+ */
+public class AccountRateLimiter {
+
+    private final AtomicLongArray spentUntil;
+    private final int mask;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long origin = System.nanoTime();
+
+    public AccountRateLimiter(double perSecond, int burst, int slots) {
+        if (perSecond <= 0 || burst < 1 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Need a positive rate and burst and a power of two of slots");
+        }
+        this.spentUntil = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Spends one request of the account's budget, 0 if it was left or else the nanos until it will be, in which
+     * case nothing is spent
+     */
+    public long tryAcquire(long accountId) {
+        int slot = slot(accountId);
+        long now = System.nanoTime() - origin;
+        while (true) {
+            long spent = spentUntil.get(slot);
+            long next = Math.max(spent, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (spentUntil.compareAndSet(slot, spent, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private int slot(long accountId) {
+        long hash = accountId * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,114 @@
+package com.kannane.webservice.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cap on the requests being served at once that follows the latency they are served with. Every
+ * {@value #WINDOW} requests the window's average latency is compared with a baseline, a smoothed average of the
+ * windows in which the limit was not reached, so no request queued for a place. Comparing an average with an
+ * average lets latencies spread out, or come from a mix of cheap and costly routes, without the limit taking the
+ * spread for queueing.
+ * <p>
+ * The limit only moves in windows where it was reached. While the average stays within {@value #TOLERANCE} times
+ * the baseline the limit grows by its square root, once the average goes beyond it the limit shrinks in proportion,
+ * to at most half. New limits are smoothed into the old one. Requests over the limit are meant to be refused at once
+ * rather than queued, so those let in keep the latency of a server that is busy but not overloaded. Waiting on a
+ * contended account lock counts as latency like any other, so the limit comes down to what the locks can serve.
+ * <p>
+ * Windows where the limit was reached leave the baseline alone apart from letting it drift up by a thousandth, so
+ * queueing cannot raise it along with the limit, while a server that became slower for good is still followed. The
+ * first window sets it whatever it was.
+ */
+public class AdaptiveLimit {
+
+    static final int WINDOW = 100;
+    private static final double TOLERANCE = 2;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BASELINE_SMOOTHING = 0.1;
+    private static final double DRIFT = 1.001;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger samples = new AtomicInteger();
+    private final AtomicLong latencySum = new AtomicLong();
+    private volatile int limit;
+    private volatile boolean saturated;
+    /**
+     * Guarded by this, like the baseline
+     */
+    private double estimate;
+    private double baselineNanos = -1;
+
+    public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Need 1 <= min <= initial <= max but got " + minLimit + ", "
+                    + initialLimit + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimate = initialLimit;
+    }
+
+    /**
+     * Takes a place if one is free, a successful call must be followed by {@link #release(long)}
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                saturated = true;
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        if (current + 1 >= limit) {
+            saturated = true;
+        }
+        return true;
+    }
+
+    /**
+     * Frees the place taken for a request that was served in the given time
+     */
+    public void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        latencySum.addAndGet(Math.max(0, latencyNanos));
+        if (samples.incrementAndGet() == WINDOW) {
+            long sum = latencySum.getAndSet(0);
+            samples.addAndGet(-WINDOW);
+            update(sum / (double) WINDOW);
+        }
+    }
+
+    private synchronized void update(double averageNanos) {
+        boolean reached = saturated;
+        saturated = false;
+        if (baselineNanos < 0) {
+            baselineNanos = averageNanos;
+        } else if (reached) {
+            baselineNanos *= DRIFT;
+        } else {
+            baselineNanos += (averageNanos - baselineNanos) * BASELINE_SMOOTHING;
+        }
+        if (!reached) {
+            return;
+        }
+        double gradient = averageNanos == 0 ? 1
+                : Math.max(MIN_GRADIENT, Math.min(1, TOLERANCE * baselineNanos / averageNanos));
+        double next = estimate * gradient + (gradient == 1 ? Math.sqrt(estimate) : 0);
+        estimate = Math.max(minLimit, Math.min(maxLimit, estimate * (1 - SMOOTHING) + next * SMOOTHING));
+        limit = (int) estimate;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
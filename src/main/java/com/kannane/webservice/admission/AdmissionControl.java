@@ -0,0 +1,76 @@
+package com.kannane.webservice.admission;
+
+import com.kannane.webservice.ServiceException;
+import spark.Request;
+import spark.Route;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a request is served before any work is done for it. A request naming an account (as :id, :from or
+ * :to) that is over its rate is answered 429, a request finding the {@link AdaptiveLimit} reached is answered 503,
+ * both with a Retry-After. Refusing costs a few atomic operations, so a server offered more than it can take spends
+ * its time on the requests it lets in.
+ */
+public class AdmissionControl {
+
+    private static final String[] ACCOUNT_PARAMS = {":id", ":from", ":to"};
+    private static final ServiceException OVERLOADED = new ServiceException("The server is overloaded, retry later",
+            503, 1);
+
+    private final AdaptiveLimit limit;
+    private final AccountRateLimiter accounts;
+
+    /**
+     * The rate limiter may be null to let every account through
+     */
+    public AdmissionControl(AdaptiveLimit limit, AccountRateLimiter accounts) {
+        this.limit = limit;
+        this.accounts = accounts;
+    }
+
+    /**
+     * The route behind admission, its time to handle a request feeds the limit
+     */
+    public Route admit(Route route) {
+        return (request, response) -> {
+            if (accounts != null) {
+                checkAccounts(request);
+            }
+            if (!limit.tryAcquire()) {
+                throw OVERLOADED;
+            }
+            long start = System.nanoTime();
+            try {
+                return route.handle(request, response);
+            } finally {
+                limit.release(System.nanoTime() - start);
+            }
+        };
+    }
+
+    public AdaptiveLimit getLimit() {
+        return limit;
+    }
+
+    private void checkAccounts(Request request) {
+        for (String param : ACCOUNT_PARAMS) {
+            String value = request.params(param);
+            if (value == null) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // The controller answers it with a 400
+                continue;
+            }
+            long waitNanos = accounts.tryAcquire(id);
+            if (waitNanos > 0) {
+                throw new ServiceException("Too many requests for account [" + id + "], retry later", 429,
+                        (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)));
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kannane.webservice.admission;
+
+import com.kannane.webservice.ServiceException;
+import spark.Route;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed cap on the streams served at once. A stream holds its thread for as long as its client listens, so its
+ * latency says nothing about load and streams are kept out of the {@link AdaptiveLimit}, but without a cap of their
+ * own they could take every server thread. A stream over the cap is answered 503 with a Retry-After.
+ */
+public class StreamLimit {
+
+    private static final ServiceException FULL = new ServiceException("Too many streams are open, retry later", 503,
+            1);
+
+    private final int max;
+    private final AtomicInteger open = new AtomicInteger();
+
+    public StreamLimit(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Need at least one stream but got " + max);
+        }
+        this.max = max;
+    }
+
+    /**
+     * The route behind the cap, a place is held until it returns
+     */
+    public Route admit(Route route) {
+        return (request, response) -> {
+            int current;
+            do {
+                current = open.get();
+                if (current >= max) {
+                    throw FULL;
+                }
+            } while (!open.compareAndSet(current, current + 1));
+            try {
+                return route.handle(request, response);
+            } finally {
+                open.decrementAndGet();
+            }
+        };
+    }
+
+    public int getOpen() {
+        return open.get();
+    }
+}
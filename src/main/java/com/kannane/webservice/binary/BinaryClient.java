@@ -0,0 +1,200 @@
+package com.kannane.webservice.binary;
+
+import com.kannane.webservice.accounts.TransferStatus;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static com.kannane.webservice.binary.BinaryProtocol.*;
+
+/**
+ * A blocking client for {@link BinaryServer}. The send methods only buffer a request and return its tag, requests go
+ * out on {@link #flush()} or when a response is read, so a caller can pipeline by sending a batch and then reading as
+ * many responses. Keep the requests in flight well under what the two sides buffer, a server whose responses are not
+ * read stops reading requests. Not thread safe.
+ */
+public class BinaryClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(2 * MAX_FRAME_BYTES);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(2 * MAX_FRAME_BYTES);
+    private final Response response = new Response();
+    private int nextTag;
+
+    public BinaryClient(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        in.flip();
+    }
+
+    public int sendTransfer(long fromId, long toId, long minorAmount) throws IOException {
+        int tag = header(TRANSFER, 3 * Long.BYTES);
+        out.putLong(fromId).putLong(toId).putLong(minorAmount);
+        return tag;
+    }
+
+    public int sendGet(long id) throws IOException {
+        int tag = header(GET, Long.BYTES);
+        out.putLong(id);
+        return tag;
+    }
+
+    public int sendCreate(String name, double balance) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Name is longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        int tag = header(CREATE, Double.BYTES + Short.BYTES + bytes.length);
+        out.putDouble(balance).putShort((short) bytes.length).put(bytes);
+        return tag;
+    }
+
+    public int sendDelete(long id) throws IOException {
+        int tag = header(DELETE, Long.BYTES);
+        out.putLong(id);
+        return tag;
+    }
+
+    /**
+     * Sends one transfer and waits for its answer
+     */
+    public TransferStatus transfer(long fromId, long toId, long minorAmount) throws IOException {
+        sendTransfer(fromId, toId, minorAmount);
+        Response response = read();
+        TransferStatus status = transferStatusOf(response.getStatus());
+        if (status == null) {
+            throw new IOException("Transfer failed with status " + response.getStatus() + ": "
+                    + response.getMessage());
+        }
+        return status;
+    }
+
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Reads the next response, sending whatever is buffered first. The returned object is reused by the next call.
+     */
+    public Response read() throws IOException {
+        if (out.position() > 0) {
+            flush();
+        }
+        fill(Integer.BYTES);
+        int length = in.getInt();
+        fill(length);
+        int end = in.position() + length;
+        response.status = in.get();
+        response.tag = in.getInt();
+        response.id = 0;
+        response.version = 0;
+        response.balance = 0;
+        response.name = null;
+        response.errorCode = 0;
+        response.message = null;
+        if (response.status == ERROR) {
+            response.errorCode = in.getShort();
+            response.message = readString();
+        } else if (in.position() < end && response.status == OK) {
+            response.id = in.getLong();
+            if (in.position() < end) {
+                response.version = in.getLong();
+                response.balance = in.getDouble();
+                response.name = readString();
+            }
+        }
+        in.position(end);
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int header(byte op, int payload) throws IOException {
+        if (out.remaining() < Integer.BYTES + HEADER_BYTES + payload) {
+            flush();
+        }
+        int tag = nextTag++;
+        out.putInt(HEADER_BYTES + payload).put(op).putInt(tag);
+        return tag;
+    }
+
+    private String readString() {
+        byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void fill(int bytes) throws IOException {
+        if (in.remaining() >= bytes) {
+            return;
+        }
+        in.compact();
+        try {
+            while (in.position() < bytes) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+            }
+        } finally {
+            in.flip();
+        }
+    }
+
+    /**
+     * One response, the fields its status and request carry are set and the rest are zero or null
+     */
+    public static final class Response {
+        private byte status;
+        private int tag;
+        private long id;
+        private long version;
+        private double balance;
+        private String name;
+        private int errorCode;
+        private String message;
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public double getBalance() {
+            return balance;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
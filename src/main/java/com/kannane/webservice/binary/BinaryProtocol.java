@@ -0,0 +1,95 @@
+package com.kannane.webservice.binary;
+
+import com.kannane.webservice.accounts.TransferStatus;
+
+/**
+ * The fixed layout of the binary protocol, all numbers big endian. Every frame starts with an int giving the length
+ * of the rest of the frame, followed by a type byte and an int tag the client picks and the response echoes.
+ * <pre>
+ * request   [int length][byte op][int tag][payload]
+ * response  [int length][byte status][int tag][payload]
+ *
+ * TRANSFER  [long from][long to][long amount in minor units]  -&gt; no payload
+ * GET       [long id]                                         -&gt; [long id][long version][double balance][name]
+ * CREATE    [double balance][name]                            -&gt; [long id]
+ * DELETE    [long id]                                         -&gt; no payload
+ * ERROR                                                       -&gt; [short http code][message]
+ * </pre>
+ * Names and messages are [unsigned short length][UTF-8 bytes]. A client may send any number of requests before
+ * reading, responses come back in request order.
+ */
+public final class BinaryProtocol {
+
+    public static final byte TRANSFER = 1;
+    public static final byte GET = 2;
+    public static final byte CREATE = 3;
+    public static final byte DELETE = 4;
+
+    public static final byte OK = 0;
+    public static final byte SAME_ACCOUNT = 1;
+    public static final byte FROM_NOT_FOUND = 2;
+    public static final byte TO_NOT_FOUND = 3;
+    public static final byte INSUFFICIENT_FUNDS = 4;
+    public static final byte BALANCE_TOO_HIGH = 5;
+    public static final byte NOT_FOUND = 6;
+    /**
+     * A frame the server could not make sense of, the connection is closed after it
+     */
+    public static final byte BAD_REQUEST = 7;
+    public static final byte ERROR = 8;
+
+    /**
+     * Type byte and tag, which every frame has after its length
+     */
+    public static final int HEADER_BYTES = 1 + Integer.BYTES;
+    public static final int MAX_STRING_BYTES = 0xFFFF;
+    /**
+     * The longest frame either side sends, length prefix included
+     */
+    public static final int MAX_FRAME_BYTES = Integer.BYTES + HEADER_BYTES + 3 * Long.BYTES + Short.BYTES
+            + MAX_STRING_BYTES;
+
+    private BinaryProtocol() {
+    }
+
+    public static byte statusOf(TransferStatus status) {
+        switch (status) {
+            case OK:
+                return OK;
+            case SAME_ACCOUNT:
+                return SAME_ACCOUNT;
+            case FROM_NOT_FOUND:
+                return FROM_NOT_FOUND;
+            case TO_NOT_FOUND:
+                return TO_NOT_FOUND;
+            case INSUFFICIENT_FUNDS:
+                return INSUFFICIENT_FUNDS;
+            case BALANCE_TOO_HIGH:
+                return BALANCE_TOO_HIGH;
+            default:
+                throw new IllegalArgumentException("No status for " + status);
+        }
+    }
+
+    /**
+     * The transfer status a response status stands for, null if it is not one
+     */
+    public static TransferStatus transferStatusOf(byte status) {
+        switch (status) {
+            case OK:
+                return TransferStatus.OK;
+            case SAME_ACCOUNT:
+                return TransferStatus.SAME_ACCOUNT;
+            case FROM_NOT_FOUND:
+                return TransferStatus.FROM_NOT_FOUND;
+            case TO_NOT_FOUND:
+                return TransferStatus.TO_NOT_FOUND;
+            case INSUFFICIENT_FUNDS:
+                return TransferStatus.INSUFFICIENT_FUNDS;
+            case BALANCE_TOO_HIGH:
+                return TransferStatus.BALANCE_TOO_HIGH;
+            default:
+                return null;
+        }
+    }
+}
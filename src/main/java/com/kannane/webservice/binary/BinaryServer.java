@@ -0,0 +1,353 @@
+package com.kannane.webservice.binary;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.kannane.webservice.binary.BinaryProtocol.*;
+
+/**
+ * Serves {@link BinaryProtocol} over TCP next to the REST routes, against the same {@link AccountService}. Connections
+ * are spread over a few event loops, each a thread with its own selector. A loop reads whatever a connection sent,
+ * runs every complete request in it, and writes all their responses with one write, so a client that pipelines
+ * gets many requests served per system call.
+ * <p>
+ * Requests run on the loop thread. A store call that waits, like a journaled transfer waiting for its fsync, holds
+ * up the other connections of that loop. When a client does not read its responses the loop stops reading its
+ * requests until the responses are written.
+ */
+public class BinaryServer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(BinaryServer.class.getName());
+    private static final int BUFFER_BYTES = 2 * MAX_FRAME_BYTES;
+
+    private final AccountService accountService;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening on the port, 0 picks a free one
+     */
+    public BinaryServer(AccountService accountService, int port, int eventLoops) throws IOException {
+        this.accountService = accountService;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("binary-loop-" + i);
+        }
+        acceptor = new Thread(this::acceptLoop, "binary-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        try {
+            acceptor.join();
+            for (EventLoop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                loops[next++ % loops.length].register(channel);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not accept a connection", e);
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    for (SocketChannel channel; (channel = accepted.poll()) != null; ) {
+                        Connection connection = new Connection(channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Event loop " + thread.getName() + " failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Could not close the selector", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A client connection and its buffers, only touched by its event loop. Both buffers stay in write mode between
+     * events.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private SelectionKey key;
+        private boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            serve();
+        }
+
+        void onWritable() throws IOException {
+            if (flush()) {
+                if (closing) {
+                    close();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                serve();
+            }
+        }
+
+        /**
+         * Runs every complete request read so far, then writes their responses at once. Stops early when the output
+         * has no room for another response and the socket takes no more, and waits to be writable.
+         */
+        private void serve() throws IOException {
+            in.flip();
+            try {
+                while (!closing && in.remaining() >= Integer.BYTES) {
+                    if (out.remaining() < MAX_FRAME_BYTES && !flush()) {
+                        break;
+                    }
+                    int length = in.getInt(in.position());
+                    if (length < HEADER_BYTES || length > MAX_FRAME_BYTES - Integer.BYTES) {
+                        badRequest(0);
+                        break;
+                    }
+                    if (in.remaining() < Integer.BYTES + length) {
+                        break;
+                    }
+                    int end = in.position() + Integer.BYTES + length;
+                    in.position(in.position() + Integer.BYTES);
+                    handle(end);
+                    in.position(end);
+                }
+            } finally {
+                in.compact();
+            }
+            if (!flush() || closing) {
+                if (closing && out.position() == 0) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void handle(int end) {
+            byte op = in.get();
+            int tag = in.getInt();
+            int start = out.position();
+            out.putInt(0);
+            try {
+                if (!dispatch(op, tag, end - in.position())) {
+                    out.position(start);
+                    badRequest(tag);
+                    return;
+                }
+            } catch (ServiceException e) {
+                out.position(start + Integer.BYTES);
+                error(tag, e.getHttpErrorCode(), e.getMessage());
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Request failed", e);
+                out.position(start + Integer.BYTES);
+                error(tag, 500, String.valueOf(e));
+            }
+            out.putInt(start, out.position() - start - Integer.BYTES);
+        }
+
+        /**
+         * Writes the response after the length, false if the payload does not fit the op
+         */
+        private boolean dispatch(byte op, int tag, int payload) {
+            switch (op) {
+                case TRANSFER: {
+                    if (payload != 3 * Long.BYTES) {
+                        return false;
+                    }
+                    long from = in.getLong(), to = in.getLong(), amount = in.getLong();
+                    out.put(statusOf(accountService.tryTransferMinor(from, to, amount))).putInt(tag);
+                    return true;
+                }
+                case GET: {
+                    if (payload != Long.BYTES) {
+                        return false;
+                    }
+                    Optional<Account> account = accountService.findAccount(in.getLong());
+                    if (!account.isPresent()) {
+                        out.put(NOT_FOUND).putInt(tag);
+                        return true;
+                    }
+                    Account found = account.get();
+                    byte[] name = found.getName() == null ? new byte[0]
+                            : found.getName().getBytes(StandardCharsets.UTF_8);
+                    if (name.length > MAX_STRING_BYTES) {
+                        error(tag, 500, "Name of account [" + found.getId() + "] is too long for the protocol");
+                        return true;
+                    }
+                    out.put(OK).putInt(tag).putLong(found.getId()).putLong(found.getVersion())
+                            .putDouble(found.getBalanceValue()).putShort((short) name.length).put(name);
+                    return true;
+                }
+                case CREATE: {
+                    if (payload < Double.BYTES + Short.BYTES) {
+                        return false;
+                    }
+                    double balance = in.getDouble();
+                    int nameLength = Short.toUnsignedInt(in.getShort());
+                    if (payload != Double.BYTES + Short.BYTES + nameLength) {
+                        return false;
+                    }
+                    byte[] name = new byte[nameLength];
+                    in.get(name);
+                    Account created = accountService.createAccount(
+                            new Account(0L, new String(name, StandardCharsets.UTF_8), balance));
+                    out.put(OK).putInt(tag).putLong(created.getId());
+                    return true;
+                }
+                case DELETE: {
+                    if (payload != Long.BYTES) {
+                        return false;
+                    }
+                    accountService.deleteAccount(in.getLong());
+                    out.put(OK).putInt(tag);
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        private void error(int tag, int httpCode, String message) {
+            byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, MAX_STRING_BYTES);
+            out.put(ERROR).putInt(tag).putShort((short) httpCode).putShort((short) length).put(bytes, 0, length);
+        }
+
+        /**
+         * Answers a frame that breaks the protocol and closes the connection once the answer is out, nothing after
+         * it can be trusted to be framed right
+         */
+        private void badRequest(int tag) {
+            out.putInt(HEADER_BYTES).put(BAD_REQUEST).putInt(tag);
+            closing = true;
+        }
+
+        /**
+         * True once everything buffered is written
+         */
+        private boolean flush() throws IOException {
+            if (out.position() == 0) {
+                return true;
+            }
+            out.flip();
+            try {
+                channel.write(out);
+            } finally {
+                out.compact();
+            }
+            return out.position() == 0;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not close a connection", e);
+            }
+        }
+    }
+}
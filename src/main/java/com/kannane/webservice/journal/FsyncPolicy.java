@@ -0,0 +1,24 @@
+package com.kannane.webservice.journal;
+
+/**
+ * When a journal group commit counts as durable and a mutation can be acknowledged
+ */
+public enum FsyncPolicy {
+    /**
+     * Every group commit is forced to disk before the mutations in it are acknowledged
+     */
+    EVERY_COMMIT,
+    /**
+     * Mutations are acknowledged once written to the OS, the file is forced at most once per interval.
+     * A power loss can lose up to one interval of acknowledged mutations.
+     */
+    PERIODIC,
+    /**
+     * Mutations are acknowledged once written to the OS, forcing is left to the OS
+     */
+    NONE;
+
+    public static FsyncPolicy fromProperty(String value) {
+        return value == null ? EVERY_COMMIT : valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,482 @@
+package com.kannane.webservice.journal;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.MutationLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of account mutations written through a {@link FileChannel}.
+ * <p>
+ * Stores append records while holding their account locks, which only copies the record into an in memory buffer.
+ * A single writer thread swaps that buffer out, writes it and forces it according to the {@link FsyncPolicy}, so all
+ * mutations that arrived while the previous commit was in flight share one write and one fsync (group commit).
+ * <p>
+ * Every record is framed as [int length][int crc32][body] so a torn tail left by a crash is detected and cut off
+ * when the journal is replayed.
+ */
+public class Journal implements MutationLog, Closeable {
+
+    /**
+     * Creations written before missing fields were flagged, still replayed
+     */
+    private static final byte CREATED_UNFLAGGED = 1;
+    private static final byte DELETED = 2;
+    private static final byte TRANSFERRED = 3;
+    private static final byte CREATED = 4;
+    private static final byte NO_NAME = 1;
+    private static final byte NO_BALANCE = 2;
+    private static final int FRAME_HEADER = Integer.BYTES * 2;
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasData = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private int recordStart;
+    private long appended;
+    private long durable;
+    private long commits;
+    private boolean closed;
+    private volatile IOException failure;
+
+    private Journal(Path path, FsyncPolicy policy, long fsyncIntervalMillis) throws IOException {
+        this.path = path;
+        this.policy = policy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public static Journal open(Path path, FsyncPolicy policy, long fsyncIntervalMillis) throws IOException {
+        return new Journal(path, policy, fsyncIntervalMillis);
+    }
+
+    /**
+     * Applies every intact record to the store, cuts off a torn tail and starts accepting appends at the end of the
+     * log. Must be called once, before the journal is installed as the store's {@link MutationLog}.
+     */
+    public void replay(AbstractAccountService store) throws IOException {
+        replay(store, 0);
+    }
+
+    /**
+     * Same as {@link #replay(AbstractAccountService)} for a store that already holds everything before the position,
+     * typically one restored from a snapshot
+     */
+    public void replay(AbstractAccountService store, long fromPosition) throws IOException {
+        long end = readRecords(fromPosition, channel.size(), body -> apply(store, body));
+        channel.truncate(end);
+        channel.position(end);
+        appended = durable = end;
+        writer.start();
+    }
+
+    /**
+     * Applies the records between the positions to another store while the journal keeps taking appends, used to
+     * roll a snapshot forward. Returns the position after the last record applied.
+     */
+    public long copyTo(AbstractAccountService store, long fromPosition, long toPosition) throws IOException {
+        return readRecords(fromPosition, toPosition, body -> apply(store, body));
+    }
+
+    /**
+     * A missing name or balance is flagged, so replay creates the account as it was given
+     */
+    @Override
+    public void created(Account account) {
+        byte[] name = account.getName() == null ? new byte[0] : account.getName().getBytes(StandardCharsets.UTF_8);
+        byte flags = (byte) ((account.getName() == null ? NO_NAME : 0) | (account.hasBalance() ? 0 : NO_BALANCE));
+        lock.lock();
+        try {
+            ByteBuffer buffer = beginRecord(2 + Long.BYTES + Double.BYTES + Integer.BYTES + name.length);
+            buffer.put(CREATED).put(flags).putLong(account.getId()).putDouble(account.getBalanceValue())
+                    .putInt(name.length).put(name);
+            endRecord(buffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleted(Long id) {
+        lock.lock();
+        try {
+            ByteBuffer buffer = beginRecord(1 + Long.BYTES);
+            buffer.put(DELETED).putLong(id);
+            endRecord(buffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void transferred(long fromAccountId, long toAccountId, double amount) {
+        lock.lock();
+        try {
+            ByteBuffer buffer = beginRecord(1 + Long.BYTES * 2 + Double.BYTES);
+            buffer.put(TRANSFERRED).putLong(fromAccountId).putLong(toAccountId).putDouble(amount);
+            endRecord(buffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End of the log including records not yet written
+     */
+    public long appendedPosition() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End of the log that is durable as defined by the {@link FsyncPolicy}, always at a record boundary
+     */
+    public long durablePosition() {
+        lock.lock();
+        try {
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until everything up to the position is durable as defined by the {@link FsyncPolicy}
+     */
+    public void awaitDurable(long position) {
+        lock.lock();
+        try {
+            while (durable < position) {
+                checkWritable();
+                committed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkWritable();
+    }
+
+    /**
+     * Waits until the durable end of the log moves past the position or the timeout passes, returns the durable end
+     */
+    public long awaitDurableBeyond(long position, long timeoutMillis) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (durable <= position && remaining > 0 && failure == null) {
+                remaining = committed.awaitNanos(remaining);
+            }
+            return durable;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the raw framed records between the positions to the target with positional reads, letting the OS move
+     * the bytes where it can. Returns the number of bytes copied.
+     */
+    public long transferTo(long fromPosition, long toPosition, WritableByteChannel target) throws IOException {
+        long position = fromPosition;
+        while (position < toPosition) {
+            long sent = channel.transferTo(position, toPosition - position, target);
+            if (sent <= 0) {
+                break;
+            }
+            position += sent;
+        }
+        return position - fromPosition;
+    }
+
+    /**
+     * Applies the complete records at the front of the buffer to the store and moves the buffer past them, for
+     * records that arrive from somewhere else than a file such as a replication stream. An incomplete record at the
+     * end stays in the buffer. Returns the number of bytes applied.
+     */
+    public static int applyRecords(ByteBuffer frames, AbstractAccountService store) throws IOException {
+        CRC32 checksum = new CRC32();
+        int applied = 0;
+        while (frames.remaining() >= FRAME_HEADER) {
+            int start = frames.position();
+            int length = frames.getInt(start);
+            if (length <= 0 || length > MAX_RECORD) {
+                throw new IOException("Invalid journal record length [" + length + "]");
+            }
+            if (frames.remaining() < FRAME_HEADER + length) {
+                break;
+            }
+            ByteBuffer body = frames.duplicate();
+            body.position(start + FRAME_HEADER).limit(start + FRAME_HEADER + length);
+            body = body.slice();
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != frames.getInt(start + Integer.BYTES)) {
+                throw new IOException("Journal record failed its checksum");
+            }
+            apply(store, body);
+            frames.position(start + FRAME_HEADER + length);
+            applied += FRAME_HEADER + length;
+        }
+        return applied;
+    }
+
+    /**
+     * Number of group commits written so far, each being one write and at most one fsync
+     */
+    public long commits() {
+        lock.lock();
+        try {
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    /**
+     * Refuses the record after a failed write, the writer has stopped and the buffer would only grow
+     */
+    private ByteBuffer beginRecord(int bodyLength) {
+        checkWritable();
+        int frameLength = FRAME_HEADER + bodyLength;
+        if (pending.remaining() < frameLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + frameLength));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        recordStart = pending.position();
+        pending.putInt(bodyLength).putInt(0);
+        return pending;
+    }
+
+    private void endRecord(ByteBuffer buffer) {
+        int bodyStart = recordStart + FRAME_HEADER;
+        int bodyLength = buffer.position() - bodyStart;
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + bodyStart, bodyLength);
+        buffer.putInt(recordStart + Integer.BYTES, (int) crc.getValue());
+        appended += FRAME_HEADER + bodyLength;
+        hasData.signal();
+    }
+
+    private void writeLoop() {
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (true) {
+            long target;
+            lock.lock();
+            try {
+                if (pending.position() == 0 && !closed) {
+                    if (policy == FsyncPolicy.PERIODIC) {
+                        hasData.awaitNanos(fsyncIntervalNanos);
+                    } else {
+                        hasData.awaitUninterruptibly();
+                    }
+                }
+                if (closed && pending.position() == 0) {
+                    return;
+                }
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+                target = appended;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            boolean hasRecords = writing.position() > 0;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                writing.clear();
+                unforced |= hasRecords;
+                long now = System.nanoTime();
+                if (unforced && (policy == FsyncPolicy.EVERY_COMMIT
+                        || (policy == FsyncPolicy.PERIODIC && now - lastForce >= fsyncIntervalNanos))) {
+                    channel.force(false);
+                    lastForce = now;
+                    unforced = false;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            lock.lock();
+            try {
+                if (failure != null) {
+                    committed.signalAll();
+                    return;
+                }
+                if (hasRecords) {
+                    durable = target;
+                    commits++;
+                    committed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Throws once a write has failed, from then on the journal takes no records and mutations must be refused before
+     * they reach the store
+     */
+    public void checkWritable() {
+        if (failure != null) {
+            throw new ServiceException("Journal write failed: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Reads framed records with positional reads, which leaves the channel position to the writer thread. Stops at
+     * the limit or at the first record that is incomplete or fails its checksum.
+     */
+    private long readRecords(long fromPosition, long toPosition, Consumer<ByteBuffer> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.limit(0);
+        long readPosition = fromPosition;
+        long recordPosition = fromPosition;
+        CRC32 checksum = new CRC32();
+        while (true) {
+            if (buffer.remaining() < FRAME_HEADER) {
+                long read = fill(buffer, readPosition, toPosition);
+                if (read <= 0 || buffer.remaining() < FRAME_HEADER) {
+                    return recordPosition;
+                }
+                readPosition += read;
+            }
+            int length = buffer.getInt(buffer.position());
+            int expectedCrc = buffer.getInt(buffer.position() + Integer.BYTES);
+            if (length <= 0 || length > MAX_RECORD) {
+                return recordPosition;
+            }
+            if (buffer.remaining() < FRAME_HEADER + length) {
+                if (buffer.capacity() < FRAME_HEADER + length) {
+                    ByteBuffer grown = ByteBuffer.allocate(FRAME_HEADER + length);
+                    grown.put(buffer);
+                    grown.flip();
+                    buffer = grown;
+                }
+                long read = fill(buffer, readPosition, toPosition);
+                if (read <= 0) {
+                    return recordPosition;
+                }
+                readPosition += read;
+                continue;
+            }
+            int bodyStart = buffer.position() + FRAME_HEADER;
+            checksum.reset();
+            checksum.update(buffer.array(), buffer.arrayOffset() + bodyStart, length);
+            if ((int) checksum.getValue() != expectedCrc) {
+                return recordPosition;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(bodyStart).limit(bodyStart + length);
+            consumer.accept(body.slice());
+            buffer.position(bodyStart + length);
+            recordPosition += FRAME_HEADER + length;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more after them, never past the limit
+     */
+    private long fill(ByteBuffer buffer, long readPosition, long toPosition) throws IOException {
+        buffer.compact();
+        long readable = Math.min(buffer.remaining(), toPosition - readPosition);
+        long read = 0;
+        if (readable > 0) {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) readable);
+            read = Math.max(0, channel.read(buffer, readPosition));
+            buffer.limit(limit);
+        }
+        buffer.flip();
+        return read;
+    }
+
+    private static void apply(AbstractAccountService store, ByteBuffer body) {
+        byte type = body.get();
+        switch (type) {
+            case CREATED_UNFLAGGED:
+            case CREATED:
+                byte flags = type == CREATED ? body.get() : 0;
+                long id = body.getLong();
+                double balance = body.getDouble();
+                byte[] name = new byte[body.getInt()];
+                body.get(name);
+                store.restoreAccount(new Account(id, (flags & NO_NAME) != 0 ? null
+                        : new String(name, StandardCharsets.UTF_8), (flags & NO_BALANCE) != 0 ? null : balance));
+                break;
+            case DELETED:
+                store.deleteAccount(body.getLong());
+                break;
+            case TRANSFERRED:
+                store.transferMoney(body.getLong(), body.getLong(), body.getDouble());
+                break;
+            default:
+                throw new UncheckedIOException(new IOException("Unknown journal record type [" + type + "]"));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.kannane.webservice.journal;
+
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.Transfer;
+import com.kannane.webservice.accounts.TransferBatchMode;
+import com.kannane.webservice.accounts.TransferResult;
+import com.kannane.webservice.accounts.TransferStatus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Makes a store durable. The journal is replayed into the store on construction and then installed as the store's
+ * {@link com.kannane.webservice.accounts.MutationLog}, mutations only return once their records are durable.
+ * <p>
+ * The wait happens after the store has released its locks, so a slow fsync never extends lock hold times and
+ * concurrent callers end up sharing the same group commit. Once a journal write has failed every mutation is refused
+ * before it reaches the store, so the store keeps no change the journal lost.
+ */
+public class JournalingAccountService implements AccountService {
+
+    private final AbstractAccountService delegate;
+    private final Journal journal;
+
+    public JournalingAccountService(AbstractAccountService delegate, Journal journal) throws IOException {
+        this(delegate, journal, 0);
+    }
+
+    /**
+     * For a store that already holds the journal up to the position, e.g. one restored from a snapshot
+     */
+    public JournalingAccountService(AbstractAccountService delegate, Journal journal, long fromPosition)
+            throws IOException {
+        this.delegate = delegate;
+        this.journal = journal;
+        journal.replay(delegate, fromPosition);
+        delegate.setMutationLog(journal);
+    }
+
+    @Override
+    public Optional<Account> findAccount(Long id) {
+        return delegate.findAccount(id);
+    }
+
+    @Override
+    public List<Account> findAccounts(List<Long> ids) {
+        return delegate.findAccounts(ids);
+    }
+
+    @Override
+    public long versionOf(Long id) {
+        return delegate.versionOf(id);
+    }
+
+    /**
+     * A failed transfer logged nothing and has nothing to wait for
+     */
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        journal.checkWritable();
+        TransferStatus status = delegate.tryTransfer(fromAccountId, toAccountId, amount);
+        if (status.isSuccess()) {
+            awaitDurable();
+        }
+        return status;
+    }
+
+    @Override
+    public TransferStatus tryTransferMinor(long fromAccountId, long toAccountId, long minorAmount) {
+        journal.checkWritable();
+        TransferStatus status = delegate.tryTransferMinor(fromAccountId, toAccountId, minorAmount);
+        if (status.isSuccess()) {
+            awaitDurable();
+        }
+        return status;
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        journal.checkWritable();
+        List<TransferResult> results = delegate.transferBatch(transfers, mode);
+        awaitDurable();
+        return results;
+    }
+
+    @Override
+    public Account createAccount(Account account) {
+        journal.checkWritable();
+        Account created = delegate.createAccount(account);
+        awaitDurable();
+        return created;
+    }
+
+    /**
+     * One wait for the whole batch, its records share the group commits
+     */
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        journal.checkWritable();
+        List<Account> created = delegate.createAccounts(accounts);
+        awaitDurable();
+        return created;
+    }
+
+    @Override
+    public Account deleteAccount(Long id) {
+        journal.checkWritable();
+        Account deleted = delegate.deleteAccount(id);
+        awaitDurable();
+        return deleted;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * The store the journal is applied to, for reads that need more than {@link AccountService}
+     */
+    public AbstractAccountService getStore() {
+        return delegate;
+    }
+
+    /**
+     * Our record is somewhere before the current end of the log, waiting for the end covers it
+     */
+    private void awaitDurable() {
+        journal.awaitDurable(journal.appendedPosition());
+    }
+}
@@ -0,0 +1,93 @@
+package com.kannane.webservice.journal;
+
+import com.kannane.webservice.accounts.AccountSnapshot;
+import com.kannane.webservice.accounts.ColumnarAccountService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes periodic snapshots without touching the live store. Each snapshot is the previous snapshot rolled forward
+ * with the journal records written since, applied to a private {@link ColumnarAccountService}. The live store is
+ * never locked or paused and the cost of a snapshot is proportional to the journal written since the last one.
+ * <p>
+ * The two most recent snapshots are kept, a store booted lazily from the older one still has it open.
+ */
+public class Snapshotter implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(Snapshotter.class.getName());
+    private static final int SNAPSHOTS_KEPT = 2;
+
+    private final Path directory;
+    private final Journal journal;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Snapshotter(Path directory, Journal journal) {
+        this.directory = directory;
+        this.journal = journal;
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                takeSnapshot();
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Snapshot failed, will retry on the next run", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a snapshot covering the journal up to its durable position, returns null when nothing changed
+     */
+    public synchronized Path takeSnapshot() throws IOException {
+        long target = journal.durablePosition();
+        ColumnarAccountService shadow;
+        long from;
+        try (AccountSnapshot previous = AccountSnapshot.latest(directory)) {
+            if (previous != null && previous.getJournalPosition() >= target) {
+                return null;
+            }
+            shadow = previous == null ? new ColumnarAccountService() : new ColumnarAccountService(previous);
+            from = previous == null ? 0 : previous.getJournalPosition();
+            long reached = journal.copyTo(shadow, from, target);
+            Path written = AccountSnapshot.write(shadow, directory, reached);
+            deleteOldSnapshots();
+            return written;
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (AccountSnapshot.positionOf(file) >= 0) {
+                    snapshots.add(file);
+                }
+            }
+        }
+        snapshots.sort((a, b) -> Long.compare(AccountSnapshot.positionOf(b), AccountSnapshot.positionOf(a)));
+        for (int i = SNAPSHOTS_KEPT; i < snapshots.size(); i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+}
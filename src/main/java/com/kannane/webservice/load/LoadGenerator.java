@@ -0,0 +1,363 @@
+package com.kannane.webservice.load;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.kannane.webservice.Server;
+import com.kannane.webservice.accounts.AccountImporter;
+import com.kannane.webservice.load.LoadMix.Operation;
+import spark.Spark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a server over HTTP with a mix of account reads, creates, deletes and transfers and reports throughput and
+ * latency percentiles as JSON. Without a --target it starts {@link Server} in this JVM, configured by the same
+ * -Daccounts.* properties as a real one.
+ * <p>
+ * The load is open loop: request i is due at start + i / rate whether or not earlier ones have been answered, and
+ * its latency is measured from when it was due. A closed loop client that waits for each answer before sending the
+ * next sends less while the server stalls and never sees the requests that would have queued up behind the stall
+ * (coordinated omission), this one keeps sending and counts the queueing.
+ * <p>
+ * Accounts are imported up front and picked with a Zipfian skew over a shuffled order, so the hot accounts are
+ * spread over the id range. Creates add accounts of their own, which are what deletes remove.
+ * <p>
+ * Options, all --name=value: target, accounts (10000), zipf (0.99), mix ({@link LoadMix#DEFAULT}), rate (requests
+ * per second, 500), duration and warmup (seconds, 30 and 5), connections (64), report (a file, otherwise stdout),
+ * baseline (a report to compare with), threshold (0.25) and write-baseline (a file to store the report as the new
+ * baseline). The process exits with 1 if the run regressed beyond the threshold.
+ */
+public class LoadGenerator {
+
+    private static final double TRANSFER_AMOUNT = 0.01;
+    private static final double OPENING_BALANCE = 1_000_000_000;
+
+    private final Map<String, String> options;
+    private final int accounts;
+    private final ZipfianGenerator zipf;
+    private final LoadMix mix;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int connections;
+    private final Queue<Long> created = new ConcurrentLinkedQueue<>();
+    private final AtomicLong createdCount = new AtomicLong();
+    private String baseUrl;
+    private long[] ids;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.accounts = Integer.parseInt(options.getOrDefault("accounts", "10000"));
+        this.zipf = new ZipfianGenerator(accounts, Double.parseDouble(options.getOrDefault("zipf", "0.99")));
+        this.mix = LoadMix.parse(options.getOrDefault("mix", LoadMix.DEFAULT));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "500"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "64"));
+        if (rate <= 0 || durationNanos <= 0 || connections < 1) {
+            throw new IllegalArgumentException("Need a positive rate, duration and connection count");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        Map<String, Object> report = new LoadGenerator(options).run();
+        String json = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(report);
+        if (options.containsKey("report")) {
+            Files.write(Paths.get(options.get("report")), json.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println(json);
+        }
+        if (options.containsKey("write-baseline")) {
+            Files.write(Paths.get(options.get("write-baseline")), json.getBytes(StandardCharsets.UTF_8));
+        }
+        int exitCode = 0;
+        if (options.containsKey("baseline")) {
+            List<String> regressions = LoadReport.regressions(report, readReport(Paths.get(options.get("baseline"))),
+                    Double.parseDouble(options.getOrDefault("threshold", "0.25")));
+            regressions.forEach(regression -> System.err.println("REGRESSION: " + regression));
+            exitCode = regressions.isEmpty() ? 0 : 1;
+        }
+        System.exit(exitCode);
+    }
+
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got [" + arg + "]");
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Reads a report written by an earlier run, numbers come back as doubles
+     */
+    public static Map<String, Object> readReport(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return toMap(new JsonParser().parse(reader).getAsJsonObject());
+        }
+    }
+
+    /**
+     * Imports the accounts, runs the warmup and the measured window and returns the report
+     */
+    public Map<String, Object> run() throws IOException, InterruptedException {
+        System.setProperty("http.maxConnections", Integer.toString(connections));
+        boolean inProcess = !options.containsKey("target");
+        baseUrl = inProcess ? startServer() : options.get("target").replaceAll("/+$", "");
+        try {
+            ids = importAccounts();
+            LoadReport report = new LoadReport();
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+            Schedule schedule = new Schedule(start, start + warmupNanos, durationNanos);
+            List<Thread> workers = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                Thread worker = new Thread(() -> work(schedule, report), "load-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return report.toMap(settings(), durationNanos);
+        } finally {
+            if (inProcess) {
+                Spark.stop();
+                Spark.awaitStop();
+            }
+        }
+    }
+
+    private Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("target", options.getOrDefault("target", "in-process"));
+        settings.put("accounts", accounts);
+        settings.put("zipf", Double.parseDouble(options.getOrDefault("zipf", "0.99")));
+        settings.put("mix", options.getOrDefault("mix", LoadMix.DEFAULT));
+        settings.put("rate", rate);
+        settings.put("durationSeconds", TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        settings.put("warmupSeconds", TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        settings.put("connections", connections);
+        return settings;
+    }
+
+    /**
+     * Requests are handed out in due order. A worker sleeps until its request is due, or sends it at once if it is
+     * late. Once the run is over by more than a tenth of its length whatever is still due is dropped.
+     */
+    private void work(Schedule schedule, LoadReport report) {
+        Random random = ThreadLocalRandom.current();
+        while (true) {
+            long due = schedule.due(schedule.sequence.getAndIncrement(), rate);
+            if (due >= schedule.end) {
+                return;
+            }
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            Operation operation = mix.next(random);
+            Long deletable = operation == Operation.DELETE ? created.poll() : null;
+            if (operation == Operation.DELETE && deletable == null) {
+                operation = Operation.CREATE;
+            }
+            if (now > schedule.deadline) {
+                if (due >= schedule.measureFrom) {
+                    report.dropped(operation, now - due);
+                }
+                continue;
+            }
+            boolean success = send(operation, deletable, random);
+            long done = System.nanoTime();
+            if (due >= schedule.measureFrom) {
+                report.record(operation, done - due, success);
+            }
+            if (done >= schedule.measureFrom && done < schedule.end) {
+                report.completedInWindow();
+            }
+        }
+    }
+
+    private boolean send(Operation operation, Long deletable, Random random) {
+        try {
+            switch (operation) {
+                case GET:
+                    return exchange("GET", "/account/" + ids[zipf.next(random) - 1]) != null;
+                case CREATE:
+                    String body = exchange("PUT", "/account?name=load-" + createdCount.incrementAndGet()
+                            + "&balance=" + OPENING_BALANCE);
+                    if (body == null) {
+                        return false;
+                    }
+                    created.offer(new JsonParser().parse(body).getAsJsonObject().get("id").getAsLong());
+                    return true;
+                case DELETE:
+                    return exchange("DELETE", "/account/" + deletable) != null;
+                case TRANSFER:
+                    int from = zipf.next(random), to = zipf.next(random);
+                    if (from == to) {
+                        to = from % accounts + 1;
+                    }
+                    return exchange("POST", "/transfer/from/" + ids[from - 1] + "/to/" + ids[to - 1] + "/amount/"
+                            + TRANSFER_AMOUNT) != null;
+                default:
+                    throw new IllegalStateException("Unknown operation " + operation);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Imports the accounts in one streamed request and returns their ids in a shuffled order, the position in it is
+     * the Zipfian rank
+     */
+    private long[] importAccounts() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/accounts/import").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", AccountImporter.CONTENT_TYPE);
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(1 << 16);
+        try (OutputStream out = connection.getOutputStream()) {
+            byte[] balance = (",\"balance\":" + OPENING_BALANCE + "}\n").getBytes(StandardCharsets.UTF_8);
+            for (int i = 1; i <= accounts; i++) {
+                out.write(("{\"name\":\"load-account-" + i + "\"").getBytes(StandardCharsets.UTF_8));
+                out.write(balance);
+            }
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("Importing the accounts failed with " + connection.getResponseCode());
+        }
+        long[] imported = new long[accounts];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject result = new JsonParser().parse(line).getAsJsonObject();
+                if (result.has("error")) {
+                    throw new IOException("Importing the accounts failed: " + result.get("error").getAsString());
+                }
+                if (result.has("id")) {
+                    imported[count++] = result.get("id").getAsLong();
+                }
+            }
+        }
+        if (count != accounts) {
+            throw new IOException("Imported " + count + " of " + accounts + " accounts");
+        }
+        Random shuffle = new Random(accounts);
+        for (int i = imported.length - 1; i > 0; i--) {
+            int j = shuffle.nextInt(i + 1);
+            long swap = imported[i];
+            imported[i] = imported[j];
+            imported[j] = swap;
+        }
+        return imported;
+    }
+
+    /**
+     * The response body of a 2xx answer, null for any other status. The body is always read to the end so the
+     * connection goes back to the pool.
+     */
+    private String exchange(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String response = in == null ? "" : read(in);
+        return status >= 200 && status < 300 ? response : null;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[1024];
+            StringBuilder text = new StringBuilder();
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                text.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Starts the server on -Daccounts.port, or a free port if none is set, and returns its URL
+     */
+    private static String startServer() throws IOException {
+        int port = Integer.getInteger("accounts.port", 0);
+        if (port == 0) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            System.setProperty("accounts.port", Integer.toString(port));
+        }
+        Server.main(new String[0]);
+        Spark.awaitInitialization();
+        return "http://localhost:" + port;
+    }
+
+    private static Map<String, Object> toMap(JsonObject object) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            JsonElement value = entry.getValue();
+            if (value.isJsonObject()) {
+                map.put(entry.getKey(), toMap(value.getAsJsonObject()));
+            } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+                map.put(entry.getKey(), value.getAsDouble());
+            } else if (!value.isJsonNull()) {
+                map.put(entry.getKey(), value.getAsString());
+            }
+        }
+        return map;
+    }
+
+    private static final class Schedule {
+        private final AtomicLong sequence = new AtomicLong();
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final long deadline;
+
+        private Schedule(long start, long measureFrom, long durationNanos) {
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = measureFrom + durationNanos;
+            this.deadline = end + Math.max(TimeUnit.SECONDS.toNanos(1), durationNanos / 10);
+        }
+
+        private long due(long sequence, double rate) {
+            return start + (long) (sequence * (TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+    }
+}
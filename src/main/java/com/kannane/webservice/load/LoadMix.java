@@ -0,0 +1,65 @@
+package com.kannane.webservice.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * How often each kind of request is sent, as relative weights like get=70,transfer=25,create=3,delete=2. Operations
+ * left out are not sent.
+ */
+public class LoadMix {
+
+    public enum Operation {
+        GET,
+        CREATE,
+        DELETE,
+        TRANSFER
+    }
+
+    public static final String DEFAULT = "get=70,transfer=25,create=3,delete=2";
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+
+    public LoadMix(Map<Operation, Integer> weights) {
+        operations = new Operation[weights.size()];
+        cumulativeWeights = new int[weights.size()];
+        int total = 0, i = 0;
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            if (weight.getValue() < 0) {
+                throw new IllegalArgumentException("Negative weight for " + weight.getKey());
+            }
+            total += weight.getValue();
+            operations[i] = weight.getKey();
+            cumulativeWeights[i++] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("The mix needs at least one operation with a weight");
+        }
+        totalWeight = total;
+    }
+
+    public static LoadMix parse(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight but got [" + part + "]");
+            }
+            weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+        }
+        return new LoadMix(weights);
+    }
+
+    public Operation next(Random random) {
+        int draw = random.nextInt(totalWeight);
+        for (int i = 0; i < operations.length; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("Draw beyond the total weight");
+    }
+}
@@ -0,0 +1,183 @@
+package com.kannane.webservice.load;
+
+import com.kannane.webservice.load.LoadMix.Operation;
+import com.kannane.webservice.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and outcomes of a load run, per operation and overall. A latency runs from the time the request was
+ * meant to be sent, not from when it was, so time spent waiting behind a slow server counts.
+ */
+public class LoadReport {
+
+    private static final String[] PERCENTILES = {"p50", "p90", "p99", "p999"};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    /**
+     * The largest rise in the share of failed requests that does not count as a regression
+     */
+    private static final double ERROR_SHARE_SLACK = 0.01;
+    private static final String[] COMPARED_SETTINGS = {"accounts", "zipf", "mix", "rate", "durationSeconds",
+            "connections"};
+
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final LongAdder completedInWindow = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public LoadReport() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public void record(Operation operation, long latencyNanos, boolean success) {
+        overall.record(latencyNanos);
+        latencies.get(operation).record(latencyNanos);
+        if (!success) {
+            errors.get(operation).increment();
+        }
+    }
+
+    /**
+     * A response that arrived inside the measured window, whenever it was meant to be sent
+     */
+    public void completedInWindow() {
+        completedInWindow.increment();
+    }
+
+    /**
+     * A request never sent as the run was over, its latency is recorded as at least the time it waited
+     */
+    public void dropped(Operation operation, long waitedNanos) {
+        dropped.increment();
+        record(operation, waitedNanos, false);
+    }
+
+    /**
+     * The settings of the run first, then the results
+     */
+    public Map<String, Object> toMap(Map<String, Object> settings, long windowNanos) {
+        Map<String, Object> report = new LinkedHashMap<>(settings);
+        double seconds = windowNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        report.put("throughput", round(completedInWindow.sum() / seconds));
+        long failed = errors.values().stream().mapToLong(LongAdder::sum).sum();
+        report.put("requests", overall.getCount());
+        report.put("errors", failed);
+        report.put("dropped", dropped.sum());
+        report.put("latencyMicros", latencyMicros(overall));
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            if (histogram.getCount() > 0) {
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("requests", histogram.getCount());
+                stats.put("errors", errors.get(operation).sum());
+                stats.put("latencyMicros", latencyMicros(histogram));
+                operations.put(operation.name().toLowerCase(), stats);
+            }
+        }
+        report.put("operations", operations);
+        return report;
+    }
+
+    /**
+     * What got worse than the baseline by more than the threshold, a fraction: lower throughput, a higher median or
+     * p99 overall or for an operation, or a larger share of failed requests. Empty if nothing did. A baseline taken
+     * with other settings counts as a regression too, the numbers would not compare.
+     */
+    public static List<String> regressions(Map<String, ?> report, Map<String, ?> baseline, double threshold) {
+        List<String> regressions = new ArrayList<>();
+        for (String setting : COMPARED_SETTINGS) {
+            Object value = report.get(setting), expected = baseline.get(setting);
+            if (!sameSetting(value, expected)) {
+                regressions.add("the baseline ran with " + setting + " " + expected + ", this run with " + value);
+            }
+        }
+        if (!regressions.isEmpty()) {
+            return regressions;
+        }
+        double throughput = number(report, "throughput"), expected = number(baseline, "throughput");
+        if (throughput < expected * (1 - threshold)) {
+            regressions.add("throughput " + throughput + " is below the baseline " + expected);
+        }
+        compareLatencies("overall", report, baseline, threshold, regressions);
+        Map<String, ?> operations = child(report, "operations"), baseOperations = child(baseline, "operations");
+        for (String operation : operations.keySet()) {
+            if (baseOperations.containsKey(operation)) {
+                compareLatencies(operation, child(operations, operation), child(baseOperations, operation),
+                        threshold, regressions);
+            }
+        }
+        double errorShare = share(report), baseErrorShare = share(baseline);
+        if (errorShare > baseErrorShare + ERROR_SHARE_SLACK) {
+            regressions.add("error share " + round(errorShare) + " is above the baseline " + round(baseErrorShare));
+        }
+        return regressions;
+    }
+
+    private static void compareLatencies(String name, Map<String, ?> stats, Map<String, ?> baseline,
+                                         double threshold, List<String> regressions) {
+        Map<String, ?> latency = child(stats, "latencyMicros"), baseLatency = child(baseline, "latencyMicros");
+        for (String percentile : new String[]{"p50", "p99"}) {
+            double value = number(latency, percentile), expected = number(baseLatency, percentile);
+            if (value > expected * (1 + threshold)) {
+                regressions.add(name + " " + percentile + " of " + value + "us is above the baseline " + expected
+                        + "us");
+            }
+        }
+    }
+
+    /**
+     * Numbers are longs or doubles before a report is written and doubles once it is read back
+     */
+    private static boolean sameSetting(Object value, Object expected) {
+        if (value instanceof Number && expected instanceof Number) {
+            return ((Number) value).doubleValue() == ((Number) expected).doubleValue();
+        }
+        return value == null ? expected == null : value.equals(expected);
+    }
+
+    private static Map<String, Object> latencyMicros(LatencyHistogram histogram) {
+        Map<String, Object> micros = new LinkedHashMap<>();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            micros.put(PERCENTILES[i], TimeUnit.NANOSECONDS.toMicros(histogram.valueAtQuantile(QUANTILES[i])));
+        }
+        micros.put("max", TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+        return micros;
+    }
+
+    private static double share(Map<String, ?> report) {
+        double requests = number(report, "requests");
+        return requests == 0 ? 0 : number(report, "errors") / requests;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> child(Map<String, ?> map, String key) {
+        Object value = map.get(key);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Report has no [" + key + "] section");
+        }
+        return (Map<String, ?>) value;
+    }
+
+    private static double number(Map<String, ?> map, String key) {
+        Object value = map.get(key);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Report has no number [" + key + "]");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,81 @@
+package com.kannane.webservice.load;
+
+import java.util.Random;
+
+/**
+ * Draws ranks between 1 and n where rank k comes up in proportion to 1 / k^exponent, so a few ranks take most of the
+ * draws. An exponent of 0 is uniform, 0.99 is the skew YCSB uses.
+ * <p>
+ * Sampling is rejection-inversion (Hormann and Derflinger), constant time and memory whatever n is: a point is drawn
+ * under a continuous hat function and accepted for the nearest rank, which nearly always happens at the first try.
+ */
+public class ZipfianGenerator {
+
+    private final int n;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralN;
+    private final double s;
+
+    public ZipfianGenerator(int n, double exponent) {
+        if (n < 1 || exponent < 0) {
+            throw new IllegalArgumentException("Need n >= 1 and exponent >= 0 [" + n + ", " + exponent + "]");
+        }
+        this.n = n;
+        this.exponent = exponent;
+        this.hIntegralX1 = hIntegral(1.5) - 1;
+        this.hIntegralN = hIntegral(n + 0.5);
+        this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    public int next(Random random) {
+        while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > n) {
+                k = n;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * The integral of the hat function, (x^(1 - exponent) - 1) / (1 - exponent) and log(x) when the exponent is 1
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return expm1OverX((1 - exponent) * logX) * logX;
+    }
+
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = Math.max(-1, x * (1 - exponent));
+        return Math.exp(log1pOverX(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x, by its series close to 0 where the division loses precision
+     */
+    private static double log1pOverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+    }
+
+    /**
+     * (e^x - 1) / x, by its series close to 0
+     */
+    private static double expm1OverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3.0 * (1 + 0.25 * x));
+    }
+}
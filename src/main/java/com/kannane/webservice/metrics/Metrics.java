@@ -0,0 +1,110 @@
+package com.kannane.webservice.metrics;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of every instrumented route, rendered in the Prometheus text exposition format.
+ * <p>
+ * Routes are registered once at startup and each wrapper holds its own {@link RouteMetrics}, so recording never looks
+ * anything up.
+ */
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final List<RouteMetrics> routes = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public RouteMetrics route(String method, String path) {
+        RouteMetrics route = new RouteMetrics(method, path);
+        routes.add(route);
+        return route;
+    }
+
+    public List<RouteMetrics> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * A value read whenever the metrics are rendered
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP accounts_request_seconds Request latency by route and phase, service is the controller")
+                .append(" and account service, render the JSON rendering\n")
+                .append("# TYPE accounts_request_seconds summary\n");
+        for (RouteMetrics route : routes) {
+            summary(out, route, "service", route.getServiceLatency());
+            summary(out, route, "render", route.getRenderLatency());
+            summary(out, route, "total", route.getTotalLatency());
+        }
+        out.append("# HELP accounts_requests_total Requests by route and response status\n")
+                .append("# TYPE accounts_requests_total counter\n");
+        for (RouteMetrics route : routes) {
+            for (int status = RouteMetrics.MIN_STATUS; status <= RouteMetrics.MAX_STATUS; status++) {
+                long count = route.getCount(status);
+                if (count > 0) {
+                    out.append("accounts_requests_total{").append(labels(route))
+                            .append(",status=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        out.append("# HELP accounts_errors_total Requests answered with a 4xx or 5xx status by route\n")
+                .append("# TYPE accounts_errors_total counter\n");
+        for (RouteMetrics route : routes) {
+            long errors = 0;
+            for (int status = 400; status <= RouteMetrics.MAX_STATUS; status++) {
+                errors += route.getCount(status);
+            }
+            out.append("accounts_errors_total{").append(labels(route)).append("} ").append(errors).append('\n');
+        }
+        for (Gauge gauge : gauges) {
+            out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n')
+                    .append("# TYPE ").append(gauge.name).append(" gauge\n")
+                    .append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, RouteMetrics route, String phase, LatencyHistogram histogram) {
+        String labels = labels(route) + ",phase=\"" + phase + "\"";
+        for (double quantile : QUANTILES) {
+            out.append("accounts_request_seconds{").append(labels).append(",quantile=\"").append(quantile)
+                    .append("\"} ").append(seconds(histogram.valueAtQuantile(quantile))).append('\n');
+        }
+        out.append("accounts_request_seconds_sum{").append(labels).append("} ")
+                .append(seconds(histogram.getSum())).append('\n');
+        out.append("accounts_request_seconds_count{").append(labels).append("} ")
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static String labels(RouteMetrics route) {
+        return "method=\"" + route.getMethod() + "\",route=\"" + route.getPath() + "\"";
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / NANOS_PER_SECOND);
+    }
+
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
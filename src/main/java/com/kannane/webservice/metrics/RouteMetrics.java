@@ -0,0 +1,100 @@
+package com.kannane.webservice.metrics;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.response.ResponseWriter;
+import spark.Route;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and status counts of one route. The route is wrapped together with the writer of its response, so the
+ * time spent in the controller and service is recorded apart from the time spent rendering the response, and both
+ * add up to the total of the same request.
+ */
+public class RouteMetrics {
+
+    static final int MIN_STATUS = 100;
+    static final int MAX_STATUS = 599;
+
+    private final String method;
+    private final String path;
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LatencyHistogram render = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+
+    RouteMetrics(String method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    public Route timed(Route route) {
+        return timed(route, null);
+    }
+
+    /**
+     * A route that renders the model of the given route itself with the writer, a failure in either is counted with
+     * the status the exception handler will respond with
+     */
+    public Route timed(Route route, ResponseWriter writer) {
+        return (request, response) -> {
+            long start = System.nanoTime();
+            long rendering = start;
+            boolean serviced = false;
+            try {
+                Object body = route.handle(request, response);
+                rendering = System.nanoTime();
+                serviced = true;
+                service.record(rendering - start);
+                if (writer != null) {
+                    body = writer.write(body, response);
+                    long end = System.nanoTime();
+                    render.record(end - rendering);
+                    total.record(end - start);
+                } else {
+                    total.record(rendering - start);
+                }
+                count(response.status());
+                return body;
+            } catch (Exception e) {
+                long end = System.nanoTime();
+                if (!serviced) {
+                    service.record(end - start);
+                } else {
+                    render.record(end - rendering);
+                }
+                total.record(end - start);
+                count(ServiceException.statusOf(e));
+                throw e;
+            }
+        };
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public LatencyHistogram getServiceLatency() {
+        return service;
+    }
+
+    public LatencyHistogram getRenderLatency() {
+        return render;
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return total;
+    }
+
+    public long getCount(int status) {
+        return status < MIN_STATUS || status > MAX_STATUS ? 0 : statuses.get(status - MIN_STATUS);
+    }
+
+    private void count(int status) {
+        statuses.incrementAndGet(Math.min(MAX_STATUS, Math.max(MIN_STATUS, status)) - MIN_STATUS);
+    }
+}
@@ -0,0 +1,292 @@
+package com.kannane.webservice.replication;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.AccountSnapshot;
+import com.kannane.webservice.accounts.StoreMode;
+import com.kannane.webservice.accounts.Transfer;
+import com.kannane.webservice.accounts.TransferBatchMode;
+import com.kannane.webservice.accounts.TransferResult;
+import com.kannane.webservice.accounts.TransferStatus;
+import com.kannane.webservice.journal.Journal;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.kannane.webservice.replication.ReplicationLeader.readFully;
+import static com.kannane.webservice.replication.ReplicationLeader.writeFully;
+
+/**
+ * A read only copy of a leader's store, kept up to date from the leader's replication stream and serving reads from a
+ * local store of the configured mode. Writes are refused, they belong on the leader.
+ * <p>
+ * A follower starting empty gets a snapshot plus the journal after it. When the connection drops it reconnects with
+ * the position it holds and only gets the records it missed. A record that cannot be applied means the copy has
+ * diverged and the next connection starts over from a snapshot.
+ * <p>
+ * The reported lag is the time since the follower last knew it held everything durable on the leader. While
+ * connected the leader sends a heartbeat at least every {@link ReplicationLeader#HEARTBEAT_MILLIS}, so a follower
+ * that keeps up reports a lag below that.
+ */
+public class ReplicationFollower implements AccountService, ReplicationNode, Closeable {
+
+    /**
+     * Response header carrying {@link #getLagMillis()} on every response of a follower
+     */
+    public static final String LAG_HEADER = "X-Replication-Lag-Millis";
+
+    private static final Logger LOG = Logger.getLogger(ReplicationFollower.class.getName());
+    private static final long RECONNECT_MILLIS = 200;
+
+    private final StoreMode storeMode;
+    private final InetSocketAddress leader;
+    private final Path snapshotDirectory;
+    private final Thread thread;
+    private volatile AbstractAccountService store;
+    private volatile long appliedPosition = -1;
+    private volatile long leaderPosition = -1;
+    private volatile long caughtUpNanos;
+    private volatile long snapshotsLoaded;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private Path snapshotFile;
+
+    /**
+     * Snapshots received from the leader are kept in the directory while the store built from them is in use
+     */
+    public ReplicationFollower(StoreMode storeMode, InetSocketAddress leader, Path snapshotDirectory) {
+        this.storeMode = storeMode;
+        this.leader = leader;
+        this.snapshotDirectory = snapshotDirectory;
+        this.store = storeMode.createService();
+        thread = new Thread(this::replicate, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Optional<Account> findAccount(Long id) {
+        return store.findAccount(id);
+    }
+
+    @Override
+    public List<Account> findAccounts(List<Long> ids) {
+        return store.findAccounts(ids);
+    }
+
+    @Override
+    public long versionOf(Long id) {
+        return store.versionOf(id);
+    }
+
+    @Override
+    public TransferStatus tryTransfer(long fromAccountId, long toAccountId, double amount) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<TransferResult> transferBatch(List<Transfer> transfers, TransferBatchMode mode) {
+        throw readOnly();
+    }
+
+    @Override
+    public Account createAccount(Account account) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<Account> createAccounts(List<Account> accounts) {
+        throw readOnly();
+    }
+
+    @Override
+    public Account deleteAccount(Long id) {
+        throw readOnly();
+    }
+
+    /**
+     * Milliseconds since this follower last held everything durable on the leader, -1 before the first sync
+     */
+    public long getLagMillis() {
+        if (leaderPosition < 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpNanos);
+    }
+
+    public long getAppliedPosition() {
+        return appliedPosition;
+    }
+
+    public long getSnapshotsLoaded() {
+        return snapshotsLoaded;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("role", "follower");
+        status.put("leader", leader.getHostString() + ":" + leader.getPort());
+        status.put("connected", connected);
+        status.put("position", appliedPosition);
+        status.put("leaderPosition", leaderPosition);
+        status.put("lagBytes", Math.max(0, leaderPosition - appliedPosition));
+        status.put("lagMillis", getLagMillis());
+        status.put("snapshotsLoaded", snapshotsLoaded);
+        return status;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replicate() {
+        while (!closed) {
+            try (SocketChannel channel = SocketChannel.open(leader)) {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer handshake = ByteBuffer.allocate(Long.BYTES);
+                handshake.putLong(appliedPosition).flip();
+                writeFully(channel, handshake);
+                connected = true;
+                follow(channel);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.log(Level.INFO, "Replication from " + leader + " interrupted, reconnecting", e);
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Replica diverged from " + leader + ", starting over from a snapshot", e);
+                appliedPosition = -1;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES * 2);
+        ByteBuffer records = ByteBuffer.allocate(1 << 16);
+        while (true) {
+            header.clear().limit(1);
+            readFully(channel, header);
+            byte type = header.get(0);
+            header.clear();
+            switch (type) {
+                case ReplicationLeader.SNAPSHOT:
+                    readFully(channel, header);
+                    loadSnapshot(channel, header.getLong(0), header.getLong(Long.BYTES));
+                    records.clear();
+                    break;
+                case ReplicationLeader.RECORDS:
+                    header.limit(Integer.BYTES);
+                    readFully(channel, header);
+                    records = receiveRecords(channel, header.getInt(0), records);
+                    break;
+                case ReplicationLeader.HEARTBEAT:
+                    header.limit(Long.BYTES);
+                    readFully(channel, header);
+                    long position = header.getLong(0);
+                    if (appliedPosition >= position) {
+                        caughtUpNanos = System.nanoTime();
+                    }
+                    leaderPosition = position;
+                    break;
+                default:
+                    throw new IOException("Unknown replication message [" + type + "]");
+            }
+        }
+    }
+
+    /**
+     * Applies every complete record as soon as it has arrived, a record cut by the end of a message waits for the
+     * rest in the next one. Returns the buffer to use from now on, grown if a record did not fit.
+     */
+    private ByteBuffer receiveRecords(SocketChannel channel, int length, ByteBuffer records) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            if (!records.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(records.capacity() * 2);
+                records.flip();
+                records = grown.put(records);
+            }
+            int limit = records.limit();
+            records.limit(records.position() + Math.min(remaining, records.remaining()));
+            int read = channel.read(records);
+            records.limit(limit);
+            if (read < 0) {
+                throw new EOFException("Replication connection closed");
+            }
+            remaining -= read;
+            records.flip();
+            appliedPosition += Journal.applyRecords(records, store);
+            records.compact();
+        }
+        return records;
+    }
+
+    private void loadSnapshot(SocketChannel channel, long position, long length) throws IOException {
+        AbstractAccountService loaded;
+        Path previous = snapshotFile;
+        if (length == 0) {
+            loaded = storeMode.createService();
+            snapshotFile = null;
+        } else {
+            Files.createDirectories(snapshotDirectory);
+            Path file = snapshotDirectory.resolve("replica-" + position + "-" + System.nanoTime() + ".snap");
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (long received = 0; received < length; ) {
+                    long read = out.transferFrom(channel, received, length - received);
+                    if (read <= 0) {
+                        throw new EOFException("Replication connection closed during a snapshot");
+                    }
+                    received += read;
+                }
+            }
+            loaded = storeMode.createService(AccountSnapshot.open(file));
+            snapshotFile = file;
+        }
+        store = loaded;
+        appliedPosition = position;
+        snapshotsLoaded++;
+        if (previous != null) {
+            Files.deleteIfExists(previous);
+        }
+    }
+
+    private ServiceException readOnly() {
+        return new ServiceException("This server is a read only follower of [" + leader.getHostString() + ":"
+                + leader.getPort() + "], send writes to the leader", 405);
+    }
+}
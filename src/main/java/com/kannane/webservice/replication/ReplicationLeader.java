@@ -0,0 +1,210 @@
+package com.kannane.webservice.replication;
+
+import com.kannane.webservice.accounts.AccountSnapshot;
+import com.kannane.webservice.journal.Journal;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the journal to followers over TCP. A follower sends the journal position it holds when it connects, or -1
+ * if it holds nothing. A follower without state, or one ahead of this journal, first gets the latest snapshot and
+ * then the journal from the snapshot's position on. Without snapshots it gets the whole journal.
+ * <p>
+ * Records are streamed once they are durable, straight from the journal file, and every round ends with a heartbeat
+ * carrying the durable position, which followers measure their lag against. Messages from the leader are
+ * SNAPSHOT [long position][long length][snapshot file], RECORDS [int length][framed journal records, possibly cut
+ * mid record] and HEARTBEAT [long durable position], each starting with its type byte.
+ */
+public class ReplicationLeader implements ReplicationNode, Closeable {
+
+    static final byte SNAPSHOT = 1;
+    static final byte RECORDS = 2;
+    static final byte HEARTBEAT = 3;
+    static final long HEARTBEAT_MILLIS = 100;
+
+    private static final Logger LOG = Logger.getLogger(ReplicationLeader.class.getName());
+    private static final int MAX_CHUNK = 1 << 20;
+
+    private final Journal journal;
+    private final Path snapshotDirectory;
+    private final ServerSocketChannel server;
+    private final Set<FollowerConnection> followers = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Starts accepting followers on the port, 0 picks a free one. The snapshot directory may be null.
+     */
+    public ReplicationLeader(Journal journal, Path snapshotDirectory, int port) throws IOException {
+        this.journal = journal;
+        this.snapshotDirectory = snapshotDirectory;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        acceptor = new Thread(this::acceptLoop, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public Map<String, Object> status() {
+        long position = journal.durablePosition();
+        List<Map<String, Object>> connected = new ArrayList<>();
+        for (FollowerConnection follower : followers) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("address", String.valueOf(follower.address));
+            entry.put("position", follower.position);
+            entry.put("lagBytes", Math.max(0, position - follower.position));
+            connected.add(entry);
+        }
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("role", "leader");
+        status.put("position", position);
+        status.put("followers", connected);
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (FollowerConnection follower : followers) {
+            follower.channel.close();
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                FollowerConnection follower = new FollowerConnection(channel);
+                Thread thread = new Thread(() -> serve(follower), "replication-" + follower.address);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not accept a follower", e);
+            }
+        }
+    }
+
+    private void serve(FollowerConnection follower) {
+        followers.add(follower);
+        SocketChannel channel = follower.channel;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + Long.BYTES * 2);
+            buffer.limit(Long.BYTES);
+            readFully(channel, buffer);
+            long position = buffer.getLong(0);
+            if (position < 0 || position > journal.durablePosition()) {
+                position = sendSnapshot(channel, buffer);
+            }
+            follower.position = position;
+            while (!closed) {
+                long durable = journal.awaitDurableBeyond(position, HEARTBEAT_MILLIS);
+                while (position < durable) {
+                    int length = (int) Math.min(MAX_CHUNK, durable - position);
+                    buffer.clear();
+                    buffer.put(RECORDS).putInt(length).flip();
+                    writeFully(channel, buffer);
+                    if (journal.transferTo(position, position + length, channel) != length) {
+                        throw new EOFException("Journal ends before [" + (position + length) + "]");
+                    }
+                    position += length;
+                }
+                buffer.clear();
+                buffer.put(HEARTBEAT).putLong(durable).flip();
+                writeFully(channel, buffer);
+                follower.position = position;
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                LOG.log(Level.INFO, "Follower " + follower.address + " disconnected", e);
+            }
+        } finally {
+            followers.remove(follower);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not close the connection to " + follower.address, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the latest snapshot, or an empty one if there is none, and returns the journal position it covers
+     */
+    private long sendSnapshot(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        try (AccountSnapshot snapshot = snapshotDirectory == null ? null : AccountSnapshot.latest(snapshotDirectory)) {
+            buffer.clear();
+            if (snapshot == null) {
+                buffer.put(SNAPSHOT).putLong(0).putLong(0).flip();
+                writeFully(channel, buffer);
+                return 0;
+            }
+            try (FileChannel file = FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+                long size = file.size();
+                buffer.put(SNAPSHOT).putLong(snapshot.getJournalPosition()).putLong(size).flip();
+                writeFully(channel, buffer);
+                for (long sent = 0; sent < size; ) {
+                    sent += file.transferTo(sent, size - sent, channel);
+                }
+            }
+            return snapshot.getJournalPosition();
+        }
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Replication connection closed");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final class FollowerConnection {
+        private final SocketChannel channel;
+        private final SocketAddress address;
+        private volatile long position = -1;
+
+        private FollowerConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.address = channel.getRemoteAddress();
+        }
+    }
+}
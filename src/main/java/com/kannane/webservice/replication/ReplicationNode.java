@@ -0,0 +1,14 @@
+package com.kannane.webservice.replication;
+
+import java.util.Map;
+
+/**
+ * A server taking part in replication, either the leader or one of its followers
+ */
+public interface ReplicationNode {
+
+    /**
+     * Role, positions and lag, served as GET /replication
+     */
+    Map<String, Object> status();
+}
@@ -0,0 +1,69 @@
+package com.kannane.webservice.response;
+
+import com.kannane.webservice.accounts.Account;
+
+/**
+ * The rendered JSON of recently served accounts, keyed by id and version so an entry is never served for a balance it
+ * was not rendered from. The cache is direct mapped: an account always lands in the same slot and replaces whatever
+ * was there, so a lookup is one array read and nothing has to be evicted. Entries are immutable and racing writers
+ * simply overwrite each other.
+ */
+public final class AccountResponseCache {
+
+    private final Entry[] entries;
+    private final int mask;
+
+    /**
+     * The capacity is rounded up to a power of two
+     */
+    public AccountResponseCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * The cached bytes, or null if the slot holds another account or another version
+     */
+    public byte[] get(long id, long version) {
+        Entry entry = entries[slot(id)];
+        return entry != null && entry.id == id && entry.version == version ? entry.json : null;
+    }
+
+    /**
+     * Renders the account and caches the bytes unless the account was being changed while it was rendered
+     */
+    public byte[] render(Account account) {
+        long version = account.getStableVersion();
+        JsonWriter writer = JsonWriter.forThread();
+        JsonTransformer.write(account, writer);
+        byte[] json = writer.toByteArray();
+        if (version >= 0 && account.getStableVersion() == version) {
+            entries[slot(account.getId())] = new Entry(account.getId(), version, json);
+        }
+        return json;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Ids are handed out in sequence, so the low bits alone spread them evenly
+     */
+    private int slot(long id) {
+        return (int) id & mask;
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final long version;
+        private final byte[] json;
+
+        private Entry(long id, long version, byte[] json) {
+            this.id = id;
+            this.version = version;
+            this.json = json;
+        }
+    }
+}
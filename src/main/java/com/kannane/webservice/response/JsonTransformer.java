@@ -1,15 +1,155 @@
 package com.kannane.webservice.response;
 
 import com.google.gson.Gson;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.TransferResult;
+import spark.Response;
 import spark.ResponseTransformer;
 
-public class JsonTransformer implements ResponseTransformer {
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Renders response models as JSON. Accounts, transfer results, the maps the controller returns and the error payload
+ * are written by hand through a {@link JsonWriter}, byte for byte what Gson writes for them. Byte arrays are taken to
+ * be rendered already. Any other model falls back to Gson.
+ */
+public class JsonTransformer implements ResponseTransformer, ResponseWriter {
 
     private final Gson gson = new Gson();
 
     @Override
     public String render(Object model) {
-        return gson.toJson(model);
+        if (model instanceof byte[]) {
+            return new String((byte[]) model, StandardCharsets.UTF_8);
+        }
+        if (!isWritable(model)) {
+            return gson.toJson(model);
+        }
+        JsonWriter writer = JsonWriter.forThread();
+        write(model, writer);
+        return writer.toString();
     }
 
-}
\ No newline at end of file
+    /**
+     * Writes the model straight to the response output stream and leaves Spark an empty body. A byte array is JSON
+     * rendered earlier and is written as it is.
+     */
+    @Override
+    public Object write(Object model, Response response) throws IOException {
+        if (model instanceof byte[]) {
+            response.raw().getOutputStream().write((byte[]) model);
+            return "";
+        }
+        if (!isWritable(model)) {
+            return gson.toJson(model);
+        }
+        JsonWriter writer = JsonWriter.forThread();
+        write(model, writer);
+        writer.writeTo(response.raw().getOutputStream());
+        return "";
+    }
+
+    /**
+     * The error payload {"exception": class name, "message": message}, without the message if there is none
+     */
+    public void writeError(Exception e, Response response) throws IOException {
+        JsonWriter writer = JsonWriter.forThread();
+        writeError(e, writer);
+        writer.writeTo(response.raw().getOutputStream());
+    }
+
+    /**
+     * The error payload as bytes, for errors answered often enough to be rendered once up front
+     */
+    public static byte[] renderError(Exception e) {
+        JsonWriter writer = JsonWriter.forThread();
+        writeError(e, writer);
+        return writer.toByteArray();
+    }
+
+    static void writeError(Exception e, JsonWriter writer) {
+        writer.beginObject().name("exception").value(e.getClass().getName());
+        if (e.getMessage() != null) {
+            writer.name("message").value(e.getMessage());
+        }
+        writer.endObject();
+    }
+
+    static void write(Object model, JsonWriter writer) {
+        if (model instanceof Account) {
+            writeAccount((Account) model, writer);
+        } else if (model instanceof TransferResult) {
+            writeTransferResult((TransferResult) model, writer);
+        } else if (model instanceof String) {
+            writer.value((String) model);
+        } else if (model instanceof Map) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) model).entrySet()) {
+                if (entry.getValue() != null) {
+                    writer.name(String.valueOf(entry.getKey()));
+                    write(entry.getValue(), writer);
+                }
+            }
+            writer.endObject();
+        } else {
+            writer.beginArray();
+            for (Object element : (Collection<?>) model) {
+                write(element, writer);
+            }
+            writer.endArray();
+        }
+    }
+
+    /**
+     * Whether the model only holds types with a hand written writer. Gson writes nulls inside collections, which
+     * the writers never see from the controller, so those go to Gson as well.
+     */
+    static boolean isWritable(Object model) {
+        if (model instanceof Account || model instanceof TransferResult || model instanceof String) {
+            return true;
+        }
+        if (model instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) model).entrySet()) {
+                if (!(entry.getKey() instanceof String)
+                        || entry.getValue() != null && !isWritable(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (model instanceof Collection) {
+            for (Object element : (Collection<?>) model) {
+                if (element == null || !isWritable(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeAccount(Account account, JsonWriter writer) {
+        writer.beginObject();
+        if (account.getId() != null) {
+            writer.name("id").value(account.getId());
+        }
+        if (account.getName() != null) {
+            writer.name("name").value(account.getName());
+        }
+        if (account.hasBalance()) {
+            writer.name("balance").value(account.getBalanceValue());
+        }
+        writer.endObject();
+    }
+
+    private static void writeTransferResult(TransferResult result, JsonWriter writer) {
+        writer.beginObject().name("success").value(result.isSuccess() ? "true" : "false");
+        if (result.getMessage() != null) {
+            writer.name("message").value(result.getMessage());
+        }
+        writer.endObject();
+    }
+}
@@ -0,0 +1,271 @@
+package com.kannane.webservice.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes JSON as UTF-8 bytes into a growable buffer that is reused by its thread, for hand written writers of the
+ * response models. The output matches what Gson 1.7.1 writes for the same values: strings get Gson's escapes
+ * (including its HTML safe escapes of &amp; ' &lt; = &gt;), numbers are written the way {@link Long#toString} and
+ * {@link Double#toString} would, and unpaired surrogates become '?' as they do when Spark encodes a String body.
+ * <p>
+ * On virtual threads every request runs on a fresh thread, so the buffer is only reused within a request.
+ */
+public final class JsonWriter {
+
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int MAX_DEPTH = 32;
+    private static final double MAX_PLAIN_DOUBLE = 1e7;
+    private static final byte[][] ESCAPES = new byte[128][];
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = new byte[]{'\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xF]};
+        }
+        ESCAPES['\b'] = new byte[]{'\\', 'b'};
+        ESCAPES['\t'] = new byte[]{'\\', 't'};
+        ESCAPES['\n'] = new byte[]{'\\', 'n'};
+        ESCAPES['\f'] = new byte[]{'\\', 'f'};
+        ESCAPES['\r'] = new byte[]{'\\', 'r'};
+        ESCAPES['"'] = new byte[]{'\\', '"'};
+        ESCAPES['\\'] = new byte[]{'\\', '\\'};
+        for (char c : new char[]{'&', '\'', '<', '=', '>'}) {
+            ESCAPES[c] = new byte[]{'\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xF]};
+        }
+    }
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+    private final int[] counts = new int[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    private JsonWriter() {
+    }
+
+    /**
+     * The calling thread's writer, emptied
+     */
+    public static JsonWriter forThread() {
+        JsonWriter writer = WRITERS.get();
+        writer.reset();
+        return writer;
+    }
+
+    public JsonWriter beginObject() {
+        separate();
+        write('{');
+        counts[++depth] = 0;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        write('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separate();
+        write('[');
+        counts[++depth] = 0;
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        write(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separate();
+        string(name);
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separate();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separate();
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        digits(value);
+        return this;
+    }
+
+    /**
+     * Values with at most two decimals below ten million, which covers balances, are written without going through
+     * a String. Their Double.toString form is the cents with the trailing zero dropped. Anything else is written
+     * as Double.toString has it. Like Gson, NaN and the infinities are rejected.
+     */
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification. "
+                    + "To override this behavior, use GsonBuilder.serializeSpecialDoubleValues() method.");
+        }
+        separate();
+        long cents = Math.round(value * 100);
+        boolean negativeZero = Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+        if (Math.abs(value) >= MAX_PLAIN_DOUBLE || cents / 100.0 != value || negativeZero) {
+            ascii(Double.toString(value));
+            return this;
+        }
+        if (cents < 0) {
+            write('-');
+            cents = -cents;
+        }
+        digits(cents / 100);
+        write('.');
+        int fraction = (int) (cents % 100);
+        if (fraction % 10 == 0) {
+            write('0' + fraction / 10);
+        } else {
+            write('0' + fraction / 10);
+            write('0' + fraction % 10);
+        }
+        return this;
+    }
+
+    /**
+     * Writes ASCII text as it is between top level values, to frame them in a stream. The value after it is written
+     * as if it were the first.
+     */
+    public JsonWriter raw(String ascii) {
+        ascii(ascii);
+        counts[depth] = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Writes out what is buffered and empties the buffer, keeping the place in the document, so a long document can
+     * be streamed in pieces
+     */
+    public void drainTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+        size = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    void reset() {
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+        depth = 0;
+        counts[0] = 0;
+        afterName = false;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+        } else if (counts[depth]++ > 0) {
+            write(',');
+        }
+    }
+
+    private void string(String value) {
+        ensure(value.length() * 6 + 2);
+        byte[] out = buffer;
+        int position = size;
+        out[position++] = '"';
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    out[position++] = (byte) c;
+                } else {
+                    System.arraycopy(escape, 0, out, position, escape.length);
+                    position += escape.length;
+                }
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | c >> 6);
+                out[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                char low = i + 1 < length ? value.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int codePoint = Character.toCodePoint(c, low);
+                    out[position++] = (byte) (0xF0 | codePoint >> 18);
+                    out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint & 0x3F);
+                    i++;
+                } else {
+                    out[position++] = '?';
+                }
+            } else {
+                out[position++] = (byte) (0xE0 | c >> 12);
+                out[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        out[position++] = '"';
+        size = position;
+    }
+
+    private void digits(long value) {
+        int length = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        ensure(length);
+        for (int position = size + length - 1; position >= size; position--) {
+            buffer[position] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += length;
+    }
+
+    private void ascii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void write(int b) {
+        ensure(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+        }
+    }
+}
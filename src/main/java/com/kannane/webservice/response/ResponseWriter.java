@@ -0,0 +1,13 @@
+package com.kannane.webservice.response;
+
+import spark.Response;
+
+/**
+ * Turns the model a route returned into the response body. Unlike a Spark ResponseTransformer it may write the body
+ * to the response itself, in which case it returns an empty body for Spark to send.
+ */
+@FunctionalInterface
+public interface ResponseWriter {
+
+    Object write(Object model, Response response) throws Exception;
+}
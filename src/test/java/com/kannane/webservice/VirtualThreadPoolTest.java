@@ -0,0 +1,85 @@
+package com.kannane.webservice;
+
+import org.eclipse.jetty.util.thread.ThreadPoolBudget;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadPoolTest {
+
+    private static final int CAP = 4;
+
+    private VirtualThreadPool pool;
+
+    @Before
+    public void before() throws Exception {
+        Assume.assumeTrue("Virtual threads need Java 21", VirtualThreadPool.isSupported());
+        pool = new VirtualThreadPool(CAP);
+        pool.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (pool != null) {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void testAtMostCapTasksRunAtOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(50);
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            pool.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                running.decrementAndGet();
+                finished.countDown();
+            });
+        }
+        Thread.sleep(200);
+        assertEquals(CAP, maxRunning.get());
+        assertTrue("Tasks beyond the cap are queued", pool.isLowOnThreads());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(CAP, maxRunning.get());
+        assertFalse(pool.isLowOnThreads());
+    }
+
+    @Test
+    public void testLeasedLoopsDoNotUseTheCap() throws Exception {
+        ThreadPoolBudget.Lease lease = ThreadPoolBudget.leaseFrom(pool, this, 2);
+        assertEquals(CAP + 2, pool.getMaxThreads());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(CAP + 2);
+        for (int i = 0; i < CAP + 2; i++) {
+            pool.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        assertTrue("Two loops plus a full cap of requests all run", started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        lease.close();
+        assertEquals(CAP, pool.getMaxThreads());
+    }
+}
@@ -0,0 +1,198 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AccountImporterTest {
+
+    @Test
+    public void testNdjsonImportReportsEveryLine() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService();
+        String body = "{\"name\": \"user1\", \"balance\": 45}\n"
+                + "\n"
+                + "{\"name\": \"user2\"}\n"
+                + "not json\n"
+                + "{\"id\": 7, \"name\": \"user3\", \"balance\": 1}\n"
+                + "{\"name\": \"user4\", \"balance\": 97.5}";
+
+        List<String> lines = importAll(service, AccountImporter.Format.NDJSON, body);
+
+        assertEquals(Arrays.asList(
+                "{\"line\":1,\"id\":1}",
+                "{\"line\":3,\"error\":\"Every account needs a name and a balance\"}",
+                lines.get(2),
+                "{\"line\":5,\"error\":\"Account already has an ID and cannot be created\"}",
+                "{\"line\":6,\"id\":2}",
+                "{\"imported\":2,\"failed\":3}"), lines);
+        assertTrue(lines.get(2).startsWith("{\"line\":4,\"error\":\"Could not parse account"));
+        assertEquals(97.5, service.findAccount(2L).get().getBalance(), 0);
+    }
+
+    @Test
+    public void testCsvImportWithHeaderAndQuotes() throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        String body = "name,balance\r\n"
+                + "user1,45\r\n"
+                + "\"Smith, \"\"Jo\"\"\",10.25\r\n"
+                + "user3,lots\r\n"
+                + "user4\r\n";
+
+        List<String> lines = importAll(service, AccountImporter.Format.CSV, body);
+
+        assertEquals(Arrays.asList(
+                "{\"line\":2,\"id\":1}",
+                "{\"line\":3,\"id\":2}",
+                "{\"line\":4,\"error\":\"Invalid balance [lots]\"}",
+                "{\"line\":5,\"error\":\"Expected name,balance but got 1 fields\"}",
+                "{\"imported\":2,\"failed\":2}"), lines);
+        assertEquals("Smith, \"Jo\"", service.findAccount(2L).get().getName());
+    }
+
+    @Test
+    public void testFormatFromParamOrContentType() {
+        assertEquals(AccountImporter.Format.CSV, AccountImporter.Format.of(null, "text/csv; charset=utf-8"));
+        assertEquals(AccountImporter.Format.NDJSON, AccountImporter.Format.of(null, null));
+        assertEquals(AccountImporter.Format.NDJSON, AccountImporter.Format.of("ndjson", "text/csv"));
+        try {
+            AccountImporter.Format.of("xml", null);
+            fail("Accepted an unknown format");
+        } catch (ServiceException e) {
+            assertEquals(400, e.getHttpErrorCode());
+        }
+    }
+
+    @Test
+    public void testConcurrentImportsNeverShareAnId() throws Exception {
+        for (StoreMode mode : StoreMode.values()) {
+            AbstractAccountService service = mode.createService();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<List<String>>> imports = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                imports.add(executor.submit(() -> importAll(service, AccountImporter.Format.CSV, csv(5000))));
+            }
+            Set<String> ids = new HashSet<>();
+            for (Future<List<String>> result : imports) {
+                for (String line : result.get()) {
+                    if (line.startsWith("{\"line\"")) {
+                        ids.add(line.substring(line.indexOf("\"id\":")));
+                    }
+                }
+            }
+            executor.shutdown();
+            if (service instanceof AutoCloseable) {
+                ((AutoCloseable) service).close();
+            }
+            assertEquals(mode.name(), 20000, ids.size());
+        }
+    }
+
+    /**
+     * Streams a million generated NDJSON accounts through the importer, which should take well under the minute the
+     * import is budgeted
+     */
+    @Test
+    public void testMillionAccountsWithinAMinute() throws Exception {
+        int count = 1_000_000;
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        InputStream in = new GeneratedInput(count);
+        CountingOutput out = new CountingOutput();
+
+        long start = System.nanoTime();
+        long imported = new AccountImporter(service).importAccounts(in, AccountImporter.Format.NDJSON, out);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.printf("Imported %d accounts in %d ms, %.0f accounts/minute%n", imported, millis,
+                imported * 60_000d / Math.max(1, millis));
+        assertEquals(count, imported);
+        assertEquals(count + 1, out.lines);
+        assertTrue("Import took " + millis + " ms", millis < 60_000);
+        assertEquals("user999999", service.findAccount((long) count).get().getName());
+    }
+
+    private static List<String> importAll(AccountService service, AccountImporter.Format format, String body)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AccountImporter(service).importAccounts(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                format, out);
+        return Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+    }
+
+    private static String csv(int count) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            body.append("user").append(i).append(',').append(i % 100).append('\n');
+        }
+        return body.toString();
+    }
+
+    /**
+     * NDJSON accounts generated as they are read, so the test body is never in memory either
+     */
+    private static final class GeneratedInput extends InputStream {
+        private final int count;
+        private int next;
+        private byte[] line = new byte[0];
+        private int position;
+
+        private GeneratedInput(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int read() {
+            if (position == line.length) {
+                if (next == count) {
+                    return -1;
+                }
+                line = ("{\"name\": \"user" + next + "\", \"balance\": " + (next++ % 1000) + ".5}\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            return line[position++];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int read = 0;
+            while (read < length) {
+                int b = read();
+                if (b < 0) {
+                    return read == 0 ? -1 : read;
+                }
+                buffer[offset + read++] = (byte) b;
+            }
+            return read;
+        }
+    }
+
+    private static final class CountingOutput extends OutputStream {
+        private long lines;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+    }
+}
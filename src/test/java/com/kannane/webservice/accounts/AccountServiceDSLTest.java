@@ -7,16 +7,26 @@ import org.junit.Test;
 import spark.Spark;
 
 import static com.jayway.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.startsWith;
 
 public class AccountServiceDSLTest {
 
+    private static final String[] FEATURES = {"accounts.index.balance", "accounts.index.name", "accounts.ledger",
+            "accounts.changes"};
+
     private String path;
 
     @Before
     public void before() {
+        for (String feature : FEATURES) {
+            System.setProperty(feature, "true");
+        }
         Server server = new Server();
         server.startRouting();
         //Wait until we are ready to serve requests
@@ -36,6 +46,10 @@ public class AccountServiceDSLTest {
     @After
     public void after() {
         Spark.stop();
+        Spark.awaitStop();
+        for (String feature : FEATURES) {
+            System.clearProperty(feature);
+        }
     }
 
     @Test
@@ -135,6 +149,7 @@ public class AccountServiceDSLTest {
             post(path + "/transfer/from/{fromAccount}/to/{toAccount}/amount/{amount}").
         then().
             statusCode(is(500)).
+            body("exception", is("com.kannane.webservice.ServiceException")).
             body("message", startsWith("Could not withdraw"));
 
         given().
@@ -157,4 +172,275 @@ public class AccountServiceDSLTest {
             statusCode(is(500)).
             body("message", startsWith("Rounding error with balance"));
     }
+
+    @Test
+    public void testBatchTransferAllOrNothing() {
+        given().
+            body("[{\"from\": 1, \"to\": 2, \"amount\": 20}, {\"from\": 3, \"to\": 1, \"amount\": 5}]").
+        when().
+            post(path + "/transfers").
+        then().
+            statusCode(is(200)).
+            body("success", is("true"));
+
+        given().
+            body("[{\"from\": 1, \"to\": 2, \"amount\": 10}, {\"from\": 1, \"to\": 3, \"amount\": 200000}]").
+        when().
+            post(path + "/transfers").
+        then().
+            statusCode(is(500)).
+            body("message", startsWith("Transfer [1] of the batch failed: Could not withdraw"));
+
+        given().
+            pathParam("id", 1).
+        when().
+            get(path + "/account/{id}").
+        then().
+            body("balance", is((float) 30));
+    }
+
+    @Test
+    public void testBatchTransferPerItem() {
+        given().
+            queryParam("mode", "per-item").
+            body("[{\"from\": 1, \"to\": 2, \"amount\": 10}, {\"from\": 1, \"to\": 1, \"amount\": 1}]").
+        when().
+            post(path + "/transfers").
+        then().
+            statusCode(is(200)).
+            body("results[0].success", is("true")).
+            body("results[1].success", is("false")).
+            body("results[1].message", startsWith("The from and to account should not be the same"));
+
+        given().
+            body("not json").
+        when().
+            post(path + "/transfers").
+        then().
+            statusCode(is(400));
+    }
+
+    @Test
+    public void testConditionalGetOfAnAccount() {
+        String etag = given().
+            pathParam("id", 1).
+        when().
+            get(path + "/account/{id}").
+        then().
+            statusCode(is(200)).
+            header("ETag", notNullValue()).
+            extract().header("ETag");
+
+        given().
+            pathParam("id", 1).
+            header("If-None-Match", etag).
+        when().
+            get(path + "/account/{id}").
+        then().
+            statusCode(is(304)).
+            header("ETag", is(etag));
+
+        given().
+            pathParam("id", 1).
+        when().
+            get(path + "/account/{id}").
+        then().
+            statusCode(is(200)).
+            header("ETag", is(etag)).
+            body("balance", is((float) 45));
+
+        given().pathParam("from", 1).pathParam("to", 2).pathParam("amount", 5).
+                post(path + "/transfer/from/{from}/to/{to}/amount/{amount}").then().statusCode(is(200));
+
+        given().
+            pathParam("id", 1).
+            header("If-None-Match", etag).
+        when().
+            get(path + "/account/{id}").
+        then().
+            statusCode(is(200)).
+            header("ETag", not(is(etag))).
+            body("balance", is((float) 40));
+    }
+
+    @Test
+    public void testBalanceQueries() {
+        given().
+            queryParam("balanceBelow", 90).
+            queryParam("limit", 1).
+        when().
+            get(path + "/accounts").
+        then().
+            statusCode(is(200)).
+            body("accounts.name", contains("user1")).
+            body("next", is("45.0:1"));
+
+        given().
+            queryParam("balanceBelow", 90).
+            queryParam("after", "45.0:1").
+        when().
+            get(path + "/accounts").
+        then().
+            statusCode(is(200)).
+            body("accounts.name", contains("user3")).
+            body("next", nullValue());
+
+        given().
+            queryParam("n", 2).
+        when().
+            get(path + "/accounts/top").
+        then().
+            statusCode(is(200)).
+            body("accounts.name", contains("user4", "user2"));
+
+        given().
+        when().
+            get(path + "/accounts/summary").
+        then().
+            statusCode(is(200)).
+            body("count", is(4));
+
+        given().queryParam("limit", 0).when().get(path + "/accounts").then().statusCode(is(400));
+        given().queryParam("after", "nope").when().get(path + "/accounts").then().statusCode(is(400));
+    }
+
+    @Test
+    public void testGetAccountsById() {
+        given().
+            queryParam("ids", "3,99,1").
+        when().
+            get(path + "/accounts").
+        then().
+            statusCode(is(200)).
+            body("accounts.name", contains("user3", "user1")).
+            body("accounts.balance", contains(89.0f, 45.0f));
+
+        given().queryParam("ids", "1,x").when().get(path + "/accounts").then().statusCode(is(400));
+    }
+
+    @Test
+    public void testAccountTransactionsArePagedNewestFirst() {
+        given().post(path + "/transfer/from/1/to/2/amount/10").then().statusCode(is(200));
+        given().post(path + "/transfer/from/3/to/1/amount/5").then().statusCode(is(200));
+        given().
+            queryParam("limit", 1).
+        when().
+            get(path + "/account/1/transactions").
+        then().
+            statusCode(is(200)).
+            body("transactions.from", contains(3)).
+            body("transactions.amount", contains(5.0f)).
+            body("next", is(1));
+
+        given().
+            queryParam("before", 1).
+        when().
+            get(path + "/account/1/transactions").
+        then().
+            statusCode(is(200)).
+            body("transactions.to", contains(2)).
+            body("next", nullValue());
+
+        given().when().get(path + "/account/4/transactions").then().statusCode(is(200))
+                .body("transactions.size()", is(0));
+        given().when().get(path + "/account/99/transactions").then().statusCode(is(404));
+        given().when().get(path + "/metrics").then().body(containsString("accounts_ledger_entries 2"));
+    }
+
+    @Test
+    public void testChangesStreamAsServerSentEvents() {
+        given().post(path + "/transfer/from/1/to/2/amount/10").then().statusCode(is(200));
+        given().
+            queryParam("after", 3).
+            queryParam("limit", 3).
+        when().
+            get(path + "/accounts/changes").
+        then().
+            statusCode(is(200)).
+            contentType(startsWith("text/event-stream")).
+            body(startsWith("id: 4\nevent: CREATED\ndata: {\"id\":4,\"name\":\"user4\",")).
+            body(containsString("id: 5\nevent: UPDATED\ndata: {\"id\":1,\"name\":\"user1\",\"balance\":35.0,")).
+            body(containsString("id: 6\nevent: UPDATED\ndata: {\"id\":2,")).
+            body(not(containsString("id: 7")));
+
+        given().header("Last-Event-ID", "5").queryParam("limit", 1).when().get(path + "/accounts/changes").
+        then().body(startsWith("id: 6\n"));
+        given().queryParam("limit", 0).when().get(path + "/accounts/changes").then().statusCode(is(400));
+    }
+
+    @Test
+    public void testSearchAccountsByNamePrefix() {
+        insertAccount("user10", 1.0);
+        given().
+            queryParam("prefix", "user1").
+        when().
+            get(path + "/accounts/search").
+        then().
+            statusCode(is(200)).
+            contentType(startsWith(AccountImporter.CONTENT_TYPE)).
+            body(is("{\"id\":1,\"name\":\"user1\",\"balance\":45.0}\n"
+                    + "{\"id\":5,\"name\":\"user10\",\"balance\":1.0}\n"));
+
+        given().
+            queryParam("prefix", "user").
+            queryParam("limit", 2).
+        when().
+            get(path + "/accounts/search").
+        then().
+            body(is("{\"id\":1,\"name\":\"user1\",\"balance\":45.0}\n"
+                    + "{\"id\":5,\"name\":\"user10\",\"balance\":1.0}\n"));
+
+        given().when().get(path + "/accounts/search").then().statusCode(is(400));
+        given().when().get(path + "/metrics").then().body(containsString("accounts_name_index_entries 5"));
+    }
+
+    @Test
+    public void testImportAccounts() {
+        given().
+            contentType("text/csv").
+            body("name,balance\nuser5,10\nuser6,oops\n").
+        when().
+            post(path + "/accounts/import").
+        then().
+            statusCode(is(200)).
+            contentType(startsWith(AccountImporter.CONTENT_TYPE)).
+            body(is("{\"line\":2,\"id\":5}\n{\"line\":3,\"error\":\"Invalid balance [oops]\"}\n"
+                    + "{\"imported\":1,\"failed\":1}\n"));
+
+        given().
+            pathParam("id", 5).
+        when().
+            get(path + "/account/{id}").
+        then().
+            body("name", is("user5"));
+
+        given().
+            queryParam("format", "xml").
+            body("").
+        when().
+            post(path + "/accounts/import").
+        then().
+            statusCode(is(400));
+    }
+
+    @Test
+    public void testMetricsCountRequestsByRouteAndStatus() {
+        given().pathParam("id", 1).when().get(path + "/account/{id}").then().statusCode(is(200));
+        given().pathParam("id", 2345).when().get(path + "/account/{id}").then().statusCode(is(404));
+
+        given().
+        when().
+            get(path + "/metrics").
+        then().
+            statusCode(is(200)).
+            contentType(startsWith("text/plain")).
+            body(containsString("accounts_requests_total{method=\"PUT\",route=\"/account\",status=\"200\"} 4")).
+            body(containsString("accounts_requests_total{method=\"GET\",route=\"/account/:id\",status=\"200\"} 1")).
+            body(containsString("accounts_requests_total{method=\"GET\",route=\"/account/:id\",status=\"404\"} 1")).
+            body(containsString("accounts_errors_total{method=\"GET\",route=\"/account/:id\"} 1")).
+            body(containsString("accounts_request_seconds_count{method=\"GET\",route=\"/account/:id\","
+                    + "phase=\"render\"} 1")).
+            body(containsString("accounts_request_seconds{method=\"GET\",route=\"/account/:id\",phase=\"total\","
+                    + "quantile=\"0.9999\"}"));
+    }
 }
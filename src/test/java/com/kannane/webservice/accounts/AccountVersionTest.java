@@ -0,0 +1,134 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.response.AccountResponseCache;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Versions behave the same in every store
+ */
+public class AccountVersionTest {
+
+    @Test
+    public void testEveryBalanceChangeBumpsTheVersion() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            Account a3 = service.createAccount(new Account(0L, "user3", 10d));
+            long v1 = service.versionOf(a1.getId()), v2 = service.versionOf(a2.getId());
+            long v3 = service.versionOf(a3.getId());
+
+            service.transferMoney(a1.getId(), a2.getId(), 5d);
+            long after1 = service.versionOf(a1.getId()), after2 = service.versionOf(a2.getId());
+            assertTrue(mode.name(), after1 > v1);
+            assertTrue(mode.name(), after2 > v2);
+            assertEquals(mode.name(), v3, service.versionOf(a3.getId()));
+            assertEquals(mode.name(), after1, service.findAccount(a1.getId()).get().getVersion());
+
+            service.transferBatch(Arrays.asList(new Transfer(a2.getId(), a3.getId(), 1d)),
+                    TransferBatchMode.ALL_OR_NOTHING);
+            assertTrue(mode.name(), service.versionOf(a3.getId()) > v3);
+            assertEquals(mode.name(), after1, service.versionOf(a1.getId()));
+        }
+    }
+
+    /**
+     * A transfers one cent back and forth, so every odd version of an account has one balance and every even version
+     * the other. A body cached while a transfer was being written would end up under the wrong version.
+     */
+    @Test
+    public void testCachedBodiesMatchTheirVersion() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService(0, 4);
+        service.setHotAccount(2, true);
+        Account cold = service.createAccount(new Account(0L, "cold", 10d));
+        Account hot = service.createAccount(new Account(0L, "hot", 0d));
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            while (!done.get()) {
+                service.tryTransferMinor(cold.getId(), hot.getId(), 1);
+                service.tryTransferMinor(hot.getId(), cold.getId(), 1);
+            }
+        });
+        writer.start();
+        AccountResponseCache cache = new AccountResponseCache(16);
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (System.nanoTime() < end) {
+                assertCachedBody(cache, cold, "9.99", "10.0");
+                assertCachedBody(cache, hot, "0.01", "0.0");
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    private static void assertCachedBody(AccountResponseCache cache, Account account, String odd, String even) {
+        cache.render(account);
+        long version = account.getVersion();
+        byte[] cached = cache.get(account.getId(), version);
+        if (cached != null) {
+            String balance = (version & 1) == 1 ? odd : even;
+            assertEquals("{\"id\":" + account.getId() + ",\"name\":\"" + account.getName() + "\",\"balance\":"
+                    + balance + "}", new String(cached, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testRejectedTransfersKeepTheVersion() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            long v1 = service.versionOf(a1.getId()), v2 = service.versionOf(a2.getId());
+
+            assertSame(mode.name(), TransferStatus.INSUFFICIENT_FUNDS,
+                    service.tryTransfer(a2.getId(), a1.getId(), 20d));
+            service.transferBatch(Arrays.asList(new Transfer(a1.getId(), a2.getId(), 60d)),
+                    TransferBatchMode.PER_ITEM);
+            assertEquals(mode.name(), v1, service.versionOf(a1.getId()));
+            assertEquals(mode.name(), v2, service.versionOf(a2.getId()));
+        }
+    }
+
+    @Test
+    public void testRolledBackBatchStillMovesTheVersionForward() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            long version = service.versionOf(a1.getId());
+            try {
+                service.transferBatch(Arrays.asList(new Transfer(a1.getId(), a2.getId(), 30d),
+                        new Transfer(a1.getId(), a2.getId(), 30d)), TransferBatchMode.ALL_OR_NOTHING);
+                fail("Overdraft should fail the batch in " + mode);
+            } catch (ServiceException e) {
+                assertEquals(mode.name(), 50d, service.findAccount(a1.getId()).get().getBalance(), 0);
+            }
+            assertTrue("Never goes back to a version a client may have seen with another balance",
+                    service.versionOf(a1.getId()) >= version);
+        }
+    }
+
+    @Test
+    public void testMissingAndDeletedAccountsHaveNoVersion() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account account = service.createAccount(new Account(0L, "user1", 50d));
+            assertEquals(mode.name(), -1, service.versionOf(account.getId() + 1));
+            service.deleteAccount(account.getId());
+            assertEquals(mode.name(), -1, service.versionOf(account.getId()));
+        }
+    }
+}
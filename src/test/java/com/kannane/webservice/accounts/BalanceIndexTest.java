@@ -0,0 +1,117 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BalanceIndexTest {
+
+    @Test
+    public void testIndexFollowsEveryStore() {
+        for (StoreMode mode : StoreMode.values()) {
+            AbstractAccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            BalanceIndex index = BalanceIndex.attach(service);
+            Account a3 = service.createAccount(new Account(0L, "user3", 30d));
+
+            assertEquals(mode.name(), asList(a2.getId(), a3.getId(), a1.getId()), ids(index.below(100, null, 10)));
+            service.transferMoney(a1.getId(), a2.getId(), 45d);
+            assertEquals(mode.name(), asList(a1.getId(), a3.getId(), a2.getId()), ids(index.below(100, null, 10)));
+            assertEquals(mode.name(), asList(a2.getId(), a3.getId()), ids(index.top(2)));
+            assertEquals(mode.name(), 55d, index.top(1).get(0).getBalance(), 0);
+
+            service.deleteAccount(a3.getId());
+            assertEquals(mode.name(), asList(a1.getId()), ids(index.below(55, null, 10)));
+            assertEquals(mode.name(), 2, index.count());
+            assertEquals(mode.name(), 60d, index.totalBalance(), 0);
+        }
+    }
+
+    @Test
+    public void testPagesFollowTheCursor() {
+        InMemoryAccountService service = new InMemoryAccountService();
+        BalanceIndex index = BalanceIndex.attach(service);
+        for (int i = 0; i < 10; i++) {
+            service.createAccount(new Account(0L, "user" + i, (double) (i % 5)));
+        }
+        List<Long> seen = new ArrayList<>();
+        BalanceIndex.Cursor cursor = null;
+        while (true) {
+            List<Account> page = index.below(4, cursor, 3);
+            seen.addAll(ids(page));
+            if (page.size() < 3) {
+                break;
+            }
+            cursor = BalanceIndex.Cursor.parse(BalanceIndex.Cursor.after(page.get(2)).toString());
+        }
+        assertEquals(asList(1L, 6L, 2L, 7L, 3L, 8L, 4L, 9L), seen);
+    }
+
+    @Test
+    public void testDeletedAccountsAreForgotten() {
+        for (StoreMode mode : StoreMode.values()) {
+            AbstractAccountService service = mode.createService();
+            service.createAccount(new Account(0L, "kept", 1d));
+            BalanceIndex index = BalanceIndex.attach(service);
+            for (int i = 0; i < 10_000; i++) {
+                Account account = service.createAccount(new Account(0L, "churn" + i, 5d));
+                service.deleteAccount(account.getId());
+            }
+            assertEquals(mode.name(), 1, index.count());
+            assertEquals(mode.name(), 1, index.tracked());
+        }
+    }
+
+    /**
+     * Transfers from several threads with events delivered asynchronously, once the events are in the index must
+     * agree with the store
+     */
+    @Test
+    public void testIndexConvergesUnderConcurrentTransfers() throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        service.enableAsyncDispatch(1 << 12, 2);
+        BalanceIndex index = BalanceIndex.attach(service);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 1000d)).getId());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                    long from = ids.get(random.nextInt(ids.size())), to = ids.get(random.nextInt(ids.size()));
+                    if (from != to) {
+                        service.transferMoney(from, to, 1d);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        service.disableAsyncDispatch();
+
+        assertEquals(100, index.count());
+        assertEquals(100_000d, index.totalBalance(), 1e-6);
+        List<Account> all = index.below(Double.MAX_VALUE, null, 1000);
+        assertEquals(100, all.size());
+        for (Account account : all) {
+            assertEquals(service.findAccount(account.getId()).get().getBalance(), account.getBalance());
+        }
+    }
+
+    private static List<Long> ids(List<Account> accounts) {
+        return accounts.stream().map(Account::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,172 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFeedTest {
+
+    @Test
+    public void testChangesAreReadInOrderFromAnyPoint() {
+        InMemoryAccountService service = new InMemoryAccountService();
+        ChangeFeed feed = ChangeFeed.attach(service, 16);
+        long a1 = service.createAccount(new Account(0L, "user1", 10d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 10d)).getId();
+        service.transferMoney(a1, a2, 4d);
+        service.deleteAccount(a1);
+
+        List<String> changes = new ArrayList<>();
+        ChangeFeed.Visitor visitor = (sequence, type, id, name, balance, version) ->
+                changes.add(sequence + " " + type + " " + id + " " + balance);
+        assertEquals(5, feed.read(0, 100, visitor));
+        assertEquals(5, feed.latest());
+        assertEquals("1 CREATED " + a1 + " 10.0", changes.get(0));
+        assertEquals("3 UPDATED " + a1 + " 6.0", changes.get(2));
+        assertEquals("4 UPDATED " + a2 + " 14.0", changes.get(3));
+        assertEquals("5 DELETED " + a1 + " 6.0", changes.get(4));
+
+        changes.clear();
+        assertEquals(2, feed.read(2, 2, visitor));
+        assertEquals("3 UPDATED " + a1 + " 6.0", changes.get(0));
+        assertEquals(0, feed.read(5, 100, visitor));
+    }
+
+    @Test
+    public void testReaderThatFellBehindIsTold() {
+        InMemoryAccountService service = new InMemoryAccountService();
+        ChangeFeed feed = ChangeFeed.attach(service, 16);
+        for (int i = 0; i < 40; i++) {
+            service.createAccount(new Account(0L, "user" + i, 1d));
+        }
+        assertEquals(25, feed.oldest());
+        assertEquals(-1, feed.read(0, 100, (sequence, type, id, name, balance, version) -> { }));
+        List<Long> sequences = new ArrayList<>();
+        assertEquals(16, feed.read(24, 100, (sequence, type, id, name, balance, version) -> sequences.add(sequence)));
+        assertEquals(25L, (long) sequences.get(0));
+        assertEquals(40L, (long) sequences.get(15));
+    }
+
+    @Test
+    public void testAccountWithoutABalanceIsRecordedAsZero() {
+        ChangeFeed feed = new ChangeFeed(4);
+        feed.onEvent(CrudEventType.UPDATED, new Account(7L, "user7", null));
+        List<Double> balances = new ArrayList<>();
+        assertEquals(1, feed.read(0, 10, (sequence, type, id, name, balance, version) -> balances.add(balance)));
+        assertEquals(0d, balances.get(0), 0);
+    }
+
+    /**
+     * Writers keep lapping a small feed while a reader follows it, whatever the reader gets is whole and in order
+     */
+    @Test
+    public void testConcurrentReaderNeverSeesATornChange() throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+        }
+        ChangeFeed feed = ChangeFeed.attach(service, 1024);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            int offset = w;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    service.transferMoney(ids.get((i + offset) % 8), ids.get((i + offset + 1) % 8), 1d);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        long[] position = {0};
+        int received = 0, restarts = 0;
+        while (writers.stream().anyMatch(Thread::isAlive) || position[0] < feed.latest()) {
+            int read = feed.read(position[0], 256, (sequence, type, id, name, balance, version) -> {
+                assertEquals(position[0] + 1, sequence);
+                assertEquals("UPDATED", type);
+                assertEquals("user" + (id - ids.get(0)), name);
+                assertTrue(version > 0);
+                position[0] = sequence;
+            });
+            if (read < 0) {
+                restarts++;
+                position[0] = feed.oldest() - 1;
+            } else {
+                received += read;
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(200_000, feed.latest());
+        assertTrue(received + " received, " + restarts + " restarts", received > 0);
+    }
+
+    /**
+     * Accounts are deleted while transfers pay into them, in every store and into a hot account too. The feed never
+     * shows a change after an account's deletion and shows every account's versions in order.
+     */
+    @Test
+    public void testNothingFollowsADeletion() throws Exception {
+        List<AbstractAccountService> services = new ArrayList<>();
+        for (StoreMode mode : StoreMode.values()) {
+            services.add(mode.createService());
+        }
+        InMemoryAccountService hot = new InMemoryAccountService(0, 4);
+        services.add(hot);
+        for (AbstractAccountService service : services) {
+            String store = service.getClass().getSimpleName();
+            ChangeFeed feed = ChangeFeed.attach(service, 1 << 16);
+            long[] payers = new long[4];
+            for (int i = 0; i < payers.length; i++) {
+                payers[i] = service.createAccount(new Account(0L, "payer" + i, 1e9)).getId();
+            }
+            Map<Long, Long> versions = new HashMap<>();
+            Set<Long> deleted = new HashSet<>();
+            long[] position = {0};
+            ChangeFeed.Visitor check = (sequence, type, id, name, balance, version) -> {
+                assertFalse(store + " changed account " + id + " after deleting it", deleted.contains(id));
+                Long previous = versions.put(id, version);
+                assertTrue(store + " put version " + version + " of account " + id + " after " + previous,
+                        previous == null || previous <= version);
+                if ("DELETED".equals(type)) {
+                    deleted.add(id);
+                }
+                position[0] = sequence;
+            };
+            for (int round = 0; round < 100; round++) {
+                long payee = service.createAccount(new Account(0L, "payee" + round, 0d)).getId();
+                if (service == hot) {
+                    hot.setHotAccount(payee, true);
+                }
+                List<Thread> payments = new ArrayList<>();
+                for (long payer : payers) {
+                    Thread payment = new Thread(() -> {
+                        while (service.tryTransfer(payer, payee, 1d) == TransferStatus.OK) {
+                            Thread.yield();
+                        }
+                    });
+                    payment.start();
+                    payments.add(payment);
+                }
+                while (service.versionOf(payee) < 20) {
+                    Thread.yield();
+                }
+                service.deleteAccount(payee);
+                for (Thread payment : payments) {
+                    payment.join();
+                }
+                assertTrue(store, feed.read(position[0], Integer.MAX_VALUE, check) >= 0);
+            }
+            assertEquals(store, feed.latest(), position[0]);
+        }
+    }
+}
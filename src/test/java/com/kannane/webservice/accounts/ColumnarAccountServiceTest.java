@@ -0,0 +1,117 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarAccountServiceTest {
+
+    private static final int SMALL_FOOTPRINT_ACCOUNTS = 1_000_000;
+    private static final int LARGE_FOOTPRINT_ACCOUNTS = 10_000_000;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ColumnarAccountService service;
+
+    @Before
+    public void before() {
+        service = new ColumnarAccountService();
+    }
+
+    @Test
+    public void testCreateAndFind() {
+        Account created = service.createAccount(new Account(0L, "user1", 45.25));
+        Account loaded = service.findAccount(created.getId()).get();
+        assertEquals(created.getId(), loaded.getId());
+        assertEquals("user1", loaded.getName());
+        assertEquals(45.25, loaded.getBalance(), 0);
+    }
+
+    @Test
+    public void testTransferIsExactInMinorUnits() {
+        Account a1 = service.createAccount(new Account(0L, "user1", 0.3));
+        Account a2 = service.createAccount(new Account(0L, "user2", 0d));
+        service.transferMoney(a1.getId(), a2.getId(), 0.1);
+        service.transferMoney(a1.getId(), a2.getId(), 0.2);
+        assertEquals(0d, service.findAccount(a1.getId()).get().getBalance(), 0);
+        assertEquals(0.3, service.findAccount(a2.getId()).get().getBalance(), 0);
+    }
+
+    @Test
+    public void testOverdraftIsRejected() {
+        Account a1 = service.createAccount(new Account(0L, "user1", 10d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 0d));
+        expectedException.expect(ServiceException.class);
+        expectedException.expectMessage("Could not withdraw");
+        service.transferMoney(a1.getId(), a2.getId(), 10.01);
+    }
+
+    @Test
+    public void testDeletedAccountIsGone() {
+        Account a1 = service.createAccount(new Account(0L, "user1", 10d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 0d));
+        assertEquals(a1.getId(), service.deleteAccount(a1.getId()).getId());
+        assertFalse(service.findAccount(a1.getId()).isPresent());
+        expectedException.expect(ServiceException.class);
+        expectedException.expectMessage("not found");
+        service.transferMoney(a1.getId(), a2.getId(), 1d);
+    }
+
+    @Test
+    public void testAccountsWithoutBalanceStartAtZero() {
+        Account created = service.createAccount(new Account(0L, "user1", null));
+        assertEquals(0d, service.findAccount(created.getId()).get().getBalance(), 0);
+        service.restoreAccount(new Account(created.getId() + 1, "user2", null));
+        assertEquals(0d, service.findAccount(created.getId() + 1).get().getBalance(), 0);
+    }
+
+    @Test
+    public void testFootprintAgainstInMemoryStoreAtOneMillion() {
+        compareFootprint(SMALL_FOOTPRINT_ACCOUNTS);
+    }
+
+    /**
+     * Needs a heap of several GB for the {@link InMemoryAccountService} side, run with -Daccounts.footprint.large=true
+     */
+    @Test
+    public void testFootprintAgainstInMemoryStoreAtTenMillion() {
+        Assume.assumeTrue(Boolean.getBoolean("accounts.footprint.large"));
+        compareFootprint(LARGE_FOOTPRINT_ACCOUNTS);
+    }
+
+    private void compareFootprint(int accounts) {
+        long columnar = retainedBytes(ColumnarAccountService::new, accounts);
+        long inMemory = retainedBytes(InMemoryAccountService::new, accounts);
+        assertTrue("Columnar store should need a fraction of the heap store but retained " + columnar
+                + " bytes against " + inMemory + " for " + accounts + " accounts", columnar * 3 < inMemory);
+    }
+
+    private static long retainedBytes(Supplier<AccountService> factory, int accounts) {
+        long before = usedHeap();
+        AccountService store = factory.get();
+        for (int i = 0; i < accounts; i++) {
+            store.createAccount(new Account(0L, "user" + (i % 1000), 100d));
+        }
+        long after = usedHeap();
+        assertTrue(store.findAccount((long) accounts).isPresent());
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,182 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Same abuse as {@link InMemoryAccountServiceTest} but checks that account churn no longer stalls transfers
+ */
+public class ConcurrentAccountServiceTest {
+
+    public static final int STANDARD_DELAY = 500;
+    private static final int CONTENTION_ACCOUNTS = 64;
+    private static final long CONTENTION_RUN_MILLIS = 1000;
+
+    private Executor customExecutor = command -> {
+        new Thread(command).start();
+    };
+
+    private ConcurrentAccountService service;
+    private TestListener listener;
+
+    @Before
+    public void before() {
+        service = new ConcurrentAccountService();
+        listener = new TestListener();
+        service.addListener(listener);
+    }
+
+    @Test
+    public void testCreationDoesNotBlockTransfers() throws Exception {
+        Account a1 = createAccountAsync().get(), a2 = createAccountAsync().get();
+        listener.blockCreation();
+        CompletableFuture<Account> creation = createAccountAsync();
+        sleep(STANDARD_DELAY);
+        assertFalse("Creation thread will not finish until we send the signal", creation.isDone());
+
+        transferAccountsAsync(a1, a2, 1d).get(1, TimeUnit.SECONDS);
+        assertTrue("Account lookups still work while a creation is in flight",
+                service.findAccount(a2.getId()).isPresent());
+
+        listener.unblockCreation();
+        creation.get(1, TimeUnit.SECONDS);
+        assertEquals(19d, a1.getBalance(), 0.00001);
+        assertEquals(21d, a2.getBalance(), 0.00001);
+    }
+
+    @Test
+    public void testDeletionDoesNotBlockTransfers() throws Exception {
+        Account a1 = createAccountAsync().get(), a2 = createAccountAsync().get(), a3 = createAccountAsync().get();
+        listener.blockDeletion();
+        CompletableFuture<Account> deletion = supplyAsync(() -> service.deleteAccount(a3.getId()), customExecutor);
+        sleep(STANDARD_DELAY);
+        assertFalse("Deletion thread will not finish until we send the signal", deletion.isDone());
+
+        transferAccountsAsync(a1, a2, 1d).get(1, TimeUnit.SECONDS);
+
+        listener.unblockDeletion();
+        deletion.get(1, TimeUnit.SECONDS);
+        assertFalse("Deleted account is gone", service.findAccount(a3.getId()).isPresent());
+    }
+
+    @Test
+    public void testTransferSimultaneous() throws Exception {
+        Account a1 = createAccountAsync().get(), a2 = createAccountAsync().get(),
+            a3 = createAccountAsync().get(), a4 = createAccountAsync().get(), a5 = createAccountAsync().get();
+        listener.blockUpdate(a1.getId());
+        double balance = a1.getBalance();
+
+        CompletableFuture<Void> transfer1 = transferAccountsAsync(a1, a2, 1d);
+        sleep(STANDARD_DELAY);
+        assertFalse("Transfer wont be complete as it is blocked", transfer1.isDone());
+
+        CompletableFuture<Void> transfer2 = transferAccountsAsync(a1, a3, 1d);
+        sleep(STANDARD_DELAY);
+        assertFalse("Second transfer wont complete since we cannot lock the account", transfer2.isDone());
+
+        transferAccountsAsync(a4, a5, 1d).get(1, TimeUnit.SECONDS);
+
+        listener.unblockUpdate(a1.getId());
+        transfer1.get(1, TimeUnit.SECONDS);
+        transfer2.get(1, TimeUnit.SECONDS);
+        assertEquals("Both transfers for account a1 is through", balance - 2, a1.getBalance().doubleValue(), 0.00001);
+    }
+
+    @Test
+    public void testIdsAreNotReusedAfterDelete() {
+        Account a1 = service.createAccount(new Account(0L, "randomuser", 20d));
+        Account a2 = service.createAccount(new Account(0L, "randomuser", 20d));
+        service.deleteAccount(a1.getId());
+        Account a3 = service.createAccount(new Account(0L, "randomuser", 20d));
+        assertFalse(a3.getId().equals(a2.getId()));
+    }
+
+    /**
+     * Transfers between a fixed set of accounts while another thread keeps opening and closing accounts. The money in
+     * the fixed set must be conserved and the churn must keep making progress. Throughput is reported for one thread
+     * and for one thread per core, on a multi core box the latter should be clearly higher.
+     */
+    @Test
+    public void testTransferThroughputWithAccountChurn() throws Exception {
+        service = new ConcurrentAccountService();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < CONTENTION_ACCOUNTS; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        long single = measureTransfers(ids, 1);
+        long multi = measureTransfers(ids, Math.max(2, cores));
+        System.out.println("Transfers/s with churn: 1 thread=" + single + ", " + Math.max(2, cores)
+                + " threads=" + multi);
+
+        double total = ids.stream().mapToDouble(id -> service.findAccount(id).get().getBalance()).sum();
+        assertEquals("Money is conserved", CONTENTION_ACCOUNTS * 1_000_000d, total, 0.00001);
+        if (cores >= 4) {
+            assertTrue("Throughput scales with cores", multi > single * 1.2);
+        }
+    }
+
+    private long measureTransfers(List<Long> ids, int threads) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder transfers = new LongAdder(), churn = new LongAdder();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> {
+            while (running.get()) {
+                Account account = service.createAccount(new Account(0L, "churn", 1d));
+                service.deleteAccount(account.getId());
+                churn.increment();
+            }
+        }));
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    long from = ids.get(random.nextInt(ids.size())), to = ids.get(random.nextInt(ids.size()));
+                    if (from != to) {
+                        service.transferMoney(from, to, 1d);
+                        transfers.increment();
+                    }
+                }
+            }));
+        }
+        sleep(CONTENTION_RUN_MILLIS);
+        running.set(false);
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertTrue("Account churn made progress alongside transfers", churn.sum() > 0);
+        return transfers.sum() * 1000 / CONTENTION_RUN_MILLIS;
+    }
+
+    private CompletableFuture<Account> createAccountAsync() {
+        return supplyAsync(() -> service.createAccount(new Account(0L, "randomuser", 20d)), customExecutor);
+    }
+
+    private CompletableFuture<Void> transferAccountsAsync(Account from, Account to, Double amount) {
+        return runAsync(() -> service.transferMoney(from.getId(), to.getId(), amount), customExecutor);
+    }
+
+    private void sleep(long delay) {
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every store reads a set of accounts as one consistent view, however transfers between them interleave
+ */
+public class FindAccountsTest {
+
+    private static final int ACCOUNTS = 8;
+    private static final double BALANCE = 1000;
+
+    @Test
+    public void testInMemory() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService();
+        List<Long> ids = populate(service);
+        service.setHotAccount(ids.get(0), true);
+        assertConsistent(service, ids, 0);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        assertConsistent(service, populate(service), 0);
+    }
+
+    @Test
+    public void testColumnar() throws Exception {
+        ColumnarAccountService service = new ColumnarAccountService();
+        assertConsistent(service, populate(service), 0);
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+        ShardedAccountService service = new ShardedAccountService(4);
+        assertConsistent(service, populate(service), 100);
+    }
+
+    @Test
+    public void testOrderAndMissingIds() {
+        AccountService service = new InMemoryAccountService();
+        List<Long> ids = populate(service);
+        service.deleteAccount(ids.get(1));
+        List<Account> found = service.findAccounts(Arrays.asList(ids.get(2), -1L, ids.get(1), ids.get(0)));
+        assertEquals(2, found.size());
+        assertEquals(ids.get(2), found.get(0).getId());
+        assertEquals(ids.get(0), found.get(1).getId());
+        assertEquals(BALANCE, found.get(1).getBalance(), 0);
+    }
+
+    private static List<Long> populate(AccountService service) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, BALANCE)).getId());
+        }
+        return ids;
+    }
+
+    /**
+     * @param burst transfers each writer makes before pausing for a millisecond, 0 to never pause
+     */
+    private static void assertConsistent(AccountService service, List<Long> ids, int burst) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 3; w++) {
+            Random random = new Random(w);
+            Thread writer = new Thread(() -> {
+                for (int transfers = 1; !done.get(); transfers++) {
+                    if (burst > 0 && transfers % burst == 0) {
+                        LockSupport.parkNanos(1_000_000);
+                    }
+                    long from = ids.get(random.nextInt(ids.size())), to = ids.get(random.nextInt(ids.size()));
+                    if (from != to) {
+                        service.tryTransferMinor(from, to, 1 + random.nextInt(500));
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        try {
+            for (int read = 0; read < 2000; read++) {
+                List<Account> accounts = service.findAccounts(ids);
+                assertEquals(ids.size(), accounts.size());
+                double total = 0;
+                for (Account account : accounts) {
+                    assertTrue(account.getBalance() >= 0);
+                    total += account.getBalance();
+                }
+                assertEquals("Read " + read, ACCOUNTS * BALANCE, total, 1e-6);
+            }
+        } finally {
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            if (service instanceof Closeable) {
+                ((Closeable) service).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HotAccountTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testConfiguredAccountTurnsHotOnCreation() {
+        InMemoryAccountService service = new InMemoryAccountService(0, 4);
+        service.setHotAccount(2, true);
+        Account payer = service.createAccount(new Account(null, "payer", 10.0));
+        Account hot = service.createAccount(new Account(null, "hot", 0.0));
+        assertTrue(service.isHotAccount(hot.getId()));
+        assertFalse(service.isHotAccount(payer.getId()));
+
+        long version = hot.getVersion();
+        assertEquals(TransferStatus.OK, service.tryTransfer(payer.getId(), hot.getId(), 4));
+        assertEquals(4.0, service.findAccount(hot.getId()).get().getBalance(), 0);
+        assertTrue("a deposit into the cells still changes the version", hot.getVersion() > version);
+        assertEquals(TransferStatus.OK, service.tryTransfer(hot.getId(), payer.getId(), 3));
+        assertEquals(TransferStatus.INSUFFICIENT_FUNDS, service.tryTransfer(hot.getId(), payer.getId(), 2));
+
+        version = hot.getVersion();
+        service.setHotAccount(hot.getId(), false);
+        assertFalse(service.isHotAccount(hot.getId()));
+        assertEquals(1.0, hot.getBalance(), 0);
+        assertEquals("cooling down is no change", version, hot.getVersion());
+    }
+
+    @Test
+    public void testDepositsIntoAHotAccountSkipItsLock() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService(0, 4);
+        TestListener listener = new TestListener();
+        service.addListener(listener);
+        Account payer = service.createAccount(new Account(null, "payer", 10.0));
+        Account hot = service.createAccount(new Account(null, "hot", 0.0));
+        service.setHotAccount(hot.getId(), true);
+
+        listener.blockLoad(hot.getId());
+        CompletableFuture<?> reader = CompletableFuture.runAsync(() -> service.findAccount(hot.getId()));
+        Thread.sleep(200);
+        try {
+            CompletableFuture.runAsync(() -> service.transferMoney(payer.getId(), hot.getId(), 5.0))
+                    .get(1, TimeUnit.SECONDS);
+        } finally {
+            listener.unblockLoad(hot.getId());
+        }
+        reader.get(1, TimeUnit.SECONDS);
+        assertEquals(5.0, hot.getBalance(), 0);
+    }
+
+    @Test
+    public void testContendedDepositsTurnAnAccountHot() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService(1, 4);
+        TestListener listener = new TestListener();
+        service.addListener(listener);
+        Account payer = service.createAccount(new Account(null, "payer", 10.0));
+        Account busy = service.createAccount(new Account(null, "busy", 0.0));
+
+        listener.blockLoad(busy.getId());
+        CompletableFuture<?> reader = CompletableFuture.runAsync(() -> service.findAccount(busy.getId()));
+        Thread.sleep(200);
+        CompletableFuture<?> transfer = CompletableFuture.runAsync(
+                () -> service.transferMoney(payer.getId(), busy.getId(), 5.0));
+        Thread.sleep(200);
+        assertFalse("the deposit waits for the reader", transfer.isDone());
+        listener.unblockLoad(busy.getId());
+        reader.get(1, TimeUnit.SECONDS);
+        transfer.get(1, TimeUnit.SECONDS);
+
+        assertTrue(service.isHotAccount(busy.getId()));
+        assertEquals(5.0, busy.getBalance(), 0);
+    }
+
+    @Test
+    public void testConcurrentDepositsAndWithdrawalsKeepMoneyAndNeverOverdraw() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService(0, 4);
+        Account hot = service.createAccount(new Account(null, "hot", 100.0));
+        service.setHotAccount(hot.getId(), true);
+        List<Long> others = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            others.add(service.createAccount(new Account(null, "other" + i, 1000.0)).getId());
+        }
+        AtomicInteger overdrawn = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long other = others.get(t);
+            boolean depositor = t % 2 == 0;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 5000; i++) {
+                    if (depositor) {
+                        service.tryTransfer(other, hot.getId(), 1);
+                    } else {
+                        service.tryTransfer(hot.getId(), other, 3);
+                    }
+                    if (hot.getBalance() < 0) {
+                        overdrawn.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, overdrawn.get());
+        double total = hot.getBalance();
+        for (long other : others) {
+            total += service.findAccount(other).get().getBalance();
+        }
+        assertEquals(100.0 + THREADS * 1000.0, total, 1e-6);
+    }
+
+    @Test
+    public void testFailedBatchRollsBackAHotAccount() {
+        InMemoryAccountService service = new InMemoryAccountService(0, 4);
+        Account payer = service.createAccount(new Account(null, "payer", 10.0));
+        Account hot = service.createAccount(new Account(null, "hot", 0.0));
+        service.setHotAccount(hot.getId(), true);
+        service.transferMoney(payer.getId(), hot.getId(), 2.0);
+
+        try {
+            service.transferBatch(Arrays.asList(
+                    new Transfer(payer.getId(), hot.getId(), 3.0),
+                    new Transfer(hot.getId(), payer.getId(), 50.0)), TransferBatchMode.ALL_OR_NOTHING);
+            fail("the second transfer overdraws");
+        } catch (ServiceException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("Transfer [1]"));
+        }
+        assertEquals(2.0, hot.getBalance(), 0);
+        assertEquals(8.0, payer.getBalance(), 0);
+        assertTrue(service.isHotAccount(hot.getId()));
+    }
+}
@@ -79,6 +79,16 @@ public class InMemoryAccountServiceTest {
         assertEquals("Both transfers for account a1 is through", balance - 2, a1.getBalance().doubleValue(), 0.00001);
     }
 
+    @Test
+    public void testIdsAreNotReusedAfterDelete() {
+        Account a1 = service.createAccount(new Account(0L, "randomuser", 20d));
+        Account a2 = service.createAccount(new Account(0L, "randomuser", 20d));
+        service.deleteAccount(a1.getId());
+        Account a3 = service.createAccount(new Account(0L, "randomuser", 20d));
+        assertFalse(a3.getId().equals(a2.getId()));
+        assertEquals("The survivor keeps its account", "randomuser", service.findAccount(a2.getId()).get().getName());
+    }
+
     private CompletableFuture<Account> createAccountAsync() {
         return supplyAsync(() -> service.createAccount(new Account(0L, "randomuser", 20d)), customExecutor);
     }
@@ -0,0 +1,102 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LedgerTest {
+
+    @Test
+    public void testHistoryIsPagedNewestFirst() {
+        InMemoryAccountService service = new InMemoryAccountService();
+        long a1 = service.createAccount(new Account(0L, "user1", 10_000d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 1000d)).getId();
+        long a3 = service.createAccount(new Account(0L, "user3", 1000d)).getId();
+        Ledger ledger = Ledger.attach(service);
+        for (int i = 1; i <= 50; i++) {
+            service.transferMoney(a1, a2, (double) i);
+            service.transferMoney(a2, a3, 1d);
+        }
+        assertEquals(100, ledger.size());
+        assertEquals(50, ledger.count(a1));
+        assertEquals(100, ledger.count(a2));
+        assertEquals(0, ledger.count(-1));
+
+        List<Double> amounts = new ArrayList<>();
+        long next = ledger.history(a1, -1, 20, (entry, time, from, to, amount) -> {
+            assertEquals(a1, from);
+            assertEquals(a2, to);
+            amounts.add(amount);
+        });
+        assertEquals(30, next);
+        assertEquals(50d, amounts.get(0), 0);
+        while (next >= 0) {
+            next = ledger.history(a1, next, 20, (entry, time, from, to, amount) -> amounts.add(amount));
+        }
+        assertEquals(50, amounts.size());
+        assertEquals(1d, amounts.get(49), 0);
+        assertEquals(-1, ledger.history(-1, -1, 20, (entry, time, from, to, amount) -> amounts.add(amount)));
+    }
+
+    /**
+     * Writers deposit into a hot account at the same time, every transfer is indexed exactly once under it
+     */
+    @Test
+    public void testConcurrentAppendsToAHotAccount() throws Exception {
+        InMemoryAccountService service = new InMemoryAccountService();
+        long hot = service.createAccount(new Account(0L, "hot", 0d)).getId();
+        List<Long> sources = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            sources.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+        }
+        service.setHotAccount(hot, true);
+        Ledger ledger = Ledger.attach(service);
+        List<Thread> writers = new ArrayList<>();
+        for (long source : sources) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    service.transferMoney(source, hot, 1d);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(20_000, ledger.count(hot));
+        boolean[] seen = new boolean[20_000];
+        ledger.history(hot, -1, 20_000, (entry, time, from, to, amount) -> {
+            assertEquals(hot, to);
+            assertTrue(sources.contains(from));
+            seen[(int) entry] = true;
+        });
+        for (boolean entry : seen) {
+            assertTrue(entry);
+        }
+        for (long source : sources) {
+            assertEquals(5000, ledger.count(source));
+        }
+    }
+
+    @Test
+    public void testFootprintPerEntry() {
+        InMemoryAccountService service = new InMemoryAccountService();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+        }
+        Ledger ledger = Ledger.attach(service);
+        assertEquals(0, ledger.bytesPerEntry());
+        for (int i = 0; i < 1_000_000; i++) {
+            service.transferMoney(ids.get(i % 1000), ids.get((i * 7 + 1) % 1000), 0.01);
+        }
+        // Four longs for the entry and one in each of the two account indexes, plus a little for the chunks
+        assertTrue(ledger.footprint() >= 1_000_000L * 6 * Long.BYTES);
+        assertTrue(String.valueOf(ledger.bytesPerEntry()), ledger.bytesPerEntry() <= 56);
+    }
+}
@@ -0,0 +1,115 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NameIndexTest {
+
+    @Test
+    public void testPrefixSearchFollowsEveryStore() {
+        for (StoreMode mode : StoreMode.values()) {
+            AbstractAccountService service = mode.createService();
+            long alice = service.createAccount(new Account(0L, "alice", 1d)).getId();
+            long bob = service.createAccount(new Account(0L, "bob", 1d)).getId();
+            NameIndex index = NameIndex.attach(service);
+            long alina = service.createAccount(new Account(0L, "alina", 1d)).getId();
+            long ali = service.createAccount(new Account(0L, "ali", 1d)).getId();
+
+            assertEquals(mode.name(), asList(ali, alice, alina), search(index, "ali", 10));
+            assertEquals(mode.name(), asList(ali, alice), search(index, "ali", 2));
+            assertEquals(mode.name(), asList(bob), search(index, "b", 10));
+            assertEquals(mode.name(), asList(), search(index, "c", 10));
+
+            service.deleteAccount(alice);
+            service.deleteAccount(alina);
+            assertEquals(mode.name(), asList(ali), search(index, "al", 10));
+            assertEquals(mode.name(), 2, index.size());
+            index.close();
+        }
+    }
+
+    @Test
+    public void testMergesKeepResultsAndOrder() {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        NameIndex index = NameIndex.attach(service);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + (i % 10), 1d)).getId());
+        }
+        index.merge();
+        service.deleteAccount(ids.get(0));
+        service.createAccount(new Account(0L, "user0", 1d));
+        List<Long> before = search(index, "user0", 100);
+        index.merge();
+
+        assertEquals(before, search(index, "user0", 100));
+        assertEquals(10, before.size());
+        assertEquals(ids.get(10), before.get(0));
+        assertEquals(100, index.size());
+        assertTrue(index.footprint() >= 100 * (4 + Long.BYTES));
+        index.close();
+    }
+
+    /**
+     * A million accounts with the merges the index schedules itself, searches for ten names should stay well under
+     * a millisecond
+     */
+    @Test
+    public void testSearchStaysFastWithAMillionAccounts() {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        NameIndex index = NameIndex.attach(service);
+        Random random = new Random(42);
+        List<Account> accounts = new ArrayList<>(), created = new ArrayList<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            accounts.add(new Account(0L, name(random, 8), 1d));
+            if (accounts.size() == 10_000) {
+                created.addAll(service.createAccounts(accounts));
+                accounts.clear();
+            }
+        }
+        created.sort(Comparator.comparing(Account::getName).thenComparing(Account::getId));
+        for (String prefix : asList("a", "qz", "mmm", "zzzz")) {
+            assertEquals(prefix, created.stream().filter(a -> a.getName().startsWith(prefix)).limit(50)
+                    .map(Account::getId).collect(Collectors.toList()), search(index, prefix, 50));
+        }
+        for (int i = 0; i < 20_000; i++) {
+            search(index, name(random, 2), 10);
+        }
+        int searches = 100_000;
+        long start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < searches; i++) {
+            found += search(index, name(random, 2), 10).size();
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / searches;
+        System.out.printf("Prefix search over %d accounts took %d us, index holds about %d MB%n", index.size(),
+                micros, index.footprint() >> 20);
+        assertEquals(searches * 10L, found);
+        assertTrue("Search took " + micros + " us", micros < 1000);
+        index.close();
+    }
+
+    private static String name(Random random, int length) {
+        char[] name = new char[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(name);
+    }
+
+    private static List<Long> search(NameIndex index, String prefix, int limit) {
+        List<Long> ids = new ArrayList<>();
+        index.search(prefix, limit, ids::add);
+        return ids;
+    }
+}
@@ -0,0 +1,152 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferEventDispatcherTest {
+
+    private static final int ORDERING_ACCOUNTS = 16;
+    private static final int ORDERING_PRODUCERS = 4;
+    private static final int ORDERING_EVENTS_PER_PRODUCER = 20_000;
+
+    private final Collection<InMemoryEventListener<Account>> listeners = new CopyOnWriteArrayList<>();
+    private RingBufferEventDispatcher dispatcher;
+
+    @After
+    public void after() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockTransfers() throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        TestListener listener = new TestListener();
+        service.addListener(listener);
+        service.enableAsyncDispatch(1024, 2);
+        Account a1 = service.createAccount(new Account(0L, "user1", 20d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 20d));
+        CountDownLatch delivered = new CountDownLatch(2);
+        service.addListener((eventType, account) -> {
+            if (eventType == CrudEventType.UPDATED) {
+                delivered.countDown();
+            }
+        });
+        listener.blockUpdate(a1.getId());
+
+        CompletableFuture<Void> transfer = runAsync(() -> service.transferMoney(a1.getId(), a2.getId(), 1d));
+        transfer.get(1, TimeUnit.SECONDS);
+        assertEquals("Transfer returns while the listener is still blocked", 19d, a1.getBalance(), 0);
+        assertFalse(delivered.await(200, TimeUnit.MILLISECONDS));
+
+        listener.unblockUpdate(a1.getId());
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+        service.disableAsyncDispatch();
+    }
+
+    /**
+     * Producers publish an increasing counter per account while holding that account's lock, the way the stores do.
+     * Every account must see its counter increase by exactly one per event.
+     */
+    @Test
+    public void testEventsOfAnAccountKeepTheirOrder() throws Exception {
+        Map<Long, Long> lastSeen = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicInteger received = new AtomicInteger();
+        listeners.add((eventType, account) -> {
+            Long previous = lastSeen.put(account.getId(), account.getBalance().longValue());
+            if (previous != null && previous + 1 != account.getBalance().longValue()) {
+                outOfOrder.incrementAndGet();
+            }
+            received.incrementAndGet();
+        });
+        dispatcher = new RingBufferEventDispatcher(listeners, 256, 3);
+        Object[] locks = new Object[ORDERING_ACCOUNTS];
+        long[] counters = new long[ORDERING_ACCOUNTS];
+        for (int i = 0; i < ORDERING_ACCOUNTS; i++) {
+            locks[i] = new Object();
+        }
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < ORDERING_PRODUCERS; p++) {
+            int seed = p;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < ORDERING_EVENTS_PER_PRODUCER; i++) {
+                    int account = (seed * 7 + i) % ORDERING_ACCOUNTS;
+                    synchronized (locks[account]) {
+                        counters[account]++;
+                        dispatcher.publish(CrudEventType.UPDATED,
+                                new Account((long) account + 1, "user", (double) counters[account]));
+                    }
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        dispatcher.close();
+        dispatcher = null;
+        assertEquals(ORDERING_PRODUCERS * ORDERING_EVENTS_PER_PRODUCER, received.get());
+        assertEquals(0, outOfOrder.get());
+    }
+
+    /**
+     * An idle consumer blocks instead of spinning, and a publish wakes it well before its timed look
+     */
+    @Test
+    public void testIdleConsumerBlocksAndIsWoken() throws Exception {
+        CountDownLatch delivered = new CountDownLatch(1);
+        listeners.add((eventType, account) -> delivered.countDown());
+        dispatcher = new RingBufferEventDispatcher(listeners, 1024, 1);
+        Thread consumer = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("event-dispatch-0")).findFirst().get();
+        Thread.sleep(100);
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getThreadCpuTime(consumer.getId());
+        Thread.sleep(500);
+        long idleCpuMillis = TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(consumer.getId()) - cpuBefore);
+        assertTrue("Idle consumer used " + idleCpuMillis + "ms of CPU", idleCpuMillis < 10);
+        assertEquals(Thread.State.TIMED_WAITING, consumer.getState());
+
+        long start = System.nanoTime();
+        dispatcher.publish(CrudEventType.UPDATED, new Account(1L, "user", 1d));
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+        long wokenMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Woken after " + wokenMillis + "ms", wokenMillis < 50);
+    }
+
+    @Test
+    public void testPublishDoesNotAllocate() {
+        dispatcher = new RingBufferEventDispatcher(listeners, 1024, 1);
+        Account account = new Account(1L, "user", 1d);
+        for (int i = 0; i < 100_000; i++) {
+            dispatcher.publish(CrudEventType.UPDATED, account);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            dispatcher.publish(CrudEventType.UPDATED, account);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Publishing allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
@@ -0,0 +1,216 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * With four shards ids 1 and 5 share a shard, ids 1 and 2 do not
+ */
+public class ShardedAccountServiceTest {
+
+    private static final int SHARDS = 4;
+    private static final int CONTENTION_ACCOUNTS = 64;
+    private static final long CONTENTION_RUN_MILLIS = 1000;
+
+    private ShardedAccountService service;
+    private TestListener listener;
+
+    @Before
+    public void before() {
+        service = new ShardedAccountService(SHARDS);
+        listener = new TestListener();
+        service.addListener(listener);
+        for (int i = 1; i <= 8; i++) {
+            service.createAccount(new Account(0L, "user" + i, 20d));
+        }
+    }
+
+    @After
+    public void after() {
+        service.close();
+    }
+
+    @Test
+    public void testTransfersWithinAndAcrossShards() throws Exception {
+        service.transferMoney(1L, 5L, 5d);
+        service.transferMoney(1L, 2L, 5d);
+        service.transferMoneyAsync(2L, 3L, 25d).get(1, TimeUnit.SECONDS);
+        assertEquals(10d, balance(1L), 0.00001);
+        assertEquals(0d, balance(2L), 0.00001);
+        assertEquals(45d, balance(3L), 0.00001);
+        assertEquals(25d, balance(5L), 0.00001);
+    }
+
+    @Test
+    public void testFailedTransfersLeaveBalancesAlone() throws Exception {
+        assertFails("Account Id [99] not found", () -> service.transferMoney(1L, 99L, 5d));
+        assertFails("Account Id [98] not found", () -> service.transferMoney(1L, 98L, 5d));
+        assertFails("Account Id [99] not found", () -> service.transferMoney(99L, 2L, 5d));
+        assertFails("Could not withdraw [25.0] from account [1], the balance is too low",
+                () -> service.transferMoney(1L, 2L, 25d));
+        assertFails("The from and to account should not be the same [1]", () -> service.transferMoney(1L, 1L, 5d));
+        try {
+            service.transferMoneyAsync(1L, 99L, 5d).get(1, TimeUnit.SECONDS);
+            fail("Transfer to a missing account completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServiceException);
+        }
+        assertEquals("The debit was put back", 20d, balance(1L), 0.00001);
+        assertEquals(20d, balance(2L), 0.00001);
+    }
+
+    @Test
+    public void testDeleteWaitsForDebitInFlight() throws Exception {
+        listener.blockUpdate(2L);
+        CompletableFuture<Void> transfer = service.transferMoneyAsync(1L, 2L, 5d);
+        sleep(200);
+        CompletableFuture<Account> deletion = supplyAsync(() -> service.deleteAccount(1L));
+        sleep(200);
+        assertFalse("Credit is held up by the listener", transfer.isDone());
+        assertFalse("Delete waits for the debit to settle", deletion.isDone());
+        assertFalse("An account being deleted is gone for later commands", service.findAccount(1L).isPresent());
+
+        listener.unblockUpdate(2L);
+        transfer.get(1, TimeUnit.SECONDS);
+        assertEquals("Deleted with the balance after the transfer", 15d,
+                deletion.get(1, TimeUnit.SECONDS).getBalance(), 0.00001);
+        assertEquals(25d, balance(2L), 0.00001);
+    }
+
+    @Test
+    public void testBatchAcrossShardsIsAllOrNothing() {
+        List<Transfer> transfers = Arrays.asList(new Transfer(1L, 2L, 10d), new Transfer(3L, 4L, 10d),
+                new Transfer(5L, 6L, 30d));
+        assertFails("Transfer [2] of the batch failed: Could not withdraw [30.0] from account [5], "
+                        + "the balance is too low",
+                () -> service.transferBatch(transfers, TransferBatchMode.ALL_OR_NOTHING));
+        for (long id = 1; id <= 6; id++) {
+            assertEquals(20d, balance(id), 0.00001);
+        }
+        List<TransferResult> results = service.transferBatch(transfers, TransferBatchMode.PER_ITEM);
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+        assertEquals(30d, balance(2L), 0.00001);
+        assertEquals(10d, balance(3L), 0.00001);
+    }
+
+    @Test
+    public void testIdsAreNotReusedAfterDelete() {
+        Account deleted = service.deleteAccount(8L);
+        Account created = service.createAccount(new Account(0L, "randomuser", 20d));
+        assertFalse(created.getId().equals(deleted.getId()));
+    }
+
+    /**
+     * Random transfers between a fixed set of accounts and into accounts another thread keeps opening and closing.
+     * Transfers racing a delete are refunded, so the fixed set plus what the closed accounts held must still add up.
+     * Throughput is reported for one shard and one shard per core, on a multi core box the latter should be clearly
+     * higher.
+     */
+    @Test
+    public void testMoneyIsConservedAcrossShards() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int shards = Math.max(2, cores);
+        long single = measureTransfers(1);
+        long multi = measureTransfers(shards);
+        System.out.println("Sharded transfers/s: 1 shard=" + single + ", " + shards + " shards=" + multi);
+        if (cores >= 4) {
+            assertTrue("Throughput scales with shards", multi > single * 1.5);
+        }
+    }
+
+    private long measureTransfers(int shards) throws Exception {
+        service.close();
+        service = new ShardedAccountService(shards);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < CONTENTION_ACCOUNTS; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong churnId = new AtomicLong(ids.get(0));
+        LongAdder transfers = new LongAdder();
+        DoubleAdder closed = new DoubleAdder();
+        int threads = Math.max(4, shards * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> {
+            while (running.get()) {
+                Account account = service.createAccount(new Account(0L, "churn", 0d));
+                churnId.set(account.getId());
+                sleep(1);
+                churnId.set(ids.get(0));
+                closed.add(service.deleteAccount(account.getId()).getBalance());
+            }
+        }));
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    long from = ids.get(random.nextInt(ids.size()));
+                    long to = random.nextInt(16) == 0 ? churnId.get() : ids.get(random.nextInt(ids.size()));
+                    if (from != to) {
+                        try {
+                            service.transferMoney(from, to, 1d);
+                            transfers.increment();
+                        } catch (ServiceException e) {
+                            assertTrue(e.getMessage(), e.getMessage().endsWith("not found"));
+                        }
+                    }
+                }
+            }));
+        }
+        sleep(CONTENTION_RUN_MILLIS);
+        running.set(false);
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        double total = ids.stream().mapToDouble(this::balance).sum();
+        assertEquals("Money is conserved", CONTENTION_ACCOUNTS * 1_000_000d, total + closed.sum(), 0.00001);
+        return transfers.sum() * 1000 / CONTENTION_RUN_MILLIS;
+    }
+
+    private double balance(Long id) {
+        return service.findAccount(id).get().getBalance();
+    }
+
+    private static void assertFails(String message, Runnable action) {
+        try {
+            action.run();
+            fail("Expected failure: " + message);
+        } catch (ServiceException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static void sleep(long delay) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.Server;
+import com.kannane.webservice.ThreadMode;
+import com.kannane.webservice.VirtualThreadPool;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A/B comparison of the platform pool and virtual threads under a high contention transfer mix. Half the requests are
+ * transfers between a few hot accounts whose update listener takes a while (a slow downstream call made under the
+ * account lock), the other half read cold accounts. With a platform pool the blocked transfers use up the threads
+ * and the reads queue behind them, with virtual threads the reads keep flowing. Numbers are reported, not asserted.
+ */
+public class ThreadModeLoadTest {
+
+    private static final String PATH = "http://localhost:4567";
+    private static final int HOT_ACCOUNTS = 4;
+    private static final int COLD_ACCOUNTS = 64;
+    private static final int CLIENTS = 128;
+    private static final int PLATFORM_THREADS = 32;
+    private static final long HOT_UPDATE_MILLIS = 2;
+    private static final long RUN_MILLIS = 3000;
+
+    @After
+    public void after() {
+        Spark.stop();
+        Spark.awaitStop();
+        System.clearProperty("accounts.admission");
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), new EmbeddedJettyFactory());
+    }
+
+    @Test
+    public void testPlatformVersusVirtualThreadsUnderContention() throws Exception {
+        Assume.assumeTrue("Virtual threads need Java 21", VirtualThreadPool.isSupported());
+        Report platform = run(ThreadMode.PLATFORM, PLATFORM_THREADS);
+        Report virtual = run(ThreadMode.VIRTUAL, ThreadMode.VIRTUAL.getDefaultMaxThreads());
+        System.out.println("[report] " + CLIENTS + " clients, " + HOT_ACCOUNTS + " hot accounts held "
+                + HOT_UPDATE_MILLIS + "ms per update");
+        System.out.println("[report] platform(" + PLATFORM_THREADS + ") " + platform);
+        System.out.println("[report] virtual(" + ThreadMode.VIRTUAL.getDefaultMaxThreads() + ") " + virtual);
+    }
+
+    private Report run(ThreadMode threadMode, int maxThreads) throws Exception {
+        ConcurrentAccountService service = new ConcurrentAccountService();
+        for (int i = 0; i < HOT_ACCOUNTS + COLD_ACCOUNTS; i++) {
+            service.createAccount(new Account(0L, "user" + i, 1_000_000d));
+        }
+        service.addListener((eventType, account) -> {
+            if (eventType == CrudEventType.UPDATED && account.getId() <= HOT_ACCOUNTS) {
+                try {
+                    Thread.sleep(HOT_UPDATE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Server.useThreads(threadMode, maxThreads);
+        // The pools are compared on how they queue, admission control would shed the queue instead
+        System.setProperty("accounts.admission", "false");
+        new Server(service).startRouting();
+        Spark.awaitInitialization();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder errors = new LongAdder();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<long[][]>> futures = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            futures.add(clients.submit(() -> {
+                long[] reads = new long[1 << 16], transfers = new long[1 << 16];
+                int readCount = 0, transferCount = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    boolean transfer = random.nextBoolean();
+                    String path;
+                    if (transfer) {
+                        int from = 1 + random.nextInt(HOT_ACCOUNTS);
+                        int to = 1 + (from + random.nextInt(HOT_ACCOUNTS - 1)) % HOT_ACCOUNTS;
+                        path = "/transfer/from/" + from + "/to/" + to + "/amount/1";
+                    } else {
+                        path = "/account/" + (1 + HOT_ACCOUNTS + random.nextInt(COLD_ACCOUNTS));
+                    }
+                    long start = System.nanoTime();
+                    if (request(transfer ? "POST" : "GET", path) != 200) {
+                        errors.increment();
+                    }
+                    long latency = System.nanoTime() - start;
+                    if (transfer && transferCount < transfers.length) {
+                        transfers[transferCount++] = latency;
+                    } else if (!transfer && readCount < reads.length) {
+                        reads[readCount++] = latency;
+                    }
+                }
+                return new long[][]{Arrays.copyOf(reads, readCount), Arrays.copyOf(transfers, transferCount)};
+            }));
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        List<long[]> reads = new ArrayList<>(), transfers = new ArrayList<>();
+        for (Future<long[][]> future : futures) {
+            long[][] latencies = future.get(30, TimeUnit.SECONDS);
+            reads.add(latencies[0]);
+            transfers.add(latencies[1]);
+        }
+        clients.shutdown();
+        Spark.stop();
+        Spark.awaitStop();
+
+        assertEquals("No request failed", 0, errors.sum());
+        double total = 0;
+        for (long id = 1; id <= HOT_ACCOUNTS + COLD_ACCOUNTS; id++) {
+            total += service.findAccount(id).get().getBalance();
+        }
+        assertEquals("Money is conserved", (HOT_ACCOUNTS + COLD_ACCOUNTS) * 1_000_000d, total, 0.00001);
+        return new Report(merge(reads), merge(transfers));
+    }
+
+    private static int request(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(PATH + path).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        try (InputStream body = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[512];
+            while (body != null && body.read(buffer) >= 0) {
+                // Drain so the connection is reused
+            }
+        }
+        return status;
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        long[] all = new long[parts.stream().mapToInt(part -> part.length).sum()];
+        int offset = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static final class Report {
+        private final long[] reads;
+        private final long[] transfers;
+
+        private Report(long[] reads, long[] transfers) {
+            this.reads = reads;
+            this.transfers = transfers;
+        }
+
+        @Override
+        public String toString() {
+            return "requests/s=" + (reads.length + transfers.length) * 1000 / RUN_MILLIS
+                    + " reads " + percentiles(reads) + " transfers " + percentiles(transfers);
+        }
+
+        private static String percentiles(long[] sorted) {
+            if (sorted.length == 0) {
+                return "[none]";
+            }
+            return "[p50=" + millis(sorted, 0.50) + "ms p99=" + millis(sorted, 0.99)
+                    + "ms max=" + millis(sorted, 1.0) + "ms]";
+        }
+
+        private static String millis(long[] sorted, double quantile) {
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+            return String.format("%.2f", sorted[Math.max(0, index)] / 1_000_000d);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.kannane.webservice.accounts;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Once warmed up, a successful transfer allocates nothing in the stores that promise it, as long as nothing listens
+ * to their events. A listener gets an account for every update and the balance index allocates an entry for it.
+ */
+public class TransferAllocationTest {
+
+    private static final int TRANSFERS = 200_000;
+
+    @Test
+    public void testInMemoryTransfersDoNotAllocate() {
+        assertTransfersDoNotAllocate(new InMemoryAccountService());
+    }
+
+    @Test
+    public void testColumnarTransfersDoNotAllocate() {
+        assertTransfersDoNotAllocate(new ColumnarAccountService());
+    }
+
+    @Test
+    public void testRoundingGuard() {
+        AccountService service = new InMemoryAccountService();
+        long a1 = service.createAccount(new Account(0L, "user1", 20d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 20d)).getId();
+        for (double amount : new double[]{Double.NaN, 0, -5, Double.POSITIVE_INFINITY}) {
+            assertSame(Double.toString(amount), TransferStatus.BALANCE_TOO_HIGH, service.tryTransfer(a1, a2, amount));
+        }
+        assertSame(TransferStatus.BALANCE_TOO_HIGH, service.tryTransferMinor(a1, a2, 0));
+        assertEquals(20d, service.findAccount(a1).get().getBalance(), 0);
+        assertEquals(20d, service.findAccount(a2).get().getBalance(), 0);
+
+        assertSame(TransferStatus.OK, service.tryTransferMinor(a1, a2, 1250));
+        assertEquals(7.5, service.findAccount(a1).get().getBalance(), 1e-9);
+        assertEquals(32.5, service.findAccount(a2).get().getBalance(), 1e-9);
+    }
+
+    private static void assertTransfersDoNotAllocate(AbstractAccountService service) {
+        assertFalse("The promise only holds without listeners", service.hasListeners());
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId();
+        }
+        for (int round = 0; round < 10; round++) {
+            transfer(service, ids);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        transfer(service, ids);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Transfers allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void transfer(AccountService service, long[] ids) {
+        for (int i = 0; i < TRANSFERS; i++) {
+            long from = ids[i % ids.length], to = ids[(i * 7 + 1) % ids.length];
+            if (from != to && !service.tryTransferMinor(from, to, 1).isSuccess()) {
+                throw new AssertionError("Transfer " + i + " failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the batch semantics against every store
+ */
+public class TransferBatchTest {
+
+    @Test
+    public void testAllOrNothingRollsBackEveryStore() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            try {
+                service.transferBatch(Arrays.asList(new Transfer(a1.getId(), a2.getId(), 30d),
+                        new Transfer(a2.getId(), a1.getId(), 5d),
+                        new Transfer(a1.getId(), 99L, 1d)), TransferBatchMode.ALL_OR_NOTHING);
+                fail("Unknown account should fail the batch in " + mode);
+            } catch (ServiceException e) {
+                assertTrue(e.getMessage().startsWith("Transfer [2] of the batch failed"));
+            }
+            assertEquals(mode.name(), 50d, service.findAccount(a1.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), 10d, service.findAccount(a2.getId()).get().getBalance(), 0);
+        }
+    }
+
+    @Test
+    public void testPerItemAppliesInOrder() {
+        for (StoreMode mode : StoreMode.values()) {
+            AccountService service = mode.createService();
+            Account a1 = service.createAccount(new Account(0L, "user1", 50d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 10d));
+            List<TransferResult> results = service.transferBatch(Arrays.asList(
+                    new Transfer(a2.getId(), a1.getId(), 20d),
+                    new Transfer(a1.getId(), a2.getId(), 20d),
+                    new Transfer(a2.getId(), a1.getId(), 20d)), TransferBatchMode.PER_ITEM);
+            assertFalse("Not enough money before the second transfer in " + mode, results.get(0).isSuccess());
+            assertTrue(results.get(1).isSuccess());
+            assertTrue(results.get(2).isSuccess());
+            assertEquals(mode.name(), 50d, service.findAccount(a1.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), 10d, service.findAccount(a2.getId()).get().getBalance(), 0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.kannane.webservice.accounts;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Every store reports the expected failures of a transfer as a status and leaves the balances alone
+ */
+public class TransferStatusTest {
+
+    @Test
+    public void testEveryStoreReportsFailuresWithoutThrowing() {
+        for (StoreMode mode : StoreMode.values()) {
+            assertReportsFailures(mode.name(), mode.createService());
+        }
+        // The default is one shard per core, which may be a single shard
+        try (ShardedAccountService sharded = new ShardedAccountService(4)) {
+            assertReportsFailures("4 shards", sharded);
+        }
+    }
+
+    private static void assertReportsFailures(String name, AccountService service) {
+        long a1 = service.createAccount(new Account(0L, "user1", 20d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 1e16)).getId();
+        long deleted = service.createAccount(new Account(0L, "user3", 0d)).getId();
+        service.deleteAccount(deleted);
+
+        assertSame(name, TransferStatus.SAME_ACCOUNT, service.tryTransfer(a1, a1, 5d));
+        assertSame(name, TransferStatus.FROM_NOT_FOUND, service.tryTransfer(99, a1, 5d));
+        assertSame(name, TransferStatus.TO_NOT_FOUND, service.tryTransfer(a1, 99, 5d));
+        assertSame(name, TransferStatus.TO_NOT_FOUND, service.tryTransfer(a1, deleted, 5d));
+        // The payee is looked for before the funds and the amount, whichever shard it would live on
+        for (long missing = 99; missing < 107; missing++) {
+            assertSame(name, TransferStatus.TO_NOT_FOUND, service.tryTransfer(a1, missing, 25d));
+            assertSame(name, TransferStatus.TO_NOT_FOUND, service.tryTransfer(a1, missing, 0.001d));
+        }
+        assertSame(name, TransferStatus.TO_NOT_FOUND, service.tryTransfer(a1, deleted, 25d));
+        assertSame(name, TransferStatus.INSUFFICIENT_FUNDS, service.tryTransfer(a1, a2, 25d));
+        assertSame(name, TransferStatus.BALANCE_TOO_HIGH, service.tryTransfer(a1, a2, 0.001d));
+        assertEquals(name, 20d, service.findAccount(a1).get().getBalance(), 0.00001);
+
+        assertSame(name, TransferStatus.OK, service.tryTransfer(a2, a1, 5d));
+        assertEquals(name, 25d, service.findAccount(a1).get().getBalance(), 0.00001);
+    }
+
+    @Test
+    public void testTransferMoneyThrowsTheDetails() {
+        AccountService service = new InMemoryAccountService();
+        long a1 = service.createAccount(new Account(0L, "user1", 20d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 20d)).getId();
+        try {
+            service.transferMoney(a1, a2, 25d);
+            fail("Transfer without the funds completed");
+        } catch (ServiceException e) {
+            assertEquals("Could not withdraw [25.0] from account [" + a1 + "], the balance is too low",
+                    e.getMessage());
+            assertEquals(500, e.getHttpErrorCode());
+            assertEquals(TransferStatus.INSUFFICIENT_FUNDS.getHttpErrorCode(), e.getHttpErrorCode());
+        }
+    }
+
+    @Test
+    public void testSharedErrorsAreStackless() {
+        for (TransferStatus status : TransferStatus.values()) {
+            if (status.isSuccess()) {
+                assertNull(status.error());
+            } else {
+                assertSame(status.error(), status.error());
+                assertEquals(0, status.error().getStackTrace().length);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kannane.webservice.admission;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimitTest {
+
+    @Test
+    public void testRefusesPastTheLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 1, 10);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(2, limit.getInFlight());
+        limit.release(1000);
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void testGrowsWhileLatencyHoldsAndShrinksWhenItRises() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 2, 100);
+        for (int window = 0; window < 50; window++) {
+            serveWindow(limit, 1_000_000);
+        }
+        int grown = limit.getLimit();
+        assertTrue("Limit " + grown, grown > 30);
+
+        for (int window = 0; window < 50; window++) {
+            serveWindow(limit, 10_000_000);
+        }
+        assertEquals(2, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void testLimitStaysWhenNotReached() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 2, 100);
+        for (int i = 0; i < 10 * AdaptiveLimit.WINDOW; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(1_000_000);
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    /**
+     * Latencies spread out, or a mix of cheap reads and costly journaled transfers, do not look like queueing. The
+     * limit holds while requests come in below it and grows once they reach it.
+     */
+    @Test
+    public void testSpreadOfLatenciesWithoutQueueingKeepsTheLimit() {
+        Random random = new Random(42);
+        List<LongSupplier> latencies = new ArrayList<>();
+        for (double sigma : new double[]{0.2, 0.35, 0.5, 0.8}) {
+            latencies.add(() -> (long) (100_000 * Math.exp(sigma * random.nextGaussian())));
+        }
+        latencies.add(() -> random.nextInt(10) == 0 ? 1_000_000 : 30_000);
+        for (LongSupplier latency : latencies) {
+            AdaptiveLimit limit = new AdaptiveLimit(32, 4, 1000);
+            for (int i = 0; i < 20 * AdaptiveLimit.WINDOW; i++) {
+                assertTrue(limit.tryAcquire());
+                limit.release(latency.getAsLong());
+            }
+            assertEquals(32, limit.getLimit());
+            for (int window = 0; window < 50; window++) {
+                serveWindow(limit, latency);
+            }
+            assertTrue("Limit " + limit.getLimit(), limit.getLimit() >= 32);
+        }
+    }
+
+    /**
+     * A single client learns the latency of the lock, then clients outnumbering the limit crowd a lock held 200us
+     * per request. Without a limit every request waits for all the others, with one the limit comes down and the
+     * requests let in wait for a few.
+     */
+    @Test
+    public void testLimitFollowsLockContention() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(32, 1, 64);
+        Object lock = new Object();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong served = new AtomicLong(), latencies = new AtomicLong();
+        CountDownLatch crowd = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < 48; c++) {
+            boolean first = c == 0;
+            Thread client = new Thread(() -> {
+                if (!first) {
+                    awaitUninterruptibly(crowd);
+                }
+                while (running.get()) {
+                    if (!limit.tryAcquire()) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    synchronized (lock) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+                    }
+                    long latency = System.nanoTime() - start;
+                    limit.release(latency);
+                    served.incrementAndGet();
+                    latencies.addAndGet(latency);
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        Thread.sleep(500);
+        crowd.countDown();
+        Thread.sleep(3000);
+        running.set(false);
+        for (Thread client : clients) {
+            client.join();
+        }
+        assertTrue("Limit " + limit.getLimit(), limit.getLimit() <= 8);
+        assertTrue(served.get() > 0);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One window of requests taking the given time, with the limit reached
+     */
+    private static void serveWindow(AdaptiveLimit limit, long latencyNanos) {
+        serveWindow(limit, () -> latencyNanos);
+    }
+
+    private static void serveWindow(AdaptiveLimit limit, LongSupplier latencyNanos) {
+        int served = 0;
+        while (served < AdaptiveLimit.WINDOW) {
+            int acquired = 0;
+            while (limit.tryAcquire()) {
+                acquired++;
+            }
+            for (int i = 0; i < acquired; i++) {
+                limit.release(latencyNanos.getAsLong());
+            }
+            served += acquired;
+        }
+    }
+}
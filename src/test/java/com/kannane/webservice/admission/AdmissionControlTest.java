@@ -0,0 +1,77 @@
+package com.kannane.webservice.admission;
+
+import com.kannane.webservice.Server;
+import com.kannane.webservice.ServiceException;
+import org.junit.After;
+import org.junit.Test;
+import spark.Route;
+import spark.Spark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdmissionControlTest {
+
+    private static final String PATH = "http://localhost:4567";
+
+    @After
+    public void after() {
+        System.clearProperty("accounts.admission.account.rate");
+        System.clearProperty("accounts.admission.account.burst");
+        Spark.stop();
+        Spark.awaitStop();
+    }
+
+    @Test
+    public void testRefusesPastTheLimitWithRetryAfter() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+        Route admitted = new AdmissionControl(new AdaptiveLimit(1, 1, 1), null).admit((request, response) -> {
+            entered.countDown();
+            release.await();
+            return "done";
+        });
+        Thread first = new Thread(() -> {
+            try {
+                admitted.handle(null, null);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        first.start();
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        try {
+            admitted.handle(null, null);
+            fail("Let in past the limit");
+        } catch (ServiceException e) {
+            assertEquals(503, e.getHttpErrorCode());
+            assertEquals(1, e.getRetryAfterSeconds());
+        }
+        release.countDown();
+        first.join();
+    }
+
+    @Test
+    public void testAccountOverItsRateIsAnswered429() {
+        System.setProperty("accounts.admission.account.rate", "0.01");
+        System.setProperty("accounts.admission.account.burst", "2");
+        new Server().startRouting();
+        Spark.awaitInitialization();
+        for (int i = 1; i <= 3; i++) {
+            given().queryParam("name", "user" + i).queryParam("balance", 10).put(PATH + "/account")
+                    .then().statusCode(is(200));
+        }
+        given().post(PATH + "/transfer/from/1/to/2/amount/1").then().statusCode(is(200));
+        given().get(PATH + "/account/3").then().statusCode(is(200)).header("Retry-After", nullValue());
+        given().get(PATH + "/account/1").then().statusCode(is(200));
+        given().get(PATH + "/account/1").then().statusCode(is(429)).header("Retry-After", is("100"));
+        given().post(PATH + "/transfer/from/1/to/3/amount/1").then().statusCode(is(429));
+        given().get(PATH + "/account/3").then().statusCode(is(200));
+    }
+}
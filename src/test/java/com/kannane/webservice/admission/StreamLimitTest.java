@@ -0,0 +1,72 @@
+package com.kannane.webservice.admission;
+
+import com.kannane.webservice.ServiceException;
+import org.junit.Test;
+import spark.Route;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamLimitTest {
+
+    @Test
+    public void testRefusesStreamsPastTheCapUntilOneEnds() throws Exception {
+        StreamLimit limit = new StreamLimit(2);
+        CountDownLatch entered = new CountDownLatch(2), release = new CountDownLatch(1);
+        Route stream = limit.admit((request, response) -> {
+            entered.countDown();
+            release.await();
+            return "done";
+        });
+        List<Thread> open = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    stream.handle(null, null);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            thread.start();
+            open.add(thread);
+        }
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertEquals(2, limit.getOpen());
+        try {
+            stream.handle(null, null);
+            fail("Opened a stream past the cap");
+        } catch (ServiceException e) {
+            assertEquals(503, e.getHttpErrorCode());
+            assertEquals(1, e.getRetryAfterSeconds());
+        }
+        release.countDown();
+        for (Thread thread : open) {
+            thread.join();
+        }
+        assertEquals(0, limit.getOpen());
+        assertEquals("done", stream.handle(null, null));
+    }
+
+    @Test
+    public void testFailedStreamGivesItsPlaceBack() throws Exception {
+        StreamLimit limit = new StreamLimit(1);
+        Route failing = limit.admit((request, response) -> {
+            throw new ServiceException("gone", 410);
+        });
+        for (int i = 0; i < 3; i++) {
+            try {
+                failing.handle(null, null);
+                fail("The stream should have failed");
+            } catch (ServiceException e) {
+                assertEquals(410, e.getHttpErrorCode());
+            }
+        }
+        assertEquals(0, limit.getOpen());
+    }
+}
@@ -0,0 +1,142 @@
+package com.kannane.webservice.binary;
+
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountService;
+import com.kannane.webservice.accounts.InMemoryAccountService;
+import com.kannane.webservice.accounts.TransferStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static com.kannane.webservice.binary.BinaryProtocol.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryServerTest {
+
+    private AccountService service;
+    private BinaryServer server;
+    private BinaryClient client;
+
+    @Before
+    public void before() throws Exception {
+        service = new InMemoryAccountService();
+        server = new BinaryServer(service, 0, 2);
+        client = new BinaryClient(address());
+    }
+
+    @After
+    public void after() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testCreateGetDelete() throws Exception {
+        client.sendCreate("user1", 25.5);
+        BinaryClient.Response created = client.read();
+        assertEquals(OK, created.getStatus());
+        long id = created.getId();
+        assertEquals("user1", service.findAccount(id).get().getName());
+
+        client.sendGet(id);
+        BinaryClient.Response found = client.read();
+        assertEquals(OK, found.getStatus());
+        assertEquals(id, found.getId());
+        assertEquals("user1", found.getName());
+        assertEquals(25.5, found.getBalance(), 0);
+        assertEquals(service.findAccount(id).get().getVersion(), found.getVersion());
+
+        client.sendDelete(id);
+        assertEquals(OK, client.read().getStatus());
+        assertFalse(service.findAccount(id).isPresent());
+
+        client.sendGet(id);
+        assertEquals(NOT_FOUND, client.read().getStatus());
+        client.sendDelete(id);
+        BinaryClient.Response error = client.read();
+        assertEquals(ERROR, error.getStatus());
+        assertTrue(error.getMessage(), error.getMessage().contains("not found"));
+    }
+
+    @Test
+    public void testTransferStatuses() throws Exception {
+        long a1 = service.createAccount(new Account(0L, "user1", 20d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 20d)).getId();
+        assertSame(TransferStatus.OK, client.transfer(a1, a2, 1250));
+        assertSame(TransferStatus.INSUFFICIENT_FUNDS, client.transfer(a1, a2, 1000));
+        assertSame(TransferStatus.SAME_ACCOUNT, client.transfer(a1, a1, 100));
+        assertSame(TransferStatus.FROM_NOT_FOUND, client.transfer(-1, a2, 100));
+        assertSame(TransferStatus.TO_NOT_FOUND, client.transfer(a1, -1, 100));
+        assertEquals(7.5, service.findAccount(a1).get().getBalance(), 1e-9);
+        assertEquals(32.5, service.findAccount(a2).get().getBalance(), 1e-9);
+    }
+
+    @Test
+    public void testPipelinedRequestsAnswerInOrder() throws Exception {
+        long a1 = service.createAccount(new Account(0L, "user1", 1000d)).getId();
+        long a2 = service.createAccount(new Account(0L, "user2", 1000d)).getId();
+        int[] tags = new int[5000];
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = i % 2 == 0 ? client.sendTransfer(a1, a2, 1) : client.sendTransfer(a2, a1, 2);
+            }
+            client.flush();
+            for (int tag : tags) {
+                BinaryClient.Response response = client.read();
+                assertEquals(tag, response.getTag());
+                assertEquals(OK, response.getStatus());
+            }
+        }
+        assertEquals(1250d, service.findAccount(a1).get().getBalance(), 1e-9);
+        assertEquals(750d, service.findAccount(a2).get().getBalance(), 1e-9);
+    }
+
+    @Test
+    public void testMalformedFrameClosesTheConnection() throws Exception {
+        try (SocketChannel channel = SocketChannel.open(address())) {
+            ByteBuffer request = ByteBuffer.allocate(Integer.BYTES + HEADER_BYTES + Long.BYTES);
+            request.putInt(HEADER_BYTES + Long.BYTES).put((byte) 99).putInt(7).putLong(1).flip();
+            channel.write(request);
+            ByteBuffer response = ByteBuffer.allocate(64);
+            while (channel.read(response) >= 0) {
+                assertTrue("Connection stayed open", response.position() <= Integer.BYTES + HEADER_BYTES);
+            }
+            response.flip();
+            assertEquals(HEADER_BYTES, response.getInt());
+            assertEquals(BAD_REQUEST, response.get());
+            assertEquals(7, response.getInt());
+        }
+        // Other connections are not affected
+        client.sendCreate("user1", 1);
+        assertEquals(OK, client.read().getStatus());
+    }
+
+    @Test
+    public void testFrameLongerThanTheMaximumIsRefused() throws Exception {
+        try (BinaryClient other = new BinaryClient(address());
+             SocketChannel channel = SocketChannel.open(address())) {
+            ByteBuffer request = ByteBuffer.allocate(Integer.BYTES);
+            request.putInt(MAX_FRAME_BYTES).flip();
+            channel.write(request);
+            ByteBuffer response = ByteBuffer.allocate(64);
+            while (channel.read(response) >= 0) {
+                assertTrue("Connection stayed open", response.position() <= Integer.BYTES + HEADER_BYTES);
+            }
+            assertEquals(BAD_REQUEST, response.get(Integer.BYTES));
+            other.sendGet(1);
+            assertEquals(NOT_FOUND, other.read().getStatus());
+        }
+    }
+
+    private InetSocketAddress address() throws IOException {
+        return new InetSocketAddress("localhost", server.getPort());
+    }
+}
@@ -0,0 +1,195 @@
+package com.kannane.webservice.journal;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.StoreMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalTest {
+
+    private static final int THROUGHPUT_THREADS = 16;
+    private static final int THROUGHPUT_ACCOUNTS = 100;
+    private static final long THROUGHPUT_RUN_MILLIS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayRebuildsEveryStore() throws Exception {
+        for (StoreMode mode : StoreMode.values()) {
+            Path path = folder.newFile(mode.name() + ".journal").toPath();
+            JournalingAccountService service = open(mode, path, FsyncPolicy.EVERY_COMMIT);
+            Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+            Account a2 = service.createAccount(new Account(0L, "user2", 97.5));
+            Account a3 = service.createAccount(new Account(0L, "user3", 10d));
+            service.transferMoney(a1.getId(), a2.getId(), 20d);
+            service.transferMoney(a2.getId(), a3.getId(), 7.5);
+            service.deleteAccount(a1.getId());
+            service.getJournal().close();
+
+            JournalingAccountService restored = open(mode, path, FsyncPolicy.EVERY_COMMIT);
+            assertFalse(mode.name(), restored.findAccount(a1.getId()).isPresent());
+            assertEquals(mode.name(), 110d, restored.findAccount(a2.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), 17.5, restored.findAccount(a3.getId()).get().getBalance(), 0);
+            assertEquals("user3", restored.findAccount(a3.getId()).get().getName());
+            //The in memory store derives ids from its size and reuses them after a delete
+            Account a4 = restored.createAccount(new Account(0L, "user4", 1d));
+            assertTrue("New ids continue after the replayed ones", a4.getId() > a3.getId()
+                    || mode == StoreMode.INMEMORY);
+            restored.getJournal().close();
+        }
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        Path path = folder.newFile().toPath();
+        JournalingAccountService service = open(StoreMode.CONCURRENT, path, FsyncPolicy.EVERY_COMMIT);
+        Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 0d));
+        service.transferMoney(a1.getId(), a2.getId(), 5d);
+        service.getJournal().close();
+        long intactLength = path.toFile().length();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 25, 1, 2, 3}));
+        }
+
+        JournalingAccountService restored = open(StoreMode.CONCURRENT, path, FsyncPolicy.EVERY_COMMIT);
+        assertEquals(40d, restored.findAccount(a1.getId()).get().getBalance(), 0);
+        assertEquals(intactLength, path.toFile().length());
+        restored.transferMoney(a1.getId(), a2.getId(), 5d);
+        restored.getJournal().close();
+
+        JournalingAccountService again = open(StoreMode.CONCURRENT, path, FsyncPolicy.EVERY_COMMIT);
+        assertEquals(35d, again.findAccount(a1.getId()).get().getBalance(), 0);
+        again.getJournal().close();
+    }
+
+    @Test
+    public void testMissingNameAndBalanceSurviveReplay() throws Exception {
+        Path path = folder.newFile().toPath();
+        JournalingAccountService service = open(StoreMode.INMEMORY, path, FsyncPolicy.EVERY_COMMIT);
+        Account account = service.createAccount(new Account(0L, null, null));
+        service.getJournal().close();
+
+        JournalingAccountService restored = open(StoreMode.INMEMORY, path, FsyncPolicy.EVERY_COMMIT);
+        Account replayed = restored.findAccount(account.getId()).get();
+        assertNull(replayed.getName());
+        assertFalse(replayed.hasBalance());
+        restored.getJournal().close();
+    }
+
+    /**
+     * A write that fails stops the journal, later mutations are refused before they change the store
+     */
+    @Test
+    public void testMutationsAreRefusedAfterAWriteFailed() throws Exception {
+        Path path = folder.newFile().toPath();
+        JournalingAccountService service = open(StoreMode.CONCURRENT, path, FsyncPolicy.EVERY_COMMIT);
+        Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 0d));
+        // An interrupted thread closes the channel on its next write
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("journal-writer")) {
+                thread.interrupt();
+            }
+        }
+        try {
+            service.createAccount(new Account(0L, "user3", 1d));
+            fail("The write should have failed");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Journal write failed"));
+        }
+        long appended = service.getJournal().appendedPosition();
+        try {
+            service.transferMoney(a1.getId(), a2.getId(), 5d);
+            fail("Transferred without a journal");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Journal write failed"));
+        }
+        assertEquals(45d, service.findAccount(a1.getId()).get().getBalance(), 0);
+        assertEquals(appended, service.getJournal().appendedPosition());
+    }
+
+    /**
+     * Reports durable transfers per second for every policy. With EVERY_COMMIT concurrent transfers share fsyncs,
+     * so there must be fewer commits than transfers.
+     */
+    @Test
+    public void testThroughputPerFsyncPolicy() throws Exception {
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Path path = folder.newFile(policy.name() + ".journal").toPath();
+            JournalingAccountService service = open(StoreMode.CONCURRENT, path, policy);
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < THROUGHPUT_ACCOUNTS; i++) {
+                ids.add(service.createAccount(new Account(0L, "user" + i, 1_000_000d)).getId());
+            }
+            long commitsBefore = service.getJournal().commits();
+            long transfers = runTransfers(service, ids);
+            long commits = service.getJournal().commits() - commitsBefore;
+            System.out.println("Journal " + policy + ": " + transfers * 1000 / THROUGHPUT_RUN_MILLIS
+                    + " transfers/s, " + commits + " group commits for " + transfers + " transfers");
+            assertTrue(commits < transfers);
+            service.getJournal().close();
+
+            JournalingAccountService restored = open(StoreMode.CONCURRENT, path, policy);
+            double total = ids.stream().mapToDouble(id -> restored.findAccount(id).get().getBalance()).sum();
+            assertEquals(THROUGHPUT_ACCOUNTS * 1_000_000d, total, 0);
+            restored.getJournal().close();
+        }
+    }
+
+    private long runTransfers(JournalingAccountService service, List<Long> ids) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder transfers = new LongAdder();
+        ExecutorService executor = Executors.newFixedThreadPool(THROUGHPUT_THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THROUGHPUT_THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    long from = ids.get(random.nextInt(ids.size())), to = ids.get(random.nextInt(ids.size()));
+                    if (from != to) {
+                        service.transferMoney(from, to, 1d);
+                        transfers.increment();
+                    }
+                }
+            }));
+        }
+        Thread.sleep(THROUGHPUT_RUN_MILLIS);
+        running.set(false);
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        return transfers.sum();
+    }
+
+    private static JournalingAccountService open(StoreMode mode, Path path, FsyncPolicy policy) throws IOException {
+        AbstractAccountService store = mode.createService();
+        return new JournalingAccountService(store, Journal.open(path, policy, 10));
+    }
+}
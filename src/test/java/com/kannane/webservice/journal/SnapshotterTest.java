@@ -0,0 +1,160 @@
+package com.kannane.webservice.journal;
+
+import com.kannane.webservice.accounts.AbstractAccountService;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.AccountSnapshot;
+import com.kannane.webservice.accounts.ColumnarAccountService;
+import com.kannane.webservice.accounts.StoreMode;
+import com.kannane.webservice.accounts.Transfer;
+import com.kannane.webservice.accounts.TransferBatchMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotterTest {
+
+    private static final int SMALL_STARTUP_ACCOUNTS = 100_000;
+    private static final int LARGE_STARTUP_ACCOUNTS = 2_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBootFromSnapshotPlusJournalTail() throws Exception {
+        Path journalPath = folder.newFile("accounts.journal").toPath();
+        Path snapshots = folder.newFolder("snapshots").toPath();
+        JournalingAccountService service = new JournalingAccountService(StoreMode.CONCURRENT.createService(),
+                Journal.open(journalPath, FsyncPolicy.EVERY_COMMIT, 10));
+        Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 97.5));
+        Account a3 = service.createAccount(new Account(0L, "user3", 1d));
+        service.transferMoney(a1.getId(), a2.getId(), 20d);
+
+        Snapshotter snapshotter = new Snapshotter(snapshots, service.getJournal());
+        assertNotNull(snapshotter.takeSnapshot());
+        assertNull("Nothing new to snapshot", snapshotter.takeSnapshot());
+
+        service.transferMoney(a2.getId(), a1.getId(), 2.5);
+        service.deleteAccount(a3.getId());
+        service.getJournal().close();
+
+        for (StoreMode mode : StoreMode.values()) {
+            AccountSnapshot snapshot = AccountSnapshot.latest(snapshots);
+            AbstractAccountService store = mode.createService(snapshot);
+            JournalingAccountService restored = new JournalingAccountService(store,
+                    Journal.open(journalPath, FsyncPolicy.EVERY_COMMIT, 10), snapshot.getJournalPosition());
+            assertEquals(mode.name(), 27.5, restored.findAccount(a1.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), 115d, restored.findAccount(a2.getId()).get().getBalance(), 0);
+            assertEquals("user2", restored.findAccount(a2.getId()).get().getName());
+            assertFalse(mode.name(), restored.findAccount(a3.getId()).isPresent());
+            restored.getJournal().close();
+        }
+    }
+
+    /**
+     * Sub-cent amounts, single and batched, into a double store. Snapshots hold cents, so a restart must find the
+     * balances the live store had to the last bit and replay a tail that spends an account down to nothing.
+     */
+    @Test
+    public void testSubCentAmountsSurviveARestartInEveryStore() throws Exception {
+        for (StoreMode liveMode : new StoreMode[]{StoreMode.INMEMORY, StoreMode.CONCURRENT, StoreMode.SHARDED}) {
+            Path journalPath = folder.newFile(liveMode + ".journal").toPath();
+            Path snapshots = folder.newFolder(liveMode + "-snapshots").toPath();
+            AbstractAccountService live = liveMode.createService();
+            JournalingAccountService service = new JournalingAccountService(live,
+                    Journal.open(journalPath, FsyncPolicy.EVERY_COMMIT, 10));
+            long a1 = service.createAccount(new Account(0L, "user1", 10.004)).getId();
+            long a2 = service.createAccount(new Account(0L, "user2", 0.1)).getId();
+            for (int i = 0; i < 7; i++) {
+                service.transferMoney(a1, a2, 0.333);
+                service.transferBatch(Arrays.asList(new Transfer(a2, a1, 0.1049), new Transfer(a1, a2, 0.2)),
+                        TransferBatchMode.ALL_OR_NOTHING);
+            }
+            new Snapshotter(snapshots, service.getJournal()).takeSnapshot();
+            double a1Balance = live.findAccount(a1).get().getBalance();
+            service.transferMoney(a1, a2, a1Balance);
+            double a2Balance = live.findAccount(a2).get().getBalance();
+            assertEquals(liveMode.name(), 0d, live.findAccount(a1).get().getBalance(), 0);
+            service.getJournal().close();
+
+            for (StoreMode mode : StoreMode.values()) {
+                AccountSnapshot snapshot = AccountSnapshot.latest(snapshots);
+                JournalingAccountService restored = new JournalingAccountService(mode.createService(snapshot),
+                        Journal.open(journalPath, FsyncPolicy.EVERY_COMMIT, 10), snapshot.getJournalPosition());
+                String store = liveMode + " into " + mode;
+                assertEquals(store, 0d, restored.findAccount(a1).get().getBalance(), 0);
+                assertEquals(store, a2Balance, restored.findAccount(a2).get().getBalance(), 0);
+                restored.getJournal().close();
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotsRollForward() throws Exception {
+        Path journalPath = folder.newFile("accounts.journal").toPath();
+        Path snapshots = folder.newFolder("snapshots").toPath();
+        JournalingAccountService service = new JournalingAccountService(StoreMode.COLUMNAR.createService(),
+                Journal.open(journalPath, FsyncPolicy.NONE, 10));
+        Snapshotter snapshotter = new Snapshotter(snapshots, service.getJournal());
+        Account a1 = service.createAccount(new Account(0L, "user1", 100d));
+        for (int round = 0; round < 4; round++) {
+            Account other = service.createAccount(new Account(0L, "user" + round, 0d));
+            service.transferMoney(a1.getId(), other.getId(), 10d);
+            snapshotter.takeSnapshot();
+        }
+        AccountSnapshot latest = AccountSnapshot.latest(snapshots);
+        assertEquals(service.getJournal().durablePosition(), latest.getJournalPosition());
+        AbstractAccountService store = StoreMode.COLUMNAR.createService(latest);
+        assertEquals(60d, store.findAccount(a1.getId()).get().getBalance(), 0);
+        assertEquals(10d, store.findAccount(a1.getId() + 4).get().getBalance(), 0);
+        assertTrue("Only the latest snapshots are kept", snapshots.toFile().list().length <= 2);
+        service.getJournal().close();
+    }
+
+    /**
+     * Time from opening the snapshot to the first account lookup. Columnar stores map pages on demand and should
+     * barely depend on the number of accounts, other stores load every account first.
+     */
+    @Test
+    public void testStartupTimeAgainstAccountCount() throws Exception {
+        long lazySmall = timeToFirstLookup(StoreMode.COLUMNAR, SMALL_STARTUP_ACCOUNTS);
+        long lazyLarge = timeToFirstLookup(StoreMode.COLUMNAR, LARGE_STARTUP_ACCOUNTS);
+        long eagerSmall = timeToFirstLookup(StoreMode.CONCURRENT, SMALL_STARTUP_ACCOUNTS);
+        long eagerLarge = timeToFirstLookup(StoreMode.CONCURRENT, LARGE_STARTUP_ACCOUNTS);
+        System.out.println("Startup to first lookup in ms: columnar " + SMALL_STARTUP_ACCOUNTS + "=" + lazySmall
+                + ", " + LARGE_STARTUP_ACCOUNTS + "=" + lazyLarge + "; concurrent " + SMALL_STARTUP_ACCOUNTS + "="
+                + eagerSmall + ", " + LARGE_STARTUP_ACCOUNTS + "=" + eagerLarge);
+        assertTrue("Lazily mapped startup beats loading every account", lazyLarge < eagerLarge);
+    }
+
+    private long timeToFirstLookup(StoreMode mode, int accounts) throws IOException {
+        Path directory = folder.newFolder().toPath();
+        ColumnarAccountService source = new ColumnarAccountService();
+        for (int i = 0; i < accounts; i++) {
+            source.createAccount(new Account(0L, "user" + (i % 1000), 100d));
+        }
+        AccountSnapshot.write(source, directory, 0);
+        source = null;
+        Path journalPath = directory.resolve("accounts.journal");
+
+        long start = System.nanoTime();
+        AccountSnapshot snapshot = AccountSnapshot.latest(directory);
+        JournalingAccountService service = new JournalingAccountService(mode.createService(snapshot),
+                Journal.open(journalPath, FsyncPolicy.NONE, 10), snapshot.getJournalPosition());
+        assertTrue(service.findAccount((long) accounts / 2).isPresent());
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        service.getJournal().close();
+        return elapsed;
+    }
+}
@@ -0,0 +1,103 @@
+package com.kannane.webservice.load;
+
+import com.google.gson.Gson;
+import com.kannane.webservice.Server;
+import com.kannane.webservice.load.LoadMix.Operation;
+import org.junit.Test;
+import spark.Spark;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testZipfianFrequenciesFollowTheRank() {
+        int n = 1000, draws = 1_000_000;
+        double exponent = 0.99;
+        ZipfianGenerator zipf = new ZipfianGenerator(n, exponent);
+        Random random = new Random(42);
+        int[] counts = new int[n + 1];
+        for (int i = 0; i < draws; i++) {
+            counts[zipf.next(random)]++;
+        }
+        double normaliser = 0;
+        for (int k = 1; k <= n; k++) {
+            normaliser += 1 / Math.pow(k, exponent);
+        }
+        for (int k : new int[]{1, 2, 10, 100}) {
+            double expected = draws / Math.pow(k, exponent) / normaliser;
+            assertEquals("rank " + k, expected, counts[k], expected * 0.05);
+        }
+        assertEquals("uniform when the exponent is 0", 1, new ZipfianGenerator(1, 0).next(random));
+    }
+
+    @Test
+    public void testRegressionsAgainstTheBaseline() throws Exception {
+        LoadReport baselineRun = new LoadReport();
+        LoadReport slowerRun = new LoadReport();
+        for (int i = 0; i < 1000; i++) {
+            baselineRun.record(Operation.GET, TimeUnit.MILLISECONDS.toNanos(1), true);
+            baselineRun.completedInWindow();
+            slowerRun.record(Operation.GET, TimeUnit.MILLISECONDS.toNanos(2), i % 10 != 0);
+            slowerRun.completedInWindow();
+        }
+        Map<String, Object> settings = Collections.singletonMap("rate", 100.0);
+        Path file = Files.createTempFile("baseline", ".json");
+        Files.write(file, new Gson().toJson(baselineRun.toMap(settings, TimeUnit.SECONDS.toNanos(10)))
+                .getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> baseline = LoadGenerator.readReport(file);
+        Files.delete(file);
+
+        assertTrue(LoadReport.regressions(baselineRun.toMap(settings, TimeUnit.SECONDS.toNanos(10)), baseline, 0.1)
+                .isEmpty());
+        List<String> regressions = LoadReport.regressions(slowerRun.toMap(settings, TimeUnit.SECONDS.toNanos(20)),
+                baseline, 0.1);
+        assertEquals(regressions.toString(), 6, regressions.size());
+        assertTrue(regressions.get(0), regressions.get(0).startsWith("throughput 50.0"));
+        assertTrue(regressions.get(5), regressions.get(5).startsWith("error share 0.1"));
+
+        Map<String, Object> otherRate = Collections.singletonMap("rate", 200.0);
+        assertEquals(Collections.singletonList("the baseline ran with rate 100.0, this run with 200.0"),
+                LoadReport.regressions(baselineRun.toMap(otherRate, TimeUnit.SECONDS.toNanos(10)), baseline, 0.1));
+    }
+
+    @Test
+    public void testOpenLoopRunAgainstARunningServer() throws Exception {
+        new Server().startRouting();
+        Spark.awaitInitialization();
+        Map<String, String> options = new HashMap<>();
+        options.put("target", "http://localhost:4567");
+        options.put("accounts", "200");
+        options.put("rate", "200");
+        options.put("duration", "2");
+        options.put("warmup", "1");
+        options.put("connections", "8");
+        Map<String, Object> report;
+        try {
+            report = new LoadGenerator(options).run();
+        } finally {
+            Spark.stop();
+            Spark.awaitStop();
+        }
+
+        assertEquals(report.toString(), 400, ((Number) report.get("requests")).doubleValue(), 1);
+        assertEquals(report.toString(), 0L, report.get("errors"));
+        assertEquals(report.toString(), 200, ((Number) report.get("throughput")).doubleValue(), 40);
+        @SuppressWarnings("unchecked")
+        Map<String, ?> operations = (Map<String, ?>) report.get("operations");
+        assertTrue(report.toString(), operations.keySet().containsAll(
+                Arrays.asList("get", "create", "transfer")));
+    }
+}
@@ -0,0 +1,87 @@
+package com.kannane.webservice.metrics;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.valueAtQuantile(0.99));
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void testQuantilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; value++) {
+            histogram.record(value);
+        }
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999, 0.9999}) {
+            long exact = (long) Math.ceil(quantile * 1_000_000);
+            long reported = histogram.valueAtQuantile(quantile);
+            assertTrue("p" + quantile + " " + reported + " is not below " + exact, reported >= exact);
+            assertTrue("p" + quantile + " " + reported + " is within 1/32 of " + exact,
+                    reported <= exact + exact / 32 + 1);
+        }
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(1_000_000, histogram.getCount());
+        assertEquals(1_000_000L * 1_000_001 / 2, histogram.getSum());
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 1L << 40, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value + " fits its bucket", LatencyHistogram.highestValueIn(index) >= value);
+            if (index > 0) {
+                assertTrue(value + " is above the previous bucket",
+                        LatencyHistogram.highestValueIn(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(ThreadLocalRandom.current().nextLong(1, 10_000_000));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(histogram.getMax(), histogram.valueAtQuantile(1.0));
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i * 7919L);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i * 7919L);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Recording allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
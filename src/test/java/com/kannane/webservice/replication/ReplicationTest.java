@@ -0,0 +1,138 @@
+package com.kannane.webservice.replication;
+
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.StoreMode;
+import com.kannane.webservice.journal.FsyncPolicy;
+import com.kannane.webservice.journal.Journal;
+import com.kannane.webservice.journal.JournalingAccountService;
+import com.kannane.webservice.journal.Snapshotter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicationTest {
+
+    private static final long SYNC_TIMEOUT_MILLIS = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path snapshots;
+    private JournalingAccountService service;
+    private ReplicationLeader leader;
+    private final List<ReplicationFollower> followers = new ArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        snapshots = folder.newFolder("snapshots").toPath();
+        service = new JournalingAccountService(StoreMode.CONCURRENT.createService(),
+                Journal.open(folder.newFile("accounts.journal").toPath(), FsyncPolicy.NONE, 10));
+        leader = new ReplicationLeader(service.getJournal(), snapshots, 0);
+    }
+
+    @After
+    public void after() throws Exception {
+        followers.forEach(ReplicationFollower::close);
+        leader.close();
+        service.getJournal().close();
+    }
+
+    @Test
+    public void testFollowerAppliesTheLeadersMutations() throws Exception {
+        ReplicationFollower follower = follower(StoreMode.INMEMORY);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(service.createAccount(new Account(0L, "user" + i, 100d)).getId());
+        }
+        for (int i = 0; i < 5000; i++) {
+            service.transferMoney(ids.get(i % ids.size()), ids.get((i * 7 + 1) % ids.size()), 1.25);
+        }
+        service.deleteAccount(ids.get(0));
+        awaitSync(follower);
+
+        assertFalse(follower.findAccount(ids.get(0)).isPresent());
+        for (Long id : ids.subList(1, ids.size())) {
+            assertEquals(service.findAccount(id).get().getBalance(), follower.findAccount(id).get().getBalance());
+            assertEquals(service.findAccount(id).get().getName(), follower.findAccount(id).get().getName());
+        }
+        assertTrue("Lag is below a heartbeat or two", follower.getLagMillis() < 1000);
+        assertEquals(1, ((List<?>) leader.status().get("followers")).size());
+    }
+
+    @Test
+    public void testNewFollowerStartsFromSnapshotPlusTail() throws Exception {
+        Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 97.5));
+        service.transferMoney(a1.getId(), a2.getId(), 20d);
+        new Snapshotter(snapshots, service.getJournal()).takeSnapshot();
+        service.transferMoney(a2.getId(), a1.getId(), 2.5);
+        Account a3 = service.createAccount(new Account(0L, "user3", 1d));
+
+        for (StoreMode mode : new StoreMode[]{StoreMode.COLUMNAR, StoreMode.SHARDED}) {
+            ReplicationFollower follower = follower(mode);
+            awaitSync(follower);
+            assertEquals(mode.name(), 1, follower.getSnapshotsLoaded());
+            assertEquals(mode.name(), 27.5, follower.findAccount(a1.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), 115d, follower.findAccount(a2.getId()).get().getBalance(), 0);
+            assertEquals(mode.name(), "user3", follower.findAccount(a3.getId()).get().getName());
+        }
+    }
+
+    @Test
+    public void testFollowerResumesFromItsPositionAfterReconnecting() throws Exception {
+        Account a1 = service.createAccount(new Account(0L, "user1", 45d));
+        Account a2 = service.createAccount(new Account(0L, "user2", 97.5));
+        int port = leader.getPort();
+        ReplicationFollower follower = follower(StoreMode.CONCURRENT);
+        awaitSync(follower);
+
+        leader.close();
+        service.transferMoney(a1.getId(), a2.getId(), 20d);
+        leader = new ReplicationLeader(service.getJournal(), snapshots, port);
+        awaitSync(follower);
+        assertEquals("Caught up from the journal alone", 1, follower.getSnapshotsLoaded());
+        assertEquals(25d, follower.findAccount(a1.getId()).get().getBalance(), 0);
+    }
+
+    @Test
+    public void testFollowerRefusesWrites() throws Exception {
+        ReplicationFollower follower = follower(StoreMode.INMEMORY);
+        try {
+            follower.createAccount(new Account(0L, "user", 1d));
+            fail("Follower accepted a write");
+        } catch (ServiceException e) {
+            assertEquals(405, e.getHttpErrorCode());
+        }
+    }
+
+    private ReplicationFollower follower(StoreMode mode) throws Exception {
+        ReplicationFollower follower = new ReplicationFollower(mode,
+                new InetSocketAddress("localhost", leader.getPort()), folder.newFolder().toPath());
+        followers.add(follower);
+        return follower;
+    }
+
+    private void awaitSync(ReplicationFollower follower) throws InterruptedException {
+        long target = service.getJournal().durablePosition();
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        while (follower.getAppliedPosition() < target || !follower.isConnected()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Follower at " + follower.getAppliedPosition() + " did not reach " + target);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.kannane.webservice.response;
+
+import com.kannane.webservice.accounts.Account;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AccountResponseCacheTest {
+
+    @Test
+    public void testServesOnlyTheRenderedVersion() {
+        AccountResponseCache cache = new AccountResponseCache(100);
+        assertEquals(128, cache.capacity());
+        Account account = new Account(7L, "user7", 45d);
+
+        byte[] json = cache.render(account);
+        assertEquals("{\"id\":7,\"name\":\"user7\",\"balance\":45.0}", new String(json, StandardCharsets.UTF_8));
+        assertSame(json, cache.get(7, account.getVersion()));
+        assertNull(cache.get(7, account.getVersion() + 1));
+        assertNull(cache.get(8, account.getVersion()));
+    }
+
+    @Test
+    public void testAccountsSharingASlotReplaceEachOther() {
+        AccountResponseCache cache = new AccountResponseCache(4);
+        Account first = new Account(1L, "user1", 1d), second = new Account(5L, "user5", 5d);
+        cache.render(first);
+        cache.render(second);
+        assertNull(cache.get(1, first.getVersion()));
+        assertEquals("{\"id\":5,\"name\":\"user5\",\"balance\":5.0}",
+                new String(cache.get(5, second.getVersion()), StandardCharsets.UTF_8));
+    }
+}
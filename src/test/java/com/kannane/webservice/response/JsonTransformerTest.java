@@ -0,0 +1,153 @@
+package com.kannane.webservice.response;
+
+import com.google.gson.Gson;
+import com.kannane.webservice.ServiceException;
+import com.kannane.webservice.accounts.Account;
+import com.kannane.webservice.accounts.TransferResult;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Every hand written writer must produce exactly the bytes Spark sent when Gson rendered the response
+ */
+public class JsonTransformerTest {
+
+    private final Gson gson = new Gson();
+    private final JsonTransformer transformer = new JsonTransformer();
+
+    @Test
+    public void testAccountsMatchGson() {
+        double[] balances = {0, -0.0, 45, 97.5, 89.01, 0.07, -12.3, 9_999_999.99, 10_000_000, 1e-5, 0.001,
+                123456.789, Double.MAX_VALUE, Double.MIN_VALUE, -Double.MAX_VALUE, 1.0E22};
+        for (double balance : balances) {
+            assertSameAsGson(new Account(1L, "user1", balance));
+        }
+        assertSameAsGson(new Account(Long.MAX_VALUE, null, 1d));
+        assertSameAsGson(new Account(Long.MIN_VALUE, "user", null));
+        assertSameAsGson(new Account(null, null, null));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            double balance = i % 2 == 0 ? random.nextInt(2_000_000_000) / 100.0 - 10_000_000
+                    : random.nextDouble() * Math.pow(10, random.nextInt(20) - 5);
+            assertSameAsGson(new Account((long) i, "user" + i, balance));
+        }
+    }
+
+    @Test
+    public void testEveryCharacterIsEscapedLikeGson() {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            if (!Character.isSurrogate(c)) {
+                all.append(c);
+            }
+        }
+        assertSameAsGson(new Account(1L, all.toString(), 1d));
+        assertSameAsGson(new Account(1L, "pair \uD83D\uDE00 high \uD83D low \uDE00 end \uD800", 1d));
+        assertSameAsGson(new Account(1L, "<script>alert('x' & \"y\" = 1)</script>\\\u2028", 1d));
+    }
+
+    @Test
+    public void testTransferResponsesMatchGson() {
+        assertSameAsGson(Collections.singletonMap("success", "true"));
+        assertSameAsGson(Collections.singletonMap("results", Arrays.asList(TransferResult.success(),
+                TransferResult.failure("Could not withdraw [\"20\"] from <account>"), TransferResult.success())));
+        assertSameAsGson(Collections.singletonMap("results", Collections.emptyList()));
+    }
+
+    @Test
+    public void testErrorPayloadMatchesGson() {
+        for (Exception e : new Exception[]{new ServiceException("No account found for id [2345]", 404),
+                new NumberFormatException("For input string: \"abc\""), new NullPointerException()}) {
+            Map<String, String> messages = new HashMap<>();
+            messages.put("exception", e.getClass().getName());
+            messages.put("message", e.getMessage());
+            JsonWriter writer = JsonWriter.forThread();
+            JsonTransformer.writeError(e, writer);
+            assertEquals(gson.toJson(messages), writer.toString());
+        }
+    }
+
+    @Test
+    public void testOtherModelsFallBackToGson() {
+        Map<String, Object> model = new HashMap<>();
+        model.put("count", 5L);
+        assertEquals(gson.toJson(model), transformer.render(model));
+        assertEquals(gson.toJson(Arrays.asList("a", null)), transformer.render(Arrays.asList("a", null)));
+    }
+
+    @Test
+    public void testSpecialDoublesFailLikeGson() {
+        for (double balance : new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+            Account account = new Account(1L, "user", balance);
+            String expected = null;
+            try {
+                toGson(account);
+                fail("Gson accepts " + balance);
+            } catch (IllegalArgumentException e) {
+                expected = e.getMessage();
+            }
+            try {
+                transformer.render(account);
+                fail("Writer accepts " + balance);
+            } catch (IllegalArgumentException e) {
+                assertEquals(expected, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testWritingAnAccountDoesNotAllocate() {
+        Account account = new Account(123456L, "user123456", 1234.56);
+        for (int i = 0; i < 100_000; i++) {
+            JsonTransformer.write(account, JsonWriter.forThread());
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            JsonTransformer.write(account, JsonWriter.forThread());
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Writing allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private void assertSameAsGson(Object model) {
+        JsonWriter writer = JsonWriter.forThread();
+        JsonTransformer.write(model, writer);
+        byte[] expected = toGson(model).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(model.toString(), expected, writer.toByteArray());
+        assertArrayEquals(model.toString(), expected, transformer.render(model).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Accounts as Gson rendered them when the balance was still a boxed field
+     */
+    private String toGson(Object model) {
+        return gson.toJson(model instanceof Account ? new GsonAccount((Account) model) : model);
+    }
+
+    private static final class GsonAccount {
+        private final Long id;
+        private final String name;
+        private final Double balance;
+
+        GsonAccount(Account account) {
+            this.id = account.getId();
+            this.name = account.getName();
+            this.balance = account.getBalance();
+        }
+    }
+}